@@ -0,0 +1,123 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.javascript.NativeObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per call overhead and throughput of get and post with a small body.
+ * <p>
+ * The calls include building the request headers from NativeObject and converting the response
+ * into NativeObject, so regressions of the marshalling show up as well as those of the pool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CallOverheadBenchmark {
+
+    /** Size of the response body. */
+    private static final String SMALL_BODY = "/bytes?size=16";
+    /** Content type of post. */
+    private static final String CONTENT_TYPE = "application/x-www-form-urlencoded";
+    /** Body of post. */
+    private static final String POST_BODY = "key1=value1&key2=value2&key3=value3";
+
+    private LocalHttpServer server;
+    private Ext_HttpClient client;
+    private NativeObject headers;
+    private String getUrl;
+    private String postUrl;
+
+    /**
+     * Start the server and the client.
+     * @throws IOException failed to start the server
+     */
+    @Setup
+    public void setUp() throws IOException {
+        server = new LocalHttpServer();
+        NativeObject parameters = new NativeObject();
+        // Measure the calls themselves, without retries or breakers in the way of failures.
+        parameters.put("RetryMaxAttempts", parameters, 1);
+        parameters.put("CircuitBreaker", parameters, false);
+        client = new Ext_HttpClient(parameters);
+        headers = new NativeObject();
+        headers.put("Accept", headers, "text/plain");
+        headers.put("X-Personium-Benchmark", headers, "overhead");
+        getUrl = server.getUrl() + SMALL_BODY;
+        postUrl = server.getUrl() + "/echo";
+    }
+
+    /**
+     * Stop the server.
+     */
+    @TearDown
+    public void tearDown() {
+        server.close();
+    }
+
+    /**
+     * @return response
+     */
+    @Benchmark
+    public NativeObject get() {
+        return client.get(getUrl, headers, false);
+    }
+
+    /**
+     * @return response
+     */
+    @Benchmark
+    public NativeObject post() {
+        return client.post(postUrl, headers, CONTENT_TYPE, POST_BODY);
+    }
+
+    /**
+     * @return response
+     */
+    @Benchmark
+    @Threads(8)
+    public NativeObject get8Threads() {
+        return client.get(getUrl, headers, false);
+    }
+
+    /**
+     * @return response
+     */
+    @Benchmark
+    @Threads(64)
+    public NativeObject get64Threads() {
+        return client.get(getUrl, headers, false);
+    }
+}
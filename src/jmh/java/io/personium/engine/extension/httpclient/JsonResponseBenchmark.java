@@ -0,0 +1,106 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.json.JsonParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JSON bodies parsed by the script from text, against responseType "json".
+ * Run with {@code -prof gc} to compare the allocation of the modes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g" })
+public class JsonResponseBenchmark {
+
+    /** Body size(bytes): 1 KB, 1 MB and 16 MB. */
+    @Param({"1024", "1048576", "16777216" })
+    private long size;
+
+    /** "text": JSON.parse(body) as scripts do, "json": responseType "json". */
+    @Param({"text", "json" })
+    private String mode;
+
+    private LocalHttpServer server;
+    private Ext_HttpClient client;
+    private String url;
+    private NativeObject options;
+    private Context cx;
+    private ScriptableObject scope;
+    private JsonParser parser;
+
+    /**
+     * Start the server and the client.
+     * @throws IOException failed to start the server
+     */
+    @Setup
+    public void setUp() throws IOException {
+        server = new LocalHttpServer();
+        cx = Context.enter();
+        scope = cx.initStandardObjects();
+        parser = new JsonParser(cx, scope);
+        client = new Ext_HttpClient(new NativeObject());
+        client.setParentScope(scope);
+        url = server.getUrl() + "/json?size=" + size;
+        options = new NativeObject();
+        options.put("responseType", options, mode);
+    }
+
+    /**
+     * Stop the server.
+     */
+    @TearDown
+    public void tearDown() {
+        Context.exit();
+        server.close();
+    }
+
+    /**
+     * Get the body as javascript objects.
+     * @return parsed body
+     * @throws JsonParser.ParseException the body is not JSON
+     */
+    @Benchmark
+    public Object get() throws JsonParser.ParseException {
+        Object body = client.get(url, null, false, options).get("body");
+        if ("text".equals(mode)) {
+            return parser.parseValue((String) body);
+        }
+        return body;
+    }
+}
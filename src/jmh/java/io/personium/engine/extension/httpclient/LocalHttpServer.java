@@ -0,0 +1,140 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process HTTP server of the benchmarks.
+ * <p>
+ * GET /bytes?size=N returns N bytes of text. GET /json?size=N returns an array of records of about N bytes.
+ * POST /echo reads the body and returns a short text.
+ */
+final class LocalHttpServer implements AutoCloseable {
+
+    /** Size of the buffer written repeatedly to make a body. */
+    private static final int CHUNK_SIZE = 64 * 1024;
+    /** Status OK. */
+    private static final int OK = 200;
+    /** Body of /echo. */
+    private static final byte[] ECHO_BODY = "ok".getBytes(StandardCharsets.US_ASCII);
+
+    /** Chunk of a body. */
+    private static final byte[] CHUNK = new byte[CHUNK_SIZE];
+    static {
+        Arrays.fill(CHUNK, (byte) 'a');
+        // Without TCP_NODELAY, small responses wait for delayed ACKs and the server becomes the bottleneck.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    /** Bodies of /json by size. */
+    private static final Map<Long, byte[]> JSON_BODIES = new ConcurrentHashMap<>();
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    /**
+     * Start the server on an ephemeral port of the loopback address.
+     * @throws IOException failed to start
+     */
+    LocalHttpServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/bytes", LocalHttpServer::bytes);
+        server.createContext("/json", LocalHttpServer::json);
+        server.createContext("/echo", LocalHttpServer::echo);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * @return base url, ending without slash
+     */
+    String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private static void bytes(HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getQuery();
+        long size = Long.parseLong(query.substring(query.indexOf('=') + 1));
+        exchange.getResponseHeaders().add("Content-Type", "text/plain");
+        exchange.sendResponseHeaders(OK, size);
+        try (OutputStream out = exchange.getResponseBody()) {
+            long remaining = size;
+            while (remaining > 0) {
+                int n = (int) Math.min(CHUNK_SIZE, remaining);
+                out.write(CHUNK, 0, n);
+                remaining -= n;
+            }
+        }
+    }
+
+    private static void json(HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getQuery();
+        long size = Long.parseLong(query.substring(query.indexOf('=') + 1));
+        byte[] body = JSON_BODIES.computeIfAbsent(size, LocalHttpServer::createJson);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(OK, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static byte[] createJson(long size) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; json.length() < size; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"id\":").append(i).append(",\"name\":\"item-").append(i)
+                    .append("\",\"tags\":[\"a\",\"b\"],\"price\":").append(i).append(".5,\"active\":true}");
+        }
+        return json.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void echo(HttpExchange exchange) throws IOException {
+        byte[] buffer = new byte[CHUNK_SIZE];
+        try (InputStream in = exchange.getRequestBody()) {
+            while (in.read(buffer) != -1) {
+                continue;
+            }
+        }
+        exchange.getResponseHeaders().add("Content-Type", "text/plain");
+        exchange.sendResponseHeaders(OK, ECHO_BODY.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(ECHO_BODY);
+        }
+    }
+}
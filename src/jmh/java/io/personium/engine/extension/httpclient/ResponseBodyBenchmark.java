@@ -0,0 +1,107 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.javascript.NativeObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Text and stream response modes across body sizes.
+ * Run with {@code -prof gc} to compare the allocation of the modes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g" })
+public class ResponseBodyBenchmark {
+
+    /** Size of the buffer reading streams. */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** Body size(bytes): 1 KB, 1 MB and 100 MB. */
+    @Param({"1024", "1048576", "104857600" })
+    private long size;
+
+    /** Response mode. */
+    @Param({"text", "stream" })
+    private String mode;
+
+    private LocalHttpServer server;
+    private Ext_HttpClient client;
+    private String url;
+    private byte[] buffer;
+
+    /**
+     * Start the server and the client.
+     * @throws IOException failed to start the server
+     */
+    @Setup
+    public void setUp() throws IOException {
+        server = new LocalHttpServer();
+        client = new Ext_HttpClient(new NativeObject());
+        url = server.getUrl() + "/bytes?size=" + size;
+        buffer = new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Stop the server.
+     */
+    @TearDown
+    public void tearDown() {
+        server.close();
+    }
+
+    /**
+     * Get the body and read it to the end.
+     * @return bytes or characters read
+     * @throws IOException failed to read the stream
+     */
+    @Benchmark
+    public long get() throws IOException {
+        boolean stream = "stream".equals(mode);
+        NativeObject result = client.get(url, null, stream);
+        Object body = result.get("body");
+        if (!stream) {
+            return ((String) body).length();
+        }
+        long read = 0;
+        try (InputStream in = (InputStream) body) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                read += n;
+            }
+        }
+        return read;
+    }
+}
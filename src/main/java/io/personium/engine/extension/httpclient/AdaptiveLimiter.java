@@ -0,0 +1,249 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Adaptive concurrency limit of an origin (scheme, host and port), shared by all the clients.
+ * <p>
+ * The limit follows TCP Vegas. The smallest round trip time seen is taken as the time without load, and
+ * {@code limit * (1 - rttNoLoad / rtt)} estimates the requests queued at the origin. The limit grows while
+ * the queue is small and shrinks while it is large, by one step per round trip, and is cut by a ratio on every
+ * failure or overload response.
+ * The time without load is the smallest time of the current probe interval and of the previous one, so that
+ * an origin that became slower is not taken as congested forever. A call beyond the limit is not sent.
+ */
+final class AdaptiveLimiter {
+
+    /** Prefix of system properties. */
+    private static final String PROPERTY_PREFIX = HttpClientMetrics.DOMAIN + ".adaptiveConcurrency.";
+    /** Default initial limit. */
+    private static final int DEFAULT_INITIAL_LIMIT = 20;
+    /** Default min limit. */
+    private static final int DEFAULT_MIN_LIMIT = 1;
+    /** Default max limit. */
+    private static final int DEFAULT_MAX_LIMIT = 200;
+    /** Default ratio(percent) the limit is cut to on a failure. */
+    private static final int DEFAULT_BACKOFF_PERCENT = 90;
+    /** Default interval(milliseconds) after which the time without load is measured again. */
+    private static final long DEFAULT_PROBE_INTERVAL = 60000;
+    /** Default max number of origins with their own limiter. */
+    private static final int DEFAULT_MAX_LIMITERS = 1000;
+    /** Origin of the calls beyond the max number of origins. */
+    private static final String OTHER_ORIGIN = "other";
+    /** Percent of the whole. */
+    private static final double PERCENT = 100;
+    /** Queue size, in units of log10(limit), below which the limit grows fast. */
+    private static final int ALPHA = 3;
+    /** Queue size, in units of log10(limit), above which the limit shrinks. */
+    private static final int BETA = 6;
+
+    /** Initial limit. */
+    private static final int INITIAL_LIMIT =
+            Integer.getInteger(PROPERTY_PREFIX + "initialLimit", DEFAULT_INITIAL_LIMIT);
+    /** Min limit. */
+    private static final int MIN_LIMIT = Integer.getInteger(PROPERTY_PREFIX + "minLimit", DEFAULT_MIN_LIMIT);
+    /** Max limit. */
+    private static final int MAX_LIMIT = Integer.getInteger(PROPERTY_PREFIX + "maxLimit", DEFAULT_MAX_LIMIT);
+    /** Ratio(percent) the limit is cut to on a failure. */
+    private static final int BACKOFF_PERCENT =
+            Integer.getInteger(PROPERTY_PREFIX + "backoffPercent", DEFAULT_BACKOFF_PERCENT);
+    /** Interval(milliseconds) after which the time without load is measured again. */
+    private static final long PROBE_INTERVAL =
+            Long.getLong(PROPERTY_PREFIX + "probeInterval", DEFAULT_PROBE_INTERVAL);
+    /** Max number of origins with their own limiter. The others share one. */
+    private static final int MAX_LIMITERS = Integer.getInteger(PROPERTY_PREFIX + "maxLimiters", DEFAULT_MAX_LIMITERS);
+
+    /** Limiters by origin. */
+    private static final ConcurrentMap<String, AdaptiveLimiter> LIMITERS = new ConcurrentHashMap<>();
+
+    /** Origin. */
+    private final String origin;
+    /** Min limit. */
+    private final int minLimit;
+    /** Max limit. */
+    private final int maxLimit;
+    /** Ratio the limit is cut to on a failure. */
+    private final double backoffRatio;
+    /** Probe interval(nanoseconds). */
+    private final long probeInterval;
+
+    /** Calls in progress. */
+    private final AtomicInteger inFlight = new AtomicInteger();
+    /** Current limit, read without lock. */
+    private volatile double limit;
+    /** Round trip time(nanoseconds) without load, or 0 if not measured yet. Guarded by this. */
+    private long rttNoLoad = 0;
+    /** Smallest round trip time(nanoseconds) of the current probe interval, or 0. Guarded by this. */
+    private long rttProbe = 0;
+    /** End(System.nanoTime) of the current probe interval. Guarded by this. */
+    private long probeEnd;
+
+    /**
+     * Constructor.
+     * @param origin origin
+     * @param initialLimit initial limit
+     * @param minLimit min limit
+     * @param maxLimit max limit
+     * @param backoffPercent ratio(percent) the limit is cut to on a failure
+     * @param probeInterval interval(milliseconds) after which the time without load is measured again
+     */
+    AdaptiveLimiter(String origin, int initialLimit, int minLimit, int maxLimit, int backoffPercent,
+            long probeInterval) {
+        this.origin = origin;
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.backoffRatio = backoffPercent / PERCENT;
+        this.probeInterval = TimeUnit.MILLISECONDS.toNanos(probeInterval);
+        this.probeEnd = System.nanoTime() + this.probeInterval;
+    }
+
+    /**
+     * Get the shared limiter of the origin of the uri.
+     * @param uri request uri
+     * @return limiter
+     */
+    static AdaptiveLimiter of(URI uri) {
+        String origin = CircuitBreaker.toOrigin(uri);
+        AdaptiveLimiter limiter = LIMITERS.get(origin);
+        if (limiter != null) {
+            return limiter;
+        }
+        if (LIMITERS.size() >= MAX_LIMITERS) {
+            origin = OTHER_ORIGIN;
+        }
+        return LIMITERS.computeIfAbsent(origin,
+                key -> new AdaptiveLimiter(key, INITIAL_LIMIT, MIN_LIMIT, MAX_LIMIT, BACKOFF_PERCENT, PROBE_INTERVAL));
+    }
+
+    /**
+     * Limit of the origin.
+     * @param origin origin
+     * @return current limit, or -1 if the origin has no limiter
+     */
+    static int limitOf(String origin) {
+        AdaptiveLimiter limiter = LIMITERS.get(origin);
+        if (limiter == null) {
+            return -1;
+        }
+        return limiter.getLimit();
+    }
+
+    /**
+     * @return origin
+     */
+    String getOrigin() {
+        return origin;
+    }
+
+    /**
+     * @return current limit
+     */
+    int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * @return calls in progress
+     */
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Start a call if the limit allows it.
+     * @return calls in progress including this one, or 0 if the limit is reached
+     */
+    int tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= getLimit()) {
+                return 0;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return current + 1;
+            }
+        }
+    }
+
+    /**
+     * End a call started by {@link #tryAcquire()} and adjust the limit with its outcome.
+     * @param startInFlight value returned by tryAcquire
+     * @param rtt round trip time(nanoseconds) of the call
+     * @param dropped true if the call failed or the origin answered it is overloaded
+     */
+    void release(int startInFlight, long rtt, boolean dropped) {
+        inFlight.decrementAndGet();
+        update(startInFlight, rtt, dropped);
+    }
+
+    /**
+     * End a call started by {@link #tryAcquire()} that never reached the origin, without adjusting the limit.
+     */
+    void ignore() {
+        inFlight.decrementAndGet();
+    }
+
+    private synchronized void update(int startInFlight, long rtt, boolean dropped) {
+        double current = limit;
+        if (dropped) {
+            limit = Math.max(minLimit, current * backoffRatio);
+            return;
+        }
+        long now = System.nanoTime();
+        if (now - probeEnd >= 0) {
+            // Forget the times older than the previous interval.
+            probeEnd = now + probeInterval;
+            rttNoLoad = rttProbe;
+            rttProbe = 0;
+        }
+        if (rttProbe == 0 || rtt < rttProbe) {
+            rttProbe = rtt;
+        }
+        if (rttNoLoad == 0 || rtt < rttNoLoad) {
+            rttNoLoad = rtt;
+            return;
+        }
+        if (startInFlight * 2 < current) {
+            // The calls do not use the limit, so their time says nothing about it.
+            return;
+        }
+        double log = Math.max(1, Math.log10(current));
+        double queue = current * (1 - (double) rttNoLoad / rtt);
+        double step = 0;
+        if (queue <= log) {
+            step = BETA * log;
+        } else if (queue < ALPHA * log) {
+            step = log;
+        } else if (queue > BETA * log) {
+            step = -log;
+        }
+        // About limit calls end in a round trip, so the limit moves by one step per round trip.
+        limit = Math.max(minLimit, Math.min(maxLimit, current + step / current));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("origin=%s limit=%d inFlight=%d", origin, getLimit(), getInFlight());
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Runs a batch of requests concurrently on a shared executor.
+ * <p>
+ * Each batch uses at most the given number of threads, which take the requests in order.
+ * When the deadline passes, the requests still running are aborted and the requests not yet started are skipped.
+ * The threads of all the batches, the concurrency of a batch and the workers waiting for a thread are bounded by
+ * the system properties "io.personium.engine.extension.httpclient.batch.maxThreads", ".maxConcurrency" and
+ * ".maxQueue".
+ */
+final class BatchRunner {
+
+    /** Seconds an idle worker thread is kept. */
+    private static final long KEEP_ALIVE_SECONDS = 60;
+    /** Prefix of system properties. */
+    private static final String PROPERTY_PREFIX = HttpClientMetrics.DOMAIN + ".batch.";
+    /** Default max number of threads of all the batches. */
+    private static final int DEFAULT_MAX_THREADS = 64;
+    /** Default max number of requests of a batch running at the same time. */
+    private static final int DEFAULT_MAX_CONCURRENCY = 32;
+    /** Default max number of workers waiting for a thread. */
+    private static final int DEFAULT_MAX_QUEUE = 1000;
+
+    /** Max number of threads of all the batches. */
+    static final int MAX_THREADS = Integer.getInteger(PROPERTY_PREFIX + "maxThreads", DEFAULT_MAX_THREADS);
+    /** Max number of requests of a batch running at the same time. */
+    static final int MAX_CONCURRENCY = Integer.getInteger(PROPERTY_PREFIX + "maxConcurrency",
+            DEFAULT_MAX_CONCURRENCY);
+    /** Max number of workers waiting for a thread. */
+    private static final int MAX_QUEUE = Integer.getInteger(PROPERTY_PREFIX + "maxQueue", DEFAULT_MAX_QUEUE);
+
+    /** Workers shared by all batches. Threads are created on demand up to the max, and stop when idle. */
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+            KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(MAX_QUEUE),
+            new DaemonThreadFactory("personium-httpclient-batch-"));
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private BatchRunner() {
+    }
+
+    /**
+     * Request in a batch.
+     * @param <T> result type
+     */
+    interface Task<T> {
+        /**
+         * Execute the request.
+         * @return result
+         */
+        T call();
+
+        /**
+         * Abort the request if it is running.
+         */
+        void abort();
+    }
+
+    /**
+     * Run the tasks and wait for them until the deadline.
+     * @param <T> result type
+     * @param tasks tasks
+     * @param concurrency max number of tasks running at the same time, up to {@link #MAX_CONCURRENCY}
+     * @param timeout deadline(milliseconds) of the whole batch
+     * @param results array receiving the results in the order of the tasks.
+     * The element of a task not finished by the deadline is left null.
+     * @throws InterruptedException interrupted while waiting
+     * @throws RejectedExecutionException no worker of the batch can wait for a thread
+     */
+    static <T> void run(List<? extends Task<T>> tasks, int concurrency, long timeout,
+            AtomicReferenceArray<T> results) throws InterruptedException {
+        int size = tasks.size();
+        CountDownLatch done = new CountDownLatch(size);
+        AtomicInteger next = new AtomicInteger();
+        AtomicBoolean expired = new AtomicBoolean(false);
+        Runnable worker = () -> {
+            int i;
+            while ((i = next.getAndIncrement()) < size) {
+                try {
+                    if (!expired.get()) {
+                        // A result arriving after the deadline is dropped.
+                        results.compareAndSet(i, null, tasks.get(i).call());
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+        int workers = Math.min(Math.min(concurrency, MAX_CONCURRENCY), size);
+        for (int w = 0; w < workers; w++) {
+            try {
+                EXECUTOR.execute(worker);
+            } catch (RejectedExecutionException e) {
+                if (w == 0) {
+                    throw e;
+                }
+                // The workers started take the rest of the requests.
+                break;
+            }
+        }
+        if (!done.await(timeout, TimeUnit.MILLISECONDS)) {
+            expired.set(true);
+            for (int i = 0; i < size; i++) {
+                if (results.get(i) == null) {
+                    tasks.get(i).abort();
+                }
+            }
+        }
+    }
+}
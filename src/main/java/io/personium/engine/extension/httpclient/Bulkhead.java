@@ -0,0 +1,386 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bulkhead of an origin (scheme, host and port), shared by all the clients, which bounds the calls of the cells.
+ * <p>
+ * A call takes a permit until its response is returned. The calls of the origin, and the calls of a cell to the
+ * origin, are limited. A call beyond the limits waits in the queue of its cell, and is rejected at once if that
+ * queue is full. A freed permit goes to the cells in turn, so a cell flooding the origin only waits on itself.
+ * The calls of the clients without a cell name share the default cell, which is bounded only by the limit of
+ * the origin.
+ */
+final class Bulkhead implements BulkheadMXBean {
+
+    /** Cell of the calls of the clients without a cell name. */
+    static final String DEFAULT_CELL = "(default)";
+
+    /** Prefix of system properties. */
+    private static final String PROPERTY_PREFIX = HttpClientMetrics.DOMAIN + ".bulkhead.";
+    /** Default max calls at the same time of an origin. */
+    private static final int DEFAULT_MAX_CONCURRENT = 64;
+    /** Default max calls at the same time of a cell to an origin. */
+    private static final int DEFAULT_MAX_CONCURRENT_PER_CELL = 16;
+    /** Default max calls waiting of a cell for an origin. */
+    private static final int DEFAULT_MAX_QUEUE_PER_CELL = 32;
+    /** Default max wait(milliseconds) for a permit. */
+    private static final long DEFAULT_MAX_WAIT = 10000;
+    /** Default max number of origins with their own bulkhead. */
+    private static final int DEFAULT_MAX_BULKHEADS = 1000;
+    /** Origin of the calls beyond the max number of origins. */
+    private static final String OTHER_ORIGIN = "other";
+
+    /** Max calls at the same time of an origin. */
+    private static final int MAX_CONCURRENT =
+            Integer.getInteger(PROPERTY_PREFIX + "maxConcurrent", DEFAULT_MAX_CONCURRENT);
+    /** Max calls at the same time of a cell to an origin. */
+    private static final int MAX_CONCURRENT_PER_CELL =
+            Integer.getInteger(PROPERTY_PREFIX + "maxConcurrentPerCell", DEFAULT_MAX_CONCURRENT_PER_CELL);
+    /** Max calls waiting of a cell for an origin. */
+    private static final int MAX_QUEUE_PER_CELL =
+            Integer.getInteger(PROPERTY_PREFIX + "maxQueuePerCell", DEFAULT_MAX_QUEUE_PER_CELL);
+    /** Max wait(milliseconds) for a permit. */
+    static final long MAX_WAIT = Long.getLong(PROPERTY_PREFIX + "maxWait", DEFAULT_MAX_WAIT);
+    /** Max number of origins with their own bulkhead. The others share one. */
+    private static final int MAX_BULKHEADS =
+            Integer.getInteger(PROPERTY_PREFIX + "maxBulkheads", DEFAULT_MAX_BULKHEADS);
+
+    /** Bulkheads by origin. */
+    private static final ConcurrentMap<String, Bulkhead> BULKHEADS = new ConcurrentHashMap<>();
+
+    /** Origin. */
+    private final String origin;
+    /** Max calls at the same time of the origin. */
+    private final int maxConcurrent;
+    /** Max calls at the same time of a cell. */
+    private final int maxConcurrentPerCell;
+    /** Max calls waiting of a cell. */
+    private final int maxQueuePerCell;
+
+    /** Lock guarding the counts and the queues. */
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Cells with calls in progress or waiting, by name. */
+    private final Map<String, Cell> cells = new HashMap<>();
+    /** Cells with calls waiting, in the order they are served. */
+    private final ArrayDeque<Cell> waitingCells = new ArrayDeque<>();
+    /** Calls in progress. */
+    private int active = 0;
+    /** Calls rejected. */
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param origin origin
+     * @param maxConcurrent max calls at the same time of the origin
+     * @param maxConcurrentPerCell max calls at the same time of a cell
+     * @param maxQueuePerCell max calls waiting of a cell
+     */
+    Bulkhead(String origin, int maxConcurrent, int maxConcurrentPerCell, int maxQueuePerCell) {
+        this.origin = origin;
+        this.maxConcurrent = maxConcurrent;
+        this.maxConcurrentPerCell = maxConcurrentPerCell;
+        this.maxQueuePerCell = maxQueuePerCell;
+    }
+
+    /**
+     * Get the shared bulkhead of the origin of the uri, registering its metrics on first use.
+     * @param uri request uri
+     * @return bulkhead
+     */
+    static Bulkhead of(URI uri) {
+        String origin = CircuitBreaker.toOrigin(uri);
+        Bulkhead bulkhead = BULKHEADS.get(origin);
+        if (bulkhead != null) {
+            return bulkhead;
+        }
+        if (BULKHEADS.size() >= MAX_BULKHEADS) {
+            origin = OTHER_ORIGIN;
+        }
+        return BULKHEADS.computeIfAbsent(origin, key -> {
+            Bulkhead created = new Bulkhead(key, MAX_CONCURRENT, MAX_CONCURRENT_PER_CELL, MAX_QUEUE_PER_CELL);
+            HttpClientMetrics.registerBulkhead(created);
+            return created;
+        });
+    }
+
+    /**
+     * @return all the shared bulkheads
+     */
+    static List<Bulkhead> all() {
+        return new ArrayList<>(BULKHEADS.values());
+    }
+
+    /**
+     * Take a permit for a call of the cell, waiting for it if the limits are reached.
+     * @param cellName name of the cell
+     * @param maxWait max wait(milliseconds)
+     * @return permit, or null if the queue of the cell is full or the wait timed out
+     * @throws InterruptedException interrupted while waiting
+     */
+    Permit acquire(String cellName, long maxWait) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWait);
+        lock.lock();
+        try {
+            Cell cell = cells.computeIfAbsent(cellName, this::newCell);
+            if (active < maxConcurrent && cell.active < cell.maxActive && cell.waiters.isEmpty()) {
+                grant(cell);
+                return new Permit(cell);
+            }
+            if (cell.waiters.size() >= maxQueuePerCell) {
+                return reject(cell);
+            }
+            Waiter waiter = new Waiter(lock.newCondition());
+            cell.waiters.add(waiter);
+            if (cell.waiters.size() == 1) {
+                waitingCells.add(cell);
+            }
+            try {
+                while (!waiter.granted) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        dequeue(cell, waiter);
+                        return reject(cell);
+                    }
+                    waiter.condition.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                if (waiter.granted) {
+                    release(cell);
+                } else {
+                    dequeue(cell, waiter);
+                    forgetIfIdle(cell);
+                }
+                throw e;
+            }
+            return new Permit(cell);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Cell newCell(String cellName) {
+        if (DEFAULT_CELL.equals(cellName)) {
+            return new Cell(cellName, maxConcurrent);
+        }
+        return new Cell(cellName, maxConcurrentPerCell);
+    }
+
+    private void grant(Cell cell) {
+        active++;
+        cell.active++;
+    }
+
+    private Permit reject(Cell cell) {
+        rejected.incrementAndGet();
+        forgetIfIdle(cell);
+        return null;
+    }
+
+    private void dequeue(Cell cell, Waiter waiter) {
+        cell.waiters.remove(waiter);
+        if (cell.waiters.isEmpty()) {
+            waitingCells.remove(cell);
+        }
+    }
+
+    private void forgetIfIdle(Cell cell) {
+        if (cell.active == 0 && cell.waiters.isEmpty()) {
+            cells.remove(cell.name);
+        }
+    }
+
+    private void release(Cell cell) {
+        lock.lock();
+        try {
+            active--;
+            cell.active--;
+            dispatch();
+            forgetIfIdle(cell);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hand the free permits to the waiting cells in turn, skipping the cells at their own limit.
+     */
+    private void dispatch() {
+        int candidates = waitingCells.size();
+        while (active < maxConcurrent && candidates > 0) {
+            candidates--;
+            Cell cell = waitingCells.poll();
+            if (cell.active < cell.maxActive) {
+                Waiter waiter = cell.waiters.poll();
+                waiter.granted = true;
+                grant(cell);
+                waiter.condition.signal();
+            }
+            if (!cell.waiters.isEmpty()) {
+                waitingCells.add(cell);
+            }
+        }
+    }
+
+    @Override
+    public String getOrigin() {
+        return origin;
+    }
+
+    @Override
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    @Override
+    public int getMaxConcurrentPerCell() {
+        return maxConcurrentPerCell;
+    }
+
+    @Override
+    public int getMaxQueuePerCell() {
+        return maxQueuePerCell;
+    }
+
+    @Override
+    public int getActive() {
+        lock.lock();
+        try {
+            return active;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getQueued() {
+        lock.lock();
+        try {
+            int queued = 0;
+            for (Cell cell : waitingCells) {
+                queued += cell.waiters.size();
+            }
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Map<String, Integer> getActiveByCell() {
+        lock.lock();
+        try {
+            Map<String, Integer> counts = new TreeMap<>();
+            for (Cell cell : cells.values()) {
+                counts.put(cell.name, cell.active);
+            }
+            return Collections.unmodifiableMap(counts);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Map<String, Integer> getQueuedByCell() {
+        lock.lock();
+        try {
+            Map<String, Integer> counts = new TreeMap<>();
+            for (Cell cell : waitingCells) {
+                counts.put(cell.name, cell.waiters.size());
+            }
+            return Collections.unmodifiableMap(counts);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("origin=%s active=%d queued=%d rejected=%d queuedByCell=%s",
+                origin, getActive(), getQueued(), getRejected(), getQueuedByCell());
+    }
+
+    /**
+     * Permit of a call, released when the call ends.
+     */
+    final class Permit {
+        private final Cell cell;
+        private boolean released = false;
+
+        private Permit(Cell cell) {
+            this.cell = cell;
+        }
+
+        /**
+         * Release the permit. Does nothing if already released.
+         */
+        void release() {
+            if (!released) {
+                released = true;
+                Bulkhead.this.release(cell);
+            }
+        }
+    }
+
+    /**
+     * Calls of a cell, guarded by the lock of the bulkhead.
+     */
+    private static final class Cell {
+        private final String name;
+        /** Max calls at the same time of the cell. */
+        private final int maxActive;
+        private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+        private int active = 0;
+
+        Cell(String name, int maxActive) {
+            this.name = name;
+            this.maxActive = maxActive;
+        }
+    }
+
+    /**
+     * Call waiting for a permit, guarded by the lock of the bulkhead.
+     */
+    private static final class Waiter {
+        private final Condition condition;
+        private boolean granted = false;
+
+        Waiter(Condition condition) {
+            this.condition = condition;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.util.Map;
+
+/**
+ * JMX view of the bulkhead of an origin.
+ */
+public interface BulkheadMXBean {
+
+    /**
+     * @return origin (scheme://host:port)
+     */
+    String getOrigin();
+
+    /**
+     * @return max calls at the same time, all the cells together
+     */
+    int getMaxConcurrent();
+
+    /**
+     * @return max calls at the same time of a cell
+     */
+    int getMaxConcurrentPerCell();
+
+    /**
+     * @return max calls waiting of a cell
+     */
+    int getMaxQueuePerCell();
+
+    /**
+     * @return calls in progress
+     */
+    int getActive();
+
+    /**
+     * @return calls waiting
+     */
+    int getQueued();
+
+    /**
+     * @return calls in progress by cell
+     */
+    Map<String, Integer> getActiveByCell();
+
+    /**
+     * @return calls waiting by cell
+     */
+    Map<String, Integer> getQueuedByCell();
+
+    /**
+     * @return calls rejected because the queue of the cell was full or the wait timed out
+     */
+    long getRejected();
+}
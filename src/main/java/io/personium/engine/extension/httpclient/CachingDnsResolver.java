@@ -0,0 +1,279 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * DnsResolver that caches the addresses of hosts.
+ * <p>
+ * Addresses are kept for the TTL of the host and failures for the negative TTL. When a host is used after
+ * the refresh point of its entry (a percentage of the TTL), it is resolved again in the background while
+ * the cached addresses are still returned, so a host in constant use never waits for a lookup.
+ * The addresses of a host are returned in turn, so that new connections are spread over them.
+ * It serves both the classic and the HTTP/2 client.
+ */
+final class CachingDnsResolver implements DnsResolver, org.apache.hc.client5.http.DnsResolver {
+
+    /** Logger. */
+    private static final Logger log = LoggerFactory.getLogger(CachingDnsResolver.class);
+
+    /** Prefix of system properties. */
+    private static final String PROPERTY_PREFIX = "io.personium.engine.extension.httpclient.dns.";
+    /** Default TTL(milliseconds) of addresses. */
+    private static final long DEFAULT_TTL = 60000;
+    /** Default TTL(milliseconds) of failures. */
+    private static final long DEFAULT_NEGATIVE_TTL = 5000;
+    /** Default refresh point, in percent of the TTL. */
+    private static final int DEFAULT_REFRESH_PERCENT = 80;
+    /** Default max number of cached hosts. */
+    private static final int DEFAULT_MAX_ENTRIES = 10000;
+    /** Threads refreshing entries. */
+    private static final int REFRESH_THREADS = 4;
+    /** Seconds an idle refresh thread is kept. */
+    private static final long KEEP_ALIVE_SECONDS = 60;
+    /** Percent of the TTL. */
+    private static final long PERCENT = 100;
+
+    /** Resolver shared by all the clients, configured by system properties. */
+    static final CachingDnsResolver SHARED = new CachingDnsResolver(SystemDefaultDnsResolver.INSTANCE,
+            Long.getLong(PROPERTY_PREFIX + "ttl", DEFAULT_TTL),
+            parseHostTtls(System.getProperty(PROPERTY_PREFIX + "hostTtls")),
+            Long.getLong(PROPERTY_PREFIX + "negativeTtl", DEFAULT_NEGATIVE_TTL),
+            Integer.getInteger(PROPERTY_PREFIX + "refreshPercent", DEFAULT_REFRESH_PERCENT),
+            Integer.getInteger(PROPERTY_PREFIX + "maxEntries", DEFAULT_MAX_ENTRIES));
+
+    /** Threads refreshing entries, shared by all the resolvers. */
+    private static final ThreadPoolExecutor REFRESHER = new ThreadPoolExecutor(REFRESH_THREADS, REFRESH_THREADS,
+            KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new DaemonThreadFactory("personium-httpclient-dns-"));
+    static {
+        REFRESHER.allowCoreThreadTimeOut(true);
+    }
+
+    /** Resolver looking up the hosts. */
+    private final DnsResolver delegate;
+    /** TTL(milliseconds) of addresses. */
+    private final long ttl;
+    /** TTL(milliseconds) of addresses by lower case host name, overriding ttl. */
+    private final Map<String, Long> hostTtls;
+    /** TTL(milliseconds) of failures. */
+    private final long negativeTtl;
+    /** Refresh point, in percent of the TTL. */
+    private final int refreshPercent;
+    /** Max number of cached hosts. */
+    private final int maxEntries;
+
+    /** Entries by lower case host name. */
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     * @param delegate resolver looking up the hosts
+     * @param ttl TTL(milliseconds) of addresses
+     * @param hostTtls TTL(milliseconds) of addresses by host name, overriding ttl
+     * @param negativeTtl TTL(milliseconds) of failures
+     * @param refreshPercent refresh point, in percent of the TTL
+     * @param maxEntries max number of cached hosts
+     */
+    CachingDnsResolver(DnsResolver delegate, long ttl, Map<String, Long> hostTtls, long negativeTtl,
+            int refreshPercent, int maxEntries) {
+        this.delegate = delegate;
+        this.ttl = ttl;
+        Map<String, Long> map = new HashMap<>();
+        for (Map.Entry<String, Long> e : hostTtls.entrySet()) {
+            map.put(e.getKey().toLowerCase(Locale.ENGLISH), e.getValue());
+        }
+        this.hostTtls = Collections.unmodifiableMap(map);
+        this.negativeTtl = negativeTtl;
+        this.refreshPercent = refreshPercent;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Parse "host=ttl,host=ttl".
+     * @param value property value, or null
+     * @return TTL(milliseconds) by host name
+     */
+    static Map<String, Long> parseHostTtls(String value) {
+        Map<String, Long> map = new HashMap<>();
+        if (value == null) {
+            return map;
+        }
+        for (String pair : value.split(",")) {
+            int i = pair.indexOf('=');
+            if (i <= 0) {
+                continue;
+            }
+            try {
+                map.put(pair.substring(0, i).trim(), Long.parseLong(pair.substring(i + 1).trim()));
+            } catch (NumberFormatException e) {
+                log.info("Ignore invalid DNS TTL: {}", pair);
+            }
+        }
+        return map;
+    }
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        String key = host.toLowerCase(Locale.ENGLISH);
+        long now = System.nanoTime();
+        Entry entry = entries.get(key);
+        if (entry == null || now - entry.expiresAt >= 0) {
+            entry = lookup(host, key, null);
+        } else if (entry.addresses != null && now - entry.refreshAt >= 0
+                && entry.refreshing.compareAndSet(false, true)) {
+            refresh(host, key, entry);
+        }
+        if (entry.addresses == null) {
+            throw new UnknownHostException(entry.failure);
+        }
+        return entry.next();
+    }
+
+    @Override
+    public String resolveCanonicalHostname(String host) throws UnknownHostException {
+        InetAddress[] addresses = resolve(host);
+        if (addresses.length == 0) {
+            return host;
+        }
+        return addresses[0].getCanonicalHostName();
+    }
+
+    /**
+     * @return number of cached hosts
+     */
+    int size() {
+        return entries.size();
+    }
+
+    private void refresh(String host, String key, Entry stale) {
+        try {
+            REFRESHER.execute(() -> lookup(host, key, stale));
+        } catch (RejectedExecutionException e) {
+            stale.refreshing.set(false);
+        }
+    }
+
+    /**
+     * Look up the host and cache the result.
+     * @param host host name
+     * @param key cache key
+     * @param stale entry being refreshed, or null. It is kept if the lookup fails.
+     * @return new entry
+     */
+    private Entry lookup(String host, String key, Entry stale) {
+        long now = System.nanoTime();
+        Entry entry;
+        try {
+            InetAddress[] addresses = delegate.resolve(host);
+            long hostTtl = ttl;
+            Long ttlParam = hostTtls.get(key);
+            if (ttlParam != null) {
+                hostTtl = ttlParam;
+            }
+            entry = new Entry(addresses, null, now + TimeUnit.MILLISECONDS.toNanos(hostTtl),
+                    now + TimeUnit.MILLISECONDS.toNanos(hostTtl * refreshPercent / PERCENT));
+        } catch (UnknownHostException e) {
+            if (stale != null) {
+                // Keep the addresses until they expire.
+                log.debug("Failed to refresh {}: {}", host, e.getMessage());
+                stale.refreshing.set(false);
+                return stale;
+            }
+            long expiresAt = now + TimeUnit.MILLISECONDS.toNanos(negativeTtl);
+            entry = new Entry(null, e.getMessage(), expiresAt, expiresAt);
+        }
+        entries.put(key, entry);
+        evict();
+        return entry;
+    }
+
+    /**
+     * Remove the expired entries, and then the entries in no particular order, while there are too many.
+     */
+    private void evict() {
+        if (entries.size() <= maxEntries) {
+            return;
+        }
+        long now = System.nanoTime();
+        entries.values().removeIf(e -> now - e.expiresAt >= 0);
+        Iterator<String> it = entries.keySet().iterator();
+        while (entries.size() > maxEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Cached addresses or failure of a host.
+     */
+    private static final class Entry {
+        /** Addresses, or null if the lookup failed. */
+        private final InetAddress[] addresses;
+        /** Message of the failure. */
+        private final String failure;
+        /** Expiry(System.nanoTime). */
+        private final long expiresAt;
+        /** Refresh point(System.nanoTime). */
+        private final long refreshAt;
+        /** Index of the address returned first by the next call. */
+        private final AtomicInteger index = new AtomicInteger();
+        /** Set while a refresh is in progress. */
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+        Entry(InetAddress[] addresses, String failure, long expiresAt, long refreshAt) {
+            this.addresses = addresses;
+            this.failure = failure;
+            this.expiresAt = expiresAt;
+            this.refreshAt = refreshAt;
+        }
+
+        /**
+         * @return copy of the addresses, rotated by one on each call
+         */
+        InetAddress[] next() {
+            int length = addresses.length;
+            InetAddress[] rotated = new InetAddress[length];
+            if (length == 0) {
+                return rotated;
+            }
+            int first = Math.floorMod(index.getAndIncrement(), length);
+            System.arraycopy(addresses, first, rotated, 0, length - first);
+            System.arraycopy(addresses, 0, rotated, length - first, first);
+            return rotated;
+        }
+    }
+}
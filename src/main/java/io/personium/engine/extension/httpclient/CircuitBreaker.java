@@ -0,0 +1,334 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker of an origin (scheme, host and port), shared by all the clients.
+ * <p>
+ * A call fails when the connection fails, times out or the server answers 502, 503 or 504. Other 5xx,
+ * such as a 500 caused by the request, do not fail it.
+ * While CLOSED, the outcomes of the calls are counted in a sliding window of one second buckets.
+ * When the failure rate of the window reaches the threshold, the breaker OPENs and calls fail
+ * immediately. After the open duration, the breaker lets one call through (HALF_OPEN), which closes
+ * the breaker if it succeeds and opens it again if it fails.
+ * The counters are atomic and take no lock. A bucket being recycled may lose a few concurrent counts,
+ * which is acceptable for a rate.
+ */
+final class CircuitBreaker {
+
+    /** State of a breaker. */
+    enum State {
+        /** Calls go through. */
+        CLOSED,
+        /** Calls fail immediately. */
+        OPEN,
+        /** A trial call goes through. */
+        HALF_OPEN
+    }
+
+    /** Logger. */
+    private static final Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    /** Prefix of system properties. */
+    private static final String PROPERTY_PREFIX = "io.personium.engine.extension.httpclient.circuitBreaker.";
+    /** Default failure rate(percent) that opens the breaker. */
+    private static final int DEFAULT_FAILURE_RATE_THRESHOLD = 50;
+    /** Default min calls in the window before the failure rate is evaluated. */
+    private static final int DEFAULT_MINIMUM_CALLS = 20;
+    /** Default length(seconds) of the sliding window. */
+    private static final int DEFAULT_WINDOW_SECONDS = 10;
+    /** Default duration(milliseconds) the breaker stays open. */
+    private static final long DEFAULT_OPEN_DURATION = 10000;
+    /** Default max number of breakers kept. */
+    private static final int DEFAULT_MAX_BREAKERS = 10000;
+    /** Percent of the whole. */
+    private static final int PERCENT = 100;
+    /** Default port of http. */
+    private static final int HTTP_PORT = 80;
+    /** Default port of https. */
+    private static final int HTTPS_PORT = 443;
+
+    /** Failure rate(percent) that opens the breaker. */
+    private static final int FAILURE_RATE_THRESHOLD =
+            Integer.getInteger(PROPERTY_PREFIX + "failureRateThreshold", DEFAULT_FAILURE_RATE_THRESHOLD);
+    /** Min calls in the window before the failure rate is evaluated. */
+    private static final int MINIMUM_CALLS =
+            Integer.getInteger(PROPERTY_PREFIX + "minimumCalls", DEFAULT_MINIMUM_CALLS);
+    /** Length(seconds) of the sliding window. */
+    private static final int WINDOW_SECONDS =
+            Integer.getInteger(PROPERTY_PREFIX + "windowSeconds", DEFAULT_WINDOW_SECONDS);
+    /** Duration(milliseconds) the breaker stays open. */
+    private static final long OPEN_DURATION = Long.getLong(PROPERTY_PREFIX + "openDuration", DEFAULT_OPEN_DURATION);
+    /** Max number of breakers kept. */
+    private static final int MAX_BREAKERS = Integer.getInteger(PROPERTY_PREFIX + "maxBreakers", DEFAULT_MAX_BREAKERS);
+
+    /** Status codes of a failed call: the origin or the gateway to it is down or overloaded. */
+    private static final Set<Integer> FAILURE_STATUS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            HttpStatus.SC_BAD_GATEWAY, HttpStatus.SC_SERVICE_UNAVAILABLE, HttpStatus.SC_GATEWAY_TIMEOUT)));
+
+    /** Breakers by origin. */
+    private static final ConcurrentMap<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    /** Origin. */
+    private final String origin;
+    /** Failure rate(percent) that opens the breaker. */
+    private final int failureRateThreshold;
+    /** Min calls in the window before the failure rate is evaluated. */
+    private final int minimumCalls;
+    /** Duration(nanoseconds) the breaker stays open. */
+    private final long openDuration;
+    /** Buckets of the sliding window. */
+    private final Bucket[] buckets;
+
+    /** Ordinal of the state. */
+    private final AtomicInteger state = new AtomicInteger(State.CLOSED.ordinal());
+    /** Time(System.nanoTime) the breaker opened. */
+    private final AtomicLong openedAt = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param origin origin
+     * @param failureRateThreshold failure rate(percent) that opens the breaker
+     * @param minimumCalls min calls in the window before the failure rate is evaluated
+     * @param windowSeconds length(seconds) of the sliding window
+     * @param openDuration duration(milliseconds) the breaker stays open
+     */
+    CircuitBreaker(String origin, int failureRateThreshold, int minimumCalls, int windowSeconds, long openDuration) {
+        this.origin = origin;
+        this.failureRateThreshold = failureRateThreshold;
+        this.minimumCalls = minimumCalls;
+        this.openDuration = TimeUnit.MILLISECONDS.toNanos(openDuration);
+        this.buckets = new Bucket[windowSeconds];
+        for (int i = 0; i < windowSeconds; i++) {
+            buckets[i] = new Bucket();
+        }
+    }
+
+    /**
+     * Get the shared breaker of the origin of the uri.
+     * @param uri request uri
+     * @return breaker
+     */
+    static CircuitBreaker of(URI uri) {
+        String origin = toOrigin(uri);
+        CircuitBreaker breaker = BREAKERS.get(origin);
+        if (breaker != null) {
+            return breaker;
+        }
+        if (BREAKERS.size() >= MAX_BREAKERS) {
+            // Forget the origins that are healthy and idle.
+            BREAKERS.values().removeIf(CircuitBreaker::isIdle);
+        }
+        return BREAKERS.computeIfAbsent(origin, key -> new CircuitBreaker(key,
+                FAILURE_RATE_THRESHOLD, MINIMUM_CALLS, WINDOW_SECONDS, OPEN_DURATION));
+    }
+
+    /**
+     * @return states of the shared breakers by origin
+     */
+    static Map<String, State> states() {
+        Map<String, State> states = new TreeMap<>();
+        for (CircuitBreaker breaker : BREAKERS.values()) {
+            states.put(breaker.origin, breaker.getState());
+        }
+        return Collections.unmodifiableMap(states);
+    }
+
+    /**
+     * State of the breaker of the origin.
+     * @param origin origin
+     * @return state, CLOSED if the origin has no breaker
+     */
+    static State stateOf(String origin) {
+        CircuitBreaker breaker = BREAKERS.get(origin);
+        if (breaker == null) {
+            return State.CLOSED;
+        }
+        return breaker.getState();
+    }
+
+    /**
+     * @param status status code of a response
+     * @return true if the response is counted as failure of the call
+     */
+    static boolean isFailure(int status) {
+        return FAILURE_STATUS.contains(status);
+    }
+
+    /**
+     * @param uri request uri
+     * @return origin (scheme://host:port) of the uri, with the default port made explicit
+     */
+    static String toOrigin(URI uri) {
+        String scheme = String.valueOf(uri.getScheme()).toLowerCase(Locale.ENGLISH);
+        int port = uri.getPort();
+        if (port < 0 && "https".equals(scheme)) {
+            port = HTTPS_PORT;
+        } else if (port < 0) {
+            port = HTTP_PORT;
+        }
+        return scheme + "://" + String.valueOf(uri.getHost()).toLowerCase(Locale.ENGLISH) + ":" + port;
+    }
+
+    /**
+     * @return origin
+     */
+    String getOrigin() {
+        return origin;
+    }
+
+    /**
+     * @return current state
+     */
+    State getState() {
+        return State.values()[state.get()];
+    }
+
+    /**
+     * Ask to make a call.
+     * @return true if the call may go through
+     */
+    boolean tryAcquire() {
+        int current = state.get();
+        if (current == State.CLOSED.ordinal()) {
+            return true;
+        }
+        if (current == State.OPEN.ordinal() && System.nanoTime() - openedAt.get() >= openDuration) {
+            // Only the call that wins the transition is the trial.
+            return transition(State.OPEN, State.HALF_OPEN);
+        }
+        return false;
+    }
+
+    /**
+     * Record a successful call.
+     */
+    void onSuccess() {
+        if (state.get() == State.HALF_OPEN.ordinal()) {
+            if (transition(State.HALF_OPEN, State.CLOSED)) {
+                for (Bucket bucket : buckets) {
+                    bucket.clear();
+                }
+            }
+            return;
+        }
+        currentBucket().successes.incrementAndGet();
+    }
+
+    /**
+     * Record a failed call.
+     */
+    void onFailure() {
+        if (state.get() == State.HALF_OPEN.ordinal()) {
+            open(State.HALF_OPEN);
+            return;
+        }
+        currentBucket().failures.incrementAndGet();
+        if (state.get() != State.CLOSED.ordinal()) {
+            return;
+        }
+        long now = currentSecond();
+        long calls = 0;
+        long failures = 0;
+        for (Bucket bucket : buckets) {
+            if (now - bucket.second.get() < buckets.length) {
+                calls += bucket.successes.get() + bucket.failures.get();
+                failures += bucket.failures.get();
+            }
+        }
+        if (calls >= minimumCalls && failures * PERCENT >= calls * failureRateThreshold) {
+            open(State.CLOSED);
+        }
+    }
+
+    private void open(State from) {
+        openedAt.set(System.nanoTime());
+        transition(from, State.OPEN);
+    }
+
+    private boolean transition(State from, State to) {
+        if (!state.compareAndSet(from.ordinal(), to.ordinal())) {
+            return false;
+        }
+        log.info("Circuit breaker of {} changed from {} to {}.", origin, from, to);
+        return true;
+    }
+
+    private boolean isIdle() {
+        if (state.get() != State.CLOSED.ordinal()) {
+            return false;
+        }
+        long now = currentSecond();
+        for (Bucket bucket : buckets) {
+            if (now - bucket.second.get() < buckets.length) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Bucket currentBucket() {
+        long now = currentSecond();
+        Bucket bucket = buckets[(int) Math.floorMod(now, (long) buckets.length)];
+        long second = bucket.second.get();
+        if (second != now && bucket.second.compareAndSet(second, now)) {
+            bucket.successes.set(0);
+            bucket.failures.set(0);
+        }
+        return bucket;
+    }
+
+    private static long currentSecond() {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+    }
+
+    /**
+     * Counts of calls in a second.
+     */
+    private static final class Bucket {
+        /** Second of an empty bucket, far enough in the past to be out of any window. */
+        private static final long EMPTY = Long.MIN_VALUE / 2;
+
+        private final AtomicLong second = new AtomicLong(EMPTY);
+        private final AtomicInteger successes = new AtomicInteger();
+        private final AtomicInteger failures = new AtomicInteger();
+
+        private void clear() {
+            second.set(EMPTY);
+            successes.set(0);
+            failures.set(0);
+        }
+    }
+}
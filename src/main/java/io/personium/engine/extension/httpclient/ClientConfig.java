@@ -0,0 +1,395 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Effective configuration of a shared HttpClient.
+ * Instances are immutable and used as keys of {@link HttpClientRegistry}.
+ */
+final class ClientConfig {
+
+    /** Default max connections in total. */
+    static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 200;
+    /** Default max connections per route. */
+    static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+    /** Default size of TLS session cache. */
+    static final int DEFAULT_TLS_SESSION_CACHE_SIZE = 1000;
+    /** Default timeout(seconds) of cached TLS sessions. */
+    static final int DEFAULT_TLS_SESSION_TIMEOUT = 3600;
+    /** Default max entries of response cache. */
+    static final int DEFAULT_RESPONSE_CACHE_MAX_ENTRIES = 1000;
+    /** Default max body size(bytes) of a cached response. */
+    static final long DEFAULT_RESPONSE_CACHE_MAX_OBJECT_SIZE = 1024 * 1024;
+    /** Default max total body size(bytes) of response cache on disk. */
+    static final long DEFAULT_RESPONSE_CACHE_MAX_DISK_SIZE = 1024L * 1024 * 1024;
+
+    /** Default max time(milliseconds) a connection is kept alive, and cap of the server's Keep-Alive timeout. */
+    static final long DEFAULT_MAX_KEEP_ALIVE = 30000;
+    /** Default time(milliseconds) after which an idle connection is evicted. */
+    static final long DEFAULT_IDLE_CONNECTION_TIMEOUT = 30000;
+    /** Default inactivity(milliseconds) after which a pooled connection is validated before reuse. */
+    static final int DEFAULT_VALIDATE_AFTER_INACTIVITY = 2000;
+
+    /** Default content codings accepted for responses. */
+    static final List<String> DEFAULT_ACCEPT_ENCODING =
+            Collections.unmodifiableList(Arrays.asList(ContentCodings.GZIP, ContentCodings.DEFLATE));
+
+    /** Configuration with default values. */
+    static final ClientConfig DEFAULT = builder().build();
+
+    /** Ignore SSL varification flag. */
+    private final boolean ignoreHostnameVerification;
+    /** Max connections in total. */
+    private final int maxTotalConnections;
+    /** Max connections per route. */
+    private final int maxConnectionsPerRoute;
+    /** Size of TLS session cache. */
+    private final int tlsSessionCacheSize;
+    /** Timeout(seconds) of cached TLS sessions. */
+    private final int tlsSessionTimeout;
+    /** Response cache flag. */
+    private final boolean responseCache;
+    /** Max entries of response cache. */
+    private final int responseCacheMaxEntries;
+    /** Max body size(bytes) of a cached response. */
+    private final long responseCacheMaxObjectSize;
+    /** Directory of response cache on disk. */
+    private final String responseCacheDirectory;
+    /** Max total body size(bytes) of response cache on disk. */
+    private final long responseCacheMaxDiskSize;
+    /** HTTP/2 transport flag. */
+    private final boolean http2;
+    /** Content codings accepted for responses. Empty to disable response decoding. */
+    private final List<String> acceptEncoding;
+    /** DNS cache flag. */
+    private final boolean dnsCache;
+    /** Max time(milliseconds) a connection is kept alive. */
+    private final long maxKeepAlive;
+    /** Time(milliseconds) after which an idle connection is evicted. */
+    private final long idleConnectionTimeout;
+    /** Inactivity(milliseconds) after which a pooled connection is validated before reuse. */
+    private final int validateAfterInactivity;
+
+    private ClientConfig(Builder builder) {
+        this.ignoreHostnameVerification = builder.ignoreHostnameVerification;
+        this.maxTotalConnections = builder.maxTotalConnections;
+        this.maxConnectionsPerRoute = builder.maxConnectionsPerRoute;
+        this.tlsSessionCacheSize = builder.tlsSessionCacheSize;
+        this.tlsSessionTimeout = builder.tlsSessionTimeout;
+        this.responseCache = builder.responseCache;
+        this.responseCacheMaxEntries = builder.responseCacheMaxEntries;
+        this.responseCacheMaxObjectSize = builder.responseCacheMaxObjectSize;
+        this.responseCacheDirectory = builder.responseCacheDirectory;
+        this.responseCacheMaxDiskSize = builder.responseCacheMaxDiskSize;
+        this.http2 = builder.http2;
+        this.acceptEncoding = builder.acceptEncoding;
+        this.dnsCache = builder.dnsCache;
+        this.maxKeepAlive = builder.maxKeepAlive;
+        this.idleConnectionTimeout = builder.idleConnectionTimeout;
+        this.validateAfterInactivity = builder.validateAfterInactivity;
+    }
+
+    /**
+     * Create builder.
+     * @return builder
+     */
+    static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return true:Ignore ssl verification
+     */
+    boolean isIgnoreHostnameVerification() {
+        return ignoreHostnameVerification;
+    }
+
+    /**
+     * @return max connections in total
+     */
+    int getMaxTotalConnections() {
+        return maxTotalConnections;
+    }
+
+    /**
+     * @return max connections per route
+     */
+    int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    /**
+     * @return size of TLS session cache
+     */
+    int getTlsSessionCacheSize() {
+        return tlsSessionCacheSize;
+    }
+
+    /**
+     * @return timeout(seconds) of cached TLS sessions
+     */
+    int getTlsSessionTimeout() {
+        return tlsSessionTimeout;
+    }
+
+    /**
+     * @return true:Cache responses
+     */
+    boolean isResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * @return max entries of response cache
+     */
+    int getResponseCacheMaxEntries() {
+        return responseCacheMaxEntries;
+    }
+
+    /**
+     * @return max body size(bytes) of a cached response
+     */
+    long getResponseCacheMaxObjectSize() {
+        return responseCacheMaxObjectSize;
+    }
+
+    /**
+     * @return directory of response cache on disk, or null to cache in memory
+     */
+    String getResponseCacheDirectory() {
+        return responseCacheDirectory;
+    }
+
+    /**
+     * @return max total body size(bytes) of response cache on disk
+     */
+    long getResponseCacheMaxDiskSize() {
+        return responseCacheMaxDiskSize;
+    }
+
+    /**
+     * @return true:Send requests over HTTP/2
+     */
+    boolean isHttp2() {
+        return http2;
+    }
+
+    /**
+     * @return content codings accepted for responses, or empty list to disable response decoding
+     */
+    List<String> getAcceptEncoding() {
+        return acceptEncoding;
+    }
+
+    /**
+     * @return true:Resolve hosts through {@link CachingDnsResolver}
+     */
+    boolean isDnsCache() {
+        return dnsCache;
+    }
+
+    /**
+     * @return max time(milliseconds) a connection is kept alive, and cap of the server's Keep-Alive timeout
+     */
+    long getMaxKeepAlive() {
+        return maxKeepAlive;
+    }
+
+    /**
+     * @return time(milliseconds) after which an idle connection is evicted
+     */
+    long getIdleConnectionTimeout() {
+        return idleConnectionTimeout;
+    }
+
+    /**
+     * @return inactivity(milliseconds) after which a pooled connection is validated before reuse
+     */
+    int getValidateAfterInactivity() {
+        return validateAfterInactivity;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof ClientConfig)) {
+            return false;
+        }
+        ClientConfig other = (ClientConfig) obj;
+        return ignoreHostnameVerification == other.ignoreHostnameVerification
+                && maxTotalConnections == other.maxTotalConnections
+                && maxConnectionsPerRoute == other.maxConnectionsPerRoute
+                && tlsSessionCacheSize == other.tlsSessionCacheSize
+                && tlsSessionTimeout == other.tlsSessionTimeout
+                && responseCache == other.responseCache
+                && responseCacheMaxEntries == other.responseCacheMaxEntries
+                && responseCacheMaxObjectSize == other.responseCacheMaxObjectSize
+                && Objects.equals(responseCacheDirectory, other.responseCacheDirectory)
+                && responseCacheMaxDiskSize == other.responseCacheMaxDiskSize
+                && http2 == other.http2
+                && acceptEncoding.equals(other.acceptEncoding)
+                && dnsCache == other.dnsCache
+                && maxKeepAlive == other.maxKeepAlive
+                && idleConnectionTimeout == other.idleConnectionTimeout
+                && validateAfterInactivity == other.validateAfterInactivity;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(ignoreHostnameVerification, maxTotalConnections, maxConnectionsPerRoute,
+                tlsSessionCacheSize, tlsSessionTimeout,
+                responseCache, responseCacheMaxEntries, responseCacheMaxObjectSize,
+                responseCacheDirectory, responseCacheMaxDiskSize, http2, acceptEncoding, dnsCache,
+                maxKeepAlive, idleConnectionTimeout, validateAfterInactivity);
+    }
+
+    @Override
+    public String toString() {
+        return "ClientConfig [ignoreHostnameVerification=" + ignoreHostnameVerification
+                + ", maxTotalConnections=" + maxTotalConnections
+                + ", maxConnectionsPerRoute=" + maxConnectionsPerRoute
+                + ", tlsSessionCacheSize=" + tlsSessionCacheSize
+                + ", tlsSessionTimeout=" + tlsSessionTimeout
+                + ", responseCache=" + responseCache
+                + ", responseCacheMaxEntries=" + responseCacheMaxEntries
+                + ", responseCacheMaxObjectSize=" + responseCacheMaxObjectSize
+                + ", responseCacheDirectory=" + responseCacheDirectory
+                + ", responseCacheMaxDiskSize=" + responseCacheMaxDiskSize
+                + ", http2=" + http2
+                + ", acceptEncoding=" + acceptEncoding
+                + ", dnsCache=" + dnsCache
+                + ", maxKeepAlive=" + maxKeepAlive
+                + ", idleConnectionTimeout=" + idleConnectionTimeout
+                + ", validateAfterInactivity=" + validateAfterInactivity + "]";
+    }
+
+    /**
+     * Builder of ClientConfig.
+     */
+    static final class Builder {
+        private boolean ignoreHostnameVerification = false;
+        private int maxTotalConnections = DEFAULT_MAX_TOTAL_CONNECTIONS;
+        private int maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+        private int tlsSessionCacheSize = DEFAULT_TLS_SESSION_CACHE_SIZE;
+        private int tlsSessionTimeout = DEFAULT_TLS_SESSION_TIMEOUT;
+        private boolean responseCache = false;
+        private int responseCacheMaxEntries = DEFAULT_RESPONSE_CACHE_MAX_ENTRIES;
+        private long responseCacheMaxObjectSize = DEFAULT_RESPONSE_CACHE_MAX_OBJECT_SIZE;
+        private String responseCacheDirectory = null;
+        private long responseCacheMaxDiskSize = DEFAULT_RESPONSE_CACHE_MAX_DISK_SIZE;
+        private boolean http2 = false;
+        private List<String> acceptEncoding = DEFAULT_ACCEPT_ENCODING;
+        private boolean dnsCache = false;
+        private long maxKeepAlive = DEFAULT_MAX_KEEP_ALIVE;
+        private long idleConnectionTimeout = DEFAULT_IDLE_CONNECTION_TIMEOUT;
+        private int validateAfterInactivity = DEFAULT_VALIDATE_AFTER_INACTIVITY;
+
+        private Builder() {
+        }
+
+        Builder ignoreHostnameVerification(boolean value) {
+            this.ignoreHostnameVerification = value;
+            return this;
+        }
+
+        Builder maxTotalConnections(int value) {
+            this.maxTotalConnections = value;
+            return this;
+        }
+
+        Builder maxConnectionsPerRoute(int value) {
+            this.maxConnectionsPerRoute = value;
+            return this;
+        }
+
+        Builder tlsSessionCacheSize(int value) {
+            this.tlsSessionCacheSize = value;
+            return this;
+        }
+
+        Builder tlsSessionTimeout(int value) {
+            this.tlsSessionTimeout = value;
+            return this;
+        }
+
+        Builder responseCache(boolean value) {
+            this.responseCache = value;
+            return this;
+        }
+
+        Builder responseCacheMaxEntries(int value) {
+            this.responseCacheMaxEntries = value;
+            return this;
+        }
+
+        Builder responseCacheMaxObjectSize(long value) {
+            this.responseCacheMaxObjectSize = value;
+            return this;
+        }
+
+        Builder responseCacheDirectory(String value) {
+            this.responseCacheDirectory = value;
+            return this;
+        }
+
+        Builder responseCacheMaxDiskSize(long value) {
+            this.responseCacheMaxDiskSize = value;
+            return this;
+        }
+
+        Builder http2(boolean value) {
+            this.http2 = value;
+            return this;
+        }
+
+        Builder acceptEncoding(List<String> value) {
+            this.acceptEncoding = Collections.unmodifiableList(value);
+            return this;
+        }
+
+        Builder dnsCache(boolean value) {
+            this.dnsCache = value;
+            return this;
+        }
+
+        Builder maxKeepAlive(long value) {
+            this.maxKeepAlive = value;
+            return this;
+        }
+
+        Builder idleConnectionTimeout(long value) {
+            this.idleConnectionTimeout = value;
+            return this;
+        }
+
+        Builder validateAfterInactivity(int value) {
+            this.validateAfterInactivity = value;
+            return this;
+        }
+
+        ClientConfig build() {
+            return new ClientConfig(this);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+/**
+ * JMX view of a shared connection pool.
+ */
+public interface ConnectionPoolMXBean {
+
+    /**
+     * @return configuration of the client owning the pool
+     */
+    String getConfig();
+
+    /**
+     * @return connections in use
+     */
+    int getLeased();
+
+    /**
+     * @return idle connections kept alive
+     */
+    int getAvailable();
+
+    /**
+     * @return requests waiting for a connection
+     */
+    int getPending();
+
+    /**
+     * @return max connections in total
+     */
+    int getMax();
+
+    /**
+     * @return connections opened since the pool was created. Its rate is the churn of the pool.
+     */
+    long getCreated();
+
+    /**
+     * @return idle or expired connections closed by the evictor
+     */
+    long getEvicted();
+}
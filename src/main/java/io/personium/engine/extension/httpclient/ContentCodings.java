@@ -0,0 +1,204 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.entity.DeflateInputStreamFactory;
+import org.apache.http.client.entity.GZIPInputStreamFactory;
+import org.apache.http.client.entity.InputStreamFactory;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.HTTP;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Content codings for response decoding and request body compression.
+ * <p>
+ * gzip and deflate are always available. br and zstd are decoded only when their decoder library
+ * (org.brotli:dec, com.github.luben:zstd-jni) is on the classpath; they are looked up by reflection,
+ * so the extension has no hard dependency on them.
+ */
+final class ContentCodings {
+
+    /** Logger. */
+    private static final Logger log = LoggerFactory.getLogger(ContentCodings.class);
+
+    /** gzip coding. */
+    static final String GZIP = "gzip";
+    /** deflate coding. */
+    static final String DEFLATE = "deflate";
+    /** Brotli coding. */
+    static final String BROTLI = "br";
+    /** Zstandard coding. */
+    static final String ZSTD = "zstd";
+    /** No coding. */
+    static final String IDENTITY = "identity";
+
+    /** Decoders of the available codings. */
+    private static final Map<String, InputStreamFactory> DECODERS = new HashMap<>();
+
+    static {
+        DECODERS.put(GZIP, GZIPInputStreamFactory.getInstance());
+        DECODERS.put(DEFLATE, DeflateInputStreamFactory.getInstance());
+        registerOptional(BROTLI, "org.brotli.dec.BrotliInputStream");
+        registerOptional(ZSTD, "com.github.luben.zstd.ZstdInputStream");
+    }
+
+    private ContentCodings() {
+    }
+
+    /**
+     * @param coding content coding
+     * @return true if the coding is one of gzip, deflate, br, zstd and identity
+     */
+    static boolean isKnown(String coding) {
+        return GZIP.equals(coding) || DEFLATE.equals(coding) || BROTLI.equals(coding)
+                || ZSTD.equals(coding) || IDENTITY.equals(coding);
+    }
+
+    /**
+     * @param coding content coding
+     * @return true if responses of the coding can be decoded
+     */
+    static boolean isDecodable(String coding) {
+        return DECODERS.containsKey(coding);
+    }
+
+    /**
+     * @param coding content coding
+     * @return true if request bodies can be compressed with the coding
+     */
+    static boolean isEncodable(String coding) {
+        return GZIP.equals(coding) || DEFLATE.equals(coding);
+    }
+
+    /**
+     * Create the decoder registry of the codings, in the order given.
+     * @param codings decodable content codings
+     * @return decoders by coding
+     */
+    static Map<String, InputStreamFactory> createDecoders(Iterable<String> codings) {
+        Map<String, InputStreamFactory> decoders = new LinkedHashMap<>();
+        for (String coding : codings) {
+            decoders.put(coding, DECODERS.get(coding));
+        }
+        return decoders;
+    }
+
+    /**
+     * Wrap the request body so that it is compressed while it is sent.
+     * @param entity request body
+     * @param coding gzip or deflate
+     * @return compressing request body
+     */
+    static HttpEntity compress(HttpEntity entity, String coding) {
+        return new CompressingEntity(entity, coding);
+    }
+
+    private static void registerOptional(String coding, String className) {
+        try {
+            Class<? extends InputStream> clazz =
+                    Class.forName(className, true, ContentCodings.class.getClassLoader()).asSubclass(InputStream.class);
+            DECODERS.put(coding, new ReflectiveInputStreamFactory(clazz.getConstructor(InputStream.class)));
+        } catch (ClassNotFoundException | NoSuchMethodException | LinkageError | ClassCastException e) {
+            log.debug("Content coding {} is not available: {}", coding, e.toString());
+        }
+    }
+
+    /**
+     * Decoder created by the InputStream constructor of a decoder library.
+     */
+    private static final class ReflectiveInputStreamFactory implements InputStreamFactory {
+        private final Constructor<? extends InputStream> constructor;
+
+        ReflectiveInputStreamFactory(Constructor<? extends InputStream> constructor) {
+            this.constructor = constructor;
+        }
+
+        @Override
+        public InputStream create(InputStream instream) throws IOException {
+            try {
+                return constructor.newInstance(instream);
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            } catch (ReflectiveOperationException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * Request body compressed while it is written. The compressed length is unknown, so it is sent chunked.
+     */
+    private static final class CompressingEntity extends HttpEntityWrapper {
+        private final String coding;
+
+        CompressingEntity(HttpEntity entity, String coding) {
+            super(entity);
+            this.coding = coding;
+        }
+
+        @Override
+        public Header getContentEncoding() {
+            return new BasicHeader(HTTP.CONTENT_ENCODING, coding);
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public boolean isChunked() {
+            return true;
+        }
+
+        @Override
+        public InputStream getContent() {
+            throw new UnsupportedOperationException("Compressed body can only be written");
+        }
+
+        @Override
+        public void writeTo(OutputStream outstream) throws IOException {
+            OutputStream compressing;
+            if (GZIP.equals(coding)) {
+                compressing = new GZIPOutputStream(outstream);
+            } else {
+                compressing = new DeflaterOutputStream(outstream);
+            }
+            try (OutputStream out = compressing) {
+                wrappedEntity.writeTo(out);
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time budget shared by the calls of a script.
+ * <p>
+ * Each call is charged with the time it took, and later calls may only use what is left.
+ * A degraded backend thus uses up the budget once instead of holding the engine thread on every call.
+ */
+final class DeadlineBudget {
+
+    /** Time left(milliseconds). */
+    private final AtomicLong remaining;
+
+    /**
+     * Constructor.
+     * @param budget total time(milliseconds) of the calls
+     */
+    DeadlineBudget(long budget) {
+        this.remaining = new AtomicLong(budget);
+    }
+
+    /**
+     * @return time left(milliseconds), 0 or less if the budget is used up
+     */
+    long remaining() {
+        return remaining.get();
+    }
+
+    /**
+     * Charge the time taken by a call.
+     * @param elapsed time taken(milliseconds)
+     */
+    void charge(long elapsed) {
+        remaining.addAndGet(-elapsed);
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.HttpConnectionFactory;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+/**
+ * Connection pool whose idle and expired connections are evicted in the background.
+ * <p>
+ * {@link HttpClientRegistry} calls {@link #evict()} periodically, which closes the available connections
+ * past their keep-alive or idle longer than the idle timeout, before a request could lease a connection the
+ * server has already closed. The pool counts the connections it opens and evicts, which tells its churn.
+ */
+final class EvictingConnectionManager extends PoolingHttpClientConnectionManager {
+
+    /** Time(milliseconds) after which an idle connection is evicted. */
+    private final long idleTimeout;
+    /** Number of opened connections. */
+    private final AtomicLong created;
+    /** Number of evicted connections. */
+    private final AtomicLong evicted = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param socketFactoryRegistry socket factories by scheme
+     * @param dnsResolver DNS resolver, or null for the system resolver
+     * @param idleTimeout time(milliseconds) after which an idle connection is evicted
+     */
+    EvictingConnectionManager(Registry<ConnectionSocketFactory> socketFactoryRegistry, DnsResolver dnsResolver,
+            long idleTimeout) {
+        this(socketFactoryRegistry, dnsResolver, idleTimeout, new AtomicLong());
+    }
+
+    private EvictingConnectionManager(Registry<ConnectionSocketFactory> socketFactoryRegistry,
+            DnsResolver dnsResolver, long idleTimeout, AtomicLong created) {
+        super(socketFactoryRegistry, new CountingConnectionFactory(created), dnsResolver);
+        this.idleTimeout = idleTimeout;
+        this.created = created;
+    }
+
+    /**
+     * Close the available connections that are expired or idle longer than the idle timeout.
+     * @return number of evicted connections
+     */
+    int evict() {
+        long now = System.currentTimeMillis();
+        long idleDeadline = now - idleTimeout;
+        AtomicInteger count = new AtomicInteger();
+        enumAvailable(entry -> {
+            if (entry.isExpired(now) || entry.getUpdated() <= idleDeadline) {
+                entry.close();
+                count.incrementAndGet();
+            }
+        });
+        evicted.addAndGet(count.get());
+        return count.get();
+    }
+
+    /**
+     * @return number of opened connections
+     */
+    long getCreated() {
+        return created.get();
+    }
+
+    /**
+     * @return number of evicted connections
+     */
+    long getEvicted() {
+        return evicted.get();
+    }
+
+    /**
+     * Connection factory counting the connections it creates.
+     */
+    private static final class CountingConnectionFactory
+            implements HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection> {
+        private final AtomicLong created;
+
+        CountingConnectionFactory(AtomicLong created) {
+            this.created = created;
+        }
+
+        @Override
+        public ManagedHttpClientConnection create(HttpRoute route, ConnectionConfig config) {
+            created.incrementAndGet();
+            return ManagedHttpClientConnectionFactory.INSTANCE.create(route, config);
+        }
+    }
+}
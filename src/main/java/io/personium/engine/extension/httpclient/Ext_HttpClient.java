@@ -18,21 +18,32 @@ package io.personium.engine.extension.httpclient;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
 import java.security.GeneralSecurityException;
-import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map.Entry;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
-
+import org.apache.http.ConnectionClosedException;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.MalformedChunkCodingException;
 import org.apache.http.ParseException;
+import org.apache.http.client.cache.CacheResponseStatus;
+import org.apache.http.client.cache.HttpCacheContext;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
 import org.apache.http.client.methods.HttpGet;
@@ -40,15 +51,30 @@ import org.apache.http.client.methods.HttpPatch;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.entity.BufferedHttpEntity;
+import org.apache.http.client.utils.HttpClientUtils;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.mime.HttpMultipartMode;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.entity.mime.content.ByteArrayBody;
+import org.apache.http.entity.mime.content.ContentBody;
+import org.apache.http.entity.mime.content.InputStreamBody;
+import org.apache.http.entity.mime.content.StringBody;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
 import org.apache.http.util.TextUtils;
 import org.json.simple.JSONObject;
+import org.mozilla.javascript.EcmaError;
+import org.mozilla.javascript.NativeArray;
 import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.TopLevel;
+import org.mozilla.javascript.Wrapper;
 import org.mozilla.javascript.annotations.JSConstructor;
 import org.mozilla.javascript.annotations.JSFunction;
 import org.slf4j.Logger;
@@ -61,6 +87,9 @@ import io.personium.engine.extension.wrapper.PersoniumInputStream;
 
 /**
  * Engine-Extension HttpClient.
+ * <p>
+ * The circuit breakers of origins are off by default, so that a failing origin is answered with its own
+ * responses. A client created with "CircuitBreaker": true fails fast with CircuitBreakerOpenError instead.
  */
 @SuppressWarnings("serial")
 public class Ext_HttpClient extends AbstractExtensionScriptableObject { // CHECKSTYLE IGNORE - Method name is for extension specification.
@@ -71,12 +100,170 @@ public class Ext_HttpClient extends AbstractExtensionScriptableObject { // CHECK
     /** Json keys. */
     private static final String KEY_SKIP_HOSTNAME_VERIFICATION = "IgnoreHostnameVerification";
     private static final String KEY_DEFAULT_HEADERS = "DefaultHeaders";
+    private static final String KEY_MAX_TOTAL_CONNECTIONS = "MaxTotalConnections";
+    private static final String KEY_MAX_CONNECTIONS_PER_ROUTE = "MaxConnectionsPerRoute";
+    private static final String KEY_MAX_KEEP_ALIVE = "MaxKeepAlive";
+    private static final String KEY_IDLE_CONNECTION_TIMEOUT = "IdleConnectionTimeout";
+    private static final String KEY_VALIDATE_AFTER_INACTIVITY = "ValidateAfterInactivity";
+    private static final String KEY_TLS_SESSION_CACHE_SIZE = "TlsSessionCacheSize";
+    private static final String KEY_TLS_SESSION_TIMEOUT = "TlsSessionTimeout";
+    private static final String KEY_RESPONSE_CACHE = "ResponseCache";
+    private static final String KEY_RESPONSE_CACHE_MAX_ENTRIES = "ResponseCacheMaxEntries";
+    private static final String KEY_RESPONSE_CACHE_MAX_OBJECT_SIZE = "ResponseCacheMaxObjectSize";
+    private static final String KEY_RESPONSE_CACHE_DIRECTORY = "ResponseCacheDirectory";
+    private static final String KEY_RESPONSE_CACHE_MAX_DISK_SIZE = "ResponseCacheMaxDiskSize";
+    private static final String KEY_STREAM_LEASE_TIMEOUT = "StreamLeaseTimeout";
+    private static final String KEY_HTTP2 = "Http2";
+    private static final String KEY_ACCEPT_ENCODING = "AcceptEncoding";
+    private static final String KEY_DNS_CACHE = "DnsCache";
+    private static final String KEY_REQUEST_COMPRESSION = "RequestCompression";
+    private static final String KEY_REQUEST_COMPRESSION_THRESHOLD = "RequestCompressionThreshold";
+    private static final String KEY_CONNECT_TIMEOUT = "ConnectTimeout";
+    private static final String KEY_CONNECTION_REQUEST_TIMEOUT = "ConnectionRequestTimeout";
+    private static final String KEY_SOCKET_TIMEOUT = "SocketTimeout";
+    private static final String KEY_REQUEST_TIMEOUT = "RequestTimeout";
+    private static final String KEY_DEADLINE_BUDGET = "DeadlineBudget";
+    private static final String KEY_RETRY_MAX_ATTEMPTS = "RetryMaxAttempts";
+    private static final String KEY_RETRY_BASE_DELAY = "RetryBaseDelay";
+    private static final String KEY_RETRY_MAX_DELAY = "RetryMaxDelay";
+    private static final String KEY_RETRY_NON_IDEMPOTENT = "RetryNonIdempotent";
+    private static final String KEY_CIRCUIT_BREAKER = "CircuitBreaker";
+    private static final String KEY_NATIVE_RESPONSE = "NativeResponse";
+    private static final String KEY_JSON_MAX_DEPTH = "JsonMaxDepth";
+    private static final String KEY_JSON_MAX_SIZE = "JsonMaxSize";
+    private static final String KEY_MAX_RESPONSE_SIZE = "MaxResponseSize";
+    private static final String KEY_REQUEST_COALESCING = "RequestCoalescing";
+    private static final String KEY_CELL = "Cell";
+    private static final String KEY_ADAPTIVE_CONCURRENCY = "AdaptiveConcurrency";
+
+    /** Json keys of per call options. */
+    private static final String KEY_OPTION_CONNECT_TIMEOUT = "connectTimeout";
+    private static final String KEY_OPTION_CONNECTION_REQUEST_TIMEOUT = "connectionRequestTimeout";
+    private static final String KEY_OPTION_SOCKET_TIMEOUT = "socketTimeout";
+    private static final String KEY_OPTION_TIMEOUT = "timeout";
+    private static final String KEY_OPTION_MAX_ATTEMPTS = "maxAttempts";
+    private static final String KEY_OPTION_NATIVE_RESPONSE = "nativeResponse";
+    private static final String KEY_OPTION_RESPONSE_TYPE = "responseType";
+    private static final String KEY_OPTION_MAX_RESPONSE_SIZE = "maxResponseSize";
+    /** Json keys of ranged download options. */
+    private static final String KEY_RANGED_RANGE_SIZE = "rangeSize";
+    private static final String KEY_RANGED_CONCURRENCY = "concurrency";
+    private static final String KEY_RANGED_WINDOW = "window";
+
+    /** Json keys of batch request descriptors and options. */
+    private static final String KEY_BATCH_METHOD = "method";
+    private static final String KEY_BATCH_URL = "url";
+    private static final String KEY_BATCH_HEADERS = "headers";
+    private static final String KEY_BATCH_CONTENT_TYPE = "contentType";
+    private static final String KEY_BATCH_BODY = "body";
+    private static final String KEY_BATCH_RESPONDS_AS_STREAM = "respondsAsStream";
+    private static final String KEY_BATCH_CONCURRENCY = "concurrency";
+    private static final String KEY_BATCH_TIMEOUT = "timeout";
+    /** Json keys of multipart part descriptors. */
+    private static final String KEY_PART_NAME = "name";
+    private static final String KEY_PART_BODY = "body";
+    private static final String KEY_PART_FILENAME = "filename";
+    private static final String KEY_PART_CONTENT_TYPE = "contentType";
+
+    /** Content type of a text part without contentType. */
+    private static final ContentType TEXT_PLAIN_UTF_8 = ContentType.TEXT_PLAIN.withCharset(StandardCharsets.UTF_8);
+
+    /** Default timeout(milliseconds) of inactivity of connections leased by response streams. */
+    private static final long DEFAULT_STREAM_LEASE_TIMEOUT = 60000;
+    /** Default bytes of a range of a ranged download. */
+    private static final int DEFAULT_RANGE_SIZE = 4 * 1024 * 1024;
+    /** Default max number of ranges fetched at the same time. */
+    private static final int DEFAULT_RANGED_CONCURRENCY = 4;
+    /** Default max bytes of a ranged download held in memory. */
+    private static final long DEFAULT_RANGED_WINDOW = 32L * 1024 * 1024;
+
+    /** Name of the error thrown while the circuit breaker of the origin is open. */
+    private static final String CIRCUIT_BREAKER_OPEN_ERROR = "CircuitBreakerOpenError";
+
+    /** No headers. */
+    private static final Header[] NO_HEADERS = new Header[0];
+
+    /** Default max number of requests of a batch running at the same time. */
+    private static final int DEFAULT_BATCH_CONCURRENCY = 10;
+    /** Default deadline(milliseconds) of a batch. */
+    private static final long DEFAULT_BATCH_TIMEOUT = 60000;
+    /** Name of the error thrown when a response body exceeds the max size. */
+    private static final String RESPONSE_TOO_LARGE_ERROR = "ResponseTooLargeError";
+    /** Name of the error thrown when the bulkhead of the origin rejects a call of the cell. */
+    private static final String BULKHEAD_REJECTED_ERROR = "BulkheadRejectedError";
+    /** Name of the error thrown when the adaptive concurrency limit of the origin is reached. */
+    private static final String CONCURRENCY_LIMIT_ERROR = "ConcurrencyLimitError";
+
+    /** Default of the max size(bytes) of response bodies read in memory. */
+    private static final long DEFAULT_MAX_RESPONSE_SIZE = 64L * 1024 * 1024;
+    /** Max size(bytes) of response bodies read in memory, set by system property. Scripts can only lower it. */
+    private static final long MAX_RESPONSE_SIZE =
+            Long.getLong("io.personium.engine.extension.httpclient.maxResponseSize", DEFAULT_MAX_RESPONSE_SIZE);
+    /** Initial capacity of the text of a response body without Content-Length. */
+    private static final int TEXT_INITIAL_CAPACITY = 4096;
+    /** Max initial capacity of the text of a response body, whatever its Content-Length. */
+    private static final int TEXT_MAX_INITIAL_CAPACITY = 1024 * 1024;
+    /** Size of the buffer decoding text. */
+    private static final int TEXT_BUFFER_SIZE = 8192;
+
+    /** Default max nesting depth of JSON responses. */
+    private static final int DEFAULT_JSON_MAX_DEPTH = 64;
+    /** Default of the max nesting depth of JSON responses allowed to scripts. */
+    private static final int DEFAULT_JSON_MAX_DEPTH_LIMIT = 512;
+    /**
+     * Max nesting depth of JSON responses allowed to scripts, set by system property.
+     * The parser recurses per level, so this bounds its stack as well.
+     */
+    private static final int JSON_MAX_DEPTH_LIMIT =
+            Integer.getInteger("io.personium.engine.extension.httpclient.jsonMaxDepth", DEFAULT_JSON_MAX_DEPTH_LIMIT);
+
+    /** Effective configuration of the shared HttpClient. */
+    private ClientConfig clientConfig = ClientConfig.DEFAULT;
+
+    /** Default headers, parsed once. */
+    private Header[] defaultHeaders = NO_HEADERS;
+
+    /** Timeout(milliseconds) of inactivity of connections leased by response streams. */
+    private long streamLeaseTimeout = DEFAULT_STREAM_LEASE_TIMEOUT;
+
+    /** Content coding of compressed request bodies. */
+    private String requestCompression = ContentCodings.GZIP;
 
-    /** Ignore SSL varification flag. */
-    private boolean ignoreHostnameVerification = false;
+    /** Min size(bytes) of request bodies to compress. 0:No compression. */
+    private long requestCompressionThreshold = 0;
 
-    /** Default headers. */
-    private NativeObject defaultHeaders = null;
+    /** Default timeouts of requests. */
+    private RequestTimeouts timeouts = RequestTimeouts.NONE;
+
+    /** Time budget shared by the calls of this client. null:No budget. */
+    private DeadlineBudget budget = null;
+
+    /** Retry policy of requests. */
+    private RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+
+    /** Use the circuit breakers of origins. Off unless enabled. */
+    private boolean circuitBreaker = false;
+
+    /** Return status as Number and headers as a native object instead of JSON text. */
+    private boolean nativeResponse = false;
+
+    /** Max nesting depth of JSON responses. */
+    private int jsonMaxDepth = DEFAULT_JSON_MAX_DEPTH;
+
+    /** Max size(bytes) of JSON responses. */
+    private long jsonMaxSize = Long.MAX_VALUE;
+
+    /** Max size(bytes) of response bodies read in memory. */
+    private long maxResponseSize = MAX_RESPONSE_SIZE;
+
+    /** Share one request among identical concurrent GETs. */
+    private boolean requestCoalescing = false;
+
+    /** Cell whose calls are bounded by the bulkheads of the origins, or null for no bulkhead. */
+    private String cell = null;
+
+    /** Limit the calls in progress to an origin by its observed latency and failures. */
+    private boolean adaptiveConcurrency = false;
 
     /**
      * Default constructor.
@@ -89,6 +276,42 @@ public class Ext_HttpClient extends AbstractExtensionScriptableObject { // CHECK
      * @param parameters Json parameters.<p>
      * IgnoreHostnameVerification true:Ignore ssl verification.
      * DefaultHeaders String: Set default headers.
+     * MaxTotalConnections Number: Max connections in total of the shared connection pool.
+     * MaxConnectionsPerRoute Number: Max connections per route of the shared connection pool.
+     * MaxKeepAlive Number: Max time(milliseconds) a connection is kept alive, which caps the server's Keep-Alive.
+     * IdleConnectionTimeout Number: Time(milliseconds) after which an idle connection is evicted from the pool.
+     * ValidateAfterInactivity Number: Inactivity(milliseconds) after which a connection is checked before reuse.
+     * TlsSessionCacheSize Number: Max number of cached TLS sessions.
+     * TlsSessionTimeout Number: Timeout(seconds) of cached TLS sessions.
+     * ResponseCache true:Cache responses in memory according to RFC 7234.
+     * ResponseCacheMaxEntries Number: Max entries of response cache.
+     * ResponseCacheMaxObjectSize Number: Max body size(bytes) of a cached response.
+     * ResponseCacheDirectory String: Keep response cache in memory-mapped files in the named directory under the root.
+     * ResponseCacheMaxDiskSize Number: Max total body size(bytes) of response cache on disk.
+     * StreamLeaseTimeout Number: Time(milliseconds) without reads after which a response stream releases its
+     * connection (default 60000).
+     * Http2 true:Send requests over HTTP/2, multiplexed on one connection per origin.
+     * AcceptEncoding String: Comma separated content codings of responses to decode (gzip, deflate, br, zstd).
+     * DnsCache true:Cache resolved addresses and refresh them in the background.
+     * RequestCompression String: Content coding of compressed request bodies (gzip or deflate).
+     * RequestCompressionThreshold Number: Min size(bytes) of request bodies to compress.
+     * ConnectTimeout Number: Timeout(milliseconds) to establish a connection.
+     * ConnectionRequestTimeout Number: Timeout(milliseconds) to lease a connection from the pool.
+     * SocketTimeout Number: Timeout(milliseconds) of inactivity while reading a response.
+     * RequestTimeout Number: Timeout(milliseconds) of a whole request, until the response is returned.
+     * DeadlineBudget Number: Total time(milliseconds) of all the calls of this client.
+     * RetryMaxAttempts Number: Max attempts of a request, including the first one. 1 disables retries.
+     * RetryBaseDelay Number: Delay(milliseconds) before the first retry, doubled on each retry.
+     * RetryMaxDelay Number: Max delay(milliseconds) before a retry.
+     * RetryNonIdempotent true:Retry POST and PATCH too.
+     * CircuitBreaker true:Fail fast while the circuit breaker of the origin is open.
+     * NativeResponse true:Return status as Number and headers as a case-insensitive native object.
+     * JsonMaxDepth Number: Max nesting depth of responses parsed with responseType "json", below the operator's.
+     * JsonMaxSize Number: Max size(bytes) of responses parsed with responseType "json".
+     * MaxResponseSize Number: Max size(bytes) of bodies read in memory (text, json, HTTP/2), below the operator's.
+     * RequestCoalescing true:Send one request for identical concurrent GETs not returned as stream.
+     * Cell String: Name of the cell making the calls, which bounds them per cell by the bulkheads of the origins.
+     * AdaptiveConcurrency true:Adapt the max calls in progress to an origin to its latency and failures.
      */
     @JSConstructor
     public Ext_HttpClient(NativeObject parameters) {
@@ -96,22 +319,330 @@ public class Ext_HttpClient extends AbstractExtensionScriptableObject { // CHECK
         setLogger(this.getClass(), logger);
 
         if (parameters != null && !parameters.isEmpty()) {
-            setIgnoreHostnameVerification(parameters);
+            ClientConfig.Builder config = ClientConfig.builder();
+            setIgnoreHostnameVerification(parameters, config);
+            setConnectionPoolSize(parameters, config);
+            setKeepAlive(parameters, config);
+            setTlsSessionCache(parameters, config);
+            setResponseCache(parameters, config);
+            setHttp2(parameters, config);
+            setAcceptEncoding(parameters, config);
+            setDnsCache(parameters, config);
+            clientConfig = config.build();
             setDefaultHeaders(parameters);
+            setStreamLeaseTimeout(parameters);
+            setRequestCompression(parameters);
+            setTimeouts(parameters);
+            setRetryPolicy(parameters);
+            setCircuitBreaker(parameters);
+            setNativeResponse(parameters);
+            setJsonLimits(parameters);
+            setMaxResponseSize(parameters);
+            setRequestCoalescing(parameters);
+            cell = getStringParameter(parameters, KEY_CELL);
+            setAdaptiveConcurrency(parameters);
         }
     }
 
-    private void setIgnoreHostnameVerification(NativeObject parameters) {
-        Object argParam = parameters.get(KEY_SKIP_HOSTNAME_VERIFICATION);
+    private void setIgnoreHostnameVerification(NativeObject parameters, ClientConfig.Builder config) {
+        Boolean argParam = getBooleanParameter(parameters, KEY_SKIP_HOSTNAME_VERIFICATION);
         if (argParam == null) {
             return;
         }
+        config.ignoreHostnameVerification(argParam);
+    }
+
+    private void setConnectionPoolSize(NativeObject parameters, ClientConfig.Builder config) {
+        Integer maxTotal = getPositiveIntParameter(parameters, KEY_MAX_TOTAL_CONNECTIONS);
+        if (maxTotal != null) {
+            config.maxTotalConnections(maxTotal);
+        }
+        Integer maxPerRoute = getPositiveIntParameter(parameters, KEY_MAX_CONNECTIONS_PER_ROUTE);
+        if (maxPerRoute != null) {
+            config.maxConnectionsPerRoute(maxPerRoute);
+        }
+    }
+
+    private void setKeepAlive(NativeObject parameters, ClientConfig.Builder config) {
+        Long maxKeepAlive = getPositiveLongParameter(parameters, KEY_MAX_KEEP_ALIVE);
+        if (maxKeepAlive != null) {
+            config.maxKeepAlive(maxKeepAlive);
+        }
+        Long idleTimeout = getPositiveLongParameter(parameters, KEY_IDLE_CONNECTION_TIMEOUT);
+        if (idleTimeout != null) {
+            config.idleConnectionTimeout(idleTimeout);
+        }
+        Integer validateAfterInactivity = getPositiveIntParameter(parameters, KEY_VALIDATE_AFTER_INACTIVITY);
+        if (validateAfterInactivity != null) {
+            config.validateAfterInactivity(validateAfterInactivity);
+        }
+    }
+
+    private void setTlsSessionCache(NativeObject parameters, ClientConfig.Builder config) {
+        Integer cacheSize = getPositiveIntParameter(parameters, KEY_TLS_SESSION_CACHE_SIZE);
+        if (cacheSize != null) {
+            config.tlsSessionCacheSize(cacheSize);
+        }
+        Integer timeout = getPositiveIntParameter(parameters, KEY_TLS_SESSION_TIMEOUT);
+        if (timeout != null) {
+            config.tlsSessionTimeout(timeout);
+        }
+    }
+
+    private void setResponseCache(NativeObject parameters, ClientConfig.Builder config) {
+        Boolean responseCache = getBooleanParameter(parameters, KEY_RESPONSE_CACHE);
+        if (responseCache != null) {
+            config.responseCache(responseCache);
+        }
+        Integer maxEntries = getPositiveIntParameter(parameters, KEY_RESPONSE_CACHE_MAX_ENTRIES);
+        if (maxEntries != null) {
+            config.responseCacheMaxEntries(maxEntries);
+        }
+        Long maxObjectSize = getPositiveLongParameter(parameters, KEY_RESPONSE_CACHE_MAX_OBJECT_SIZE);
+        if (maxObjectSize != null) {
+            config.responseCacheMaxObjectSize(maxObjectSize);
+        }
+        String directory = getStringParameter(parameters, KEY_RESPONSE_CACHE_DIRECTORY);
+        if (directory != null) {
+            if (MappedFileCacheStorage.resolve(directory) == null) {
+                String message = String.format("Parameter [%s] is not a directory name: %s",
+                        KEY_RESPONSE_CACHE_DIRECTORY, directory);
+                this.getLogger().info(message);
+                throw ExtensionErrorConstructor.construct(message);
+            }
+            // Storage on disk implies response cache.
+            config.responseCache(true).responseCacheDirectory(directory);
+        }
+        Long maxDiskSize = getPositiveLongParameter(parameters, KEY_RESPONSE_CACHE_MAX_DISK_SIZE);
+        if (maxDiskSize != null) {
+            config.responseCacheMaxDiskSize(maxDiskSize);
+        }
+    }
+
+    private void setHttp2(NativeObject parameters, ClientConfig.Builder config) {
+        Boolean http2 = getBooleanParameter(parameters, KEY_HTTP2);
+        if (http2 != null) {
+            config.http2(http2);
+        }
+    }
+
+    private void setDnsCache(NativeObject parameters, ClientConfig.Builder config) {
+        Boolean dnsCache = getBooleanParameter(parameters, KEY_DNS_CACHE);
+        if (dnsCache != null) {
+            config.dnsCache(dnsCache);
+        }
+    }
+
+    private void setAcceptEncoding(NativeObject parameters, ClientConfig.Builder config) {
+        String acceptEncoding = getStringParameter(parameters, KEY_ACCEPT_ENCODING);
+        if (acceptEncoding == null) {
+            return;
+        }
+        List<String> codings = new ArrayList<>();
+        for (String value : acceptEncoding.split(",")) {
+            String coding = value.trim().toLowerCase(Locale.ENGLISH);
+            if (!ContentCodings.isKnown(coding)) {
+                String message = String.format("Parameter [%s] is not supported: %s", KEY_ACCEPT_ENCODING, coding);
+                this.getLogger().info(message);
+                throw ExtensionErrorConstructor.construct(message);
+            }
+            if (!ContentCodings.isDecodable(coding)) {
+                // identity, or a coding whose decoder library is not installed.
+                this.getLogger().info(String.format("Content coding is not decoded: %s", coding));
+                continue;
+            }
+            if (!codings.contains(coding)) {
+                codings.add(coding);
+            }
+        }
+        config.acceptEncoding(codings);
+    }
+
+    private void setRequestCompression(NativeObject parameters) {
+        String coding = getStringParameter(parameters, KEY_REQUEST_COMPRESSION);
+        if (coding != null) {
+            coding = coding.trim().toLowerCase(Locale.ENGLISH);
+            if (!ContentCodings.isEncodable(coding)) {
+                String message = String.format("Parameter [%s] is not supported: %s", KEY_REQUEST_COMPRESSION, coding);
+                this.getLogger().info(message);
+                throw ExtensionErrorConstructor.construct(message);
+            }
+            requestCompression = coding;
+        }
+        Long threshold = getPositiveLongParameter(parameters, KEY_REQUEST_COMPRESSION_THRESHOLD);
+        if (threshold != null) {
+            requestCompressionThreshold = threshold;
+        }
+    }
+
+    private void setTimeouts(NativeObject parameters) {
+        timeouts = getTimeouts(parameters, RequestTimeouts.NONE, KEY_CONNECT_TIMEOUT,
+                KEY_CONNECTION_REQUEST_TIMEOUT, KEY_SOCKET_TIMEOUT, KEY_REQUEST_TIMEOUT);
+        Long deadlineBudget = getPositiveLongParameter(parameters, KEY_DEADLINE_BUDGET);
+        if (deadlineBudget != null) {
+            budget = new DeadlineBudget(deadlineBudget);
+        }
+    }
+
+    private void setCircuitBreaker(NativeObject parameters) {
+        Boolean argParam = getBooleanParameter(parameters, KEY_CIRCUIT_BREAKER);
+        if (argParam != null) {
+            circuitBreaker = argParam;
+        }
+    }
+
+    private void setNativeResponse(NativeObject parameters) {
+        Boolean argParam = getBooleanParameter(parameters, KEY_NATIVE_RESPONSE);
+        if (argParam != null) {
+            nativeResponse = argParam;
+        }
+    }
+
+    private void setJsonLimits(NativeObject parameters) {
+        Integer maxDepth = getPositiveIntParameter(parameters, KEY_JSON_MAX_DEPTH);
+        if (maxDepth != null) {
+            jsonMaxDepth = Math.min(JSON_MAX_DEPTH_LIMIT, maxDepth);
+        }
+        Long maxSize = getPositiveLongParameter(parameters, KEY_JSON_MAX_SIZE);
+        if (maxSize != null) {
+            jsonMaxSize = maxSize;
+        }
+    }
+
+    private void setMaxResponseSize(NativeObject parameters) {
+        Long maxSize = getPositiveLongParameter(parameters, KEY_MAX_RESPONSE_SIZE);
+        if (maxSize != null) {
+            maxResponseSize = Math.min(MAX_RESPONSE_SIZE, maxSize);
+        }
+    }
+
+    private void setRequestCoalescing(NativeObject parameters) {
+        Boolean argParam = getBooleanParameter(parameters, KEY_REQUEST_COALESCING);
+        if (argParam != null) {
+            requestCoalescing = argParam;
+        }
+    }
+
+    private void setAdaptiveConcurrency(NativeObject parameters) {
+        Boolean argParam = getBooleanParameter(parameters, KEY_ADAPTIVE_CONCURRENCY);
+        if (argParam != null) {
+            adaptiveConcurrency = argParam;
+        }
+    }
+
+    private void setRetryPolicy(NativeObject parameters) {
+        int maxAttempts = retryPolicy.getMaxAttempts();
+        long baseDelay = retryPolicy.getBaseDelay();
+        long maxDelay = retryPolicy.getMaxDelay();
+        boolean retryNonIdempotent = retryPolicy.isRetryNonIdempotent();
+        Integer maxAttemptsParam = getPositiveIntParameter(parameters, KEY_RETRY_MAX_ATTEMPTS);
+        if (maxAttemptsParam != null) {
+            maxAttempts = maxAttemptsParam;
+        }
+        Long baseDelayParam = getPositiveLongParameter(parameters, KEY_RETRY_BASE_DELAY);
+        if (baseDelayParam != null) {
+            baseDelay = baseDelayParam;
+        }
+        Long maxDelayParam = getPositiveLongParameter(parameters, KEY_RETRY_MAX_DELAY);
+        if (maxDelayParam != null) {
+            maxDelay = maxDelayParam;
+        }
+        Boolean retryNonIdempotentParam = getBooleanParameter(parameters, KEY_RETRY_NON_IDEMPOTENT);
+        if (retryNonIdempotentParam != null) {
+            retryNonIdempotent = retryNonIdempotentParam;
+        }
+        retryPolicy = new RetryPolicy(maxAttempts, baseDelay, maxDelay, retryNonIdempotent);
+    }
+
+    /**
+     * Read timeouts from parameters.
+     * @param parameters parameters
+     * @param defaults timeouts used for the keys not set
+     * @param connectKey key of connect timeout
+     * @param connectionRequestKey key of connection lease timeout
+     * @param socketKey key of socket timeout
+     * @param requestKey key of total request timeout
+     * @return timeouts
+     */
+    private RequestTimeouts getTimeouts(NativeObject parameters, RequestTimeouts defaults, String connectKey,
+            String connectionRequestKey, String socketKey, String requestKey) {
+        RequestTimeouts.Builder builder = defaults.toBuilder();
+        Integer connectTimeout = getPositiveIntParameter(parameters, connectKey);
+        if (connectTimeout != null) {
+            builder.connectTimeout(connectTimeout);
+        }
+        Integer connectionRequestTimeout = getPositiveIntParameter(parameters, connectionRequestKey);
+        if (connectionRequestTimeout != null) {
+            builder.connectionRequestTimeout(connectionRequestTimeout);
+        }
+        Integer socketTimeout = getPositiveIntParameter(parameters, socketKey);
+        if (socketTimeout != null) {
+            builder.socketTimeout(socketTimeout);
+        }
+        Integer requestTimeout = getPositiveIntParameter(parameters, requestKey);
+        if (requestTimeout != null) {
+            builder.requestTimeout(requestTimeout);
+        }
+        return builder.build();
+    }
+
+    private void setStreamLeaseTimeout(NativeObject parameters) {
+        Long timeout = getPositiveLongParameter(parameters, KEY_STREAM_LEASE_TIMEOUT);
+        if (timeout != null) {
+            streamLeaseTimeout = timeout;
+        }
+    }
+
+    private Boolean getBooleanParameter(NativeObject parameters, String key) {
+        Object argParam = parameters.get(key);
+        if (argParam == null) {
+            return null;
+        }
         if (!(argParam instanceof Boolean)) {
-            String message = String.format("Parameter [%s] is not Boolean.", KEY_SKIP_HOSTNAME_VERIFICATION);
+            String message = String.format("Parameter [%s] is not Boolean.", key);
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        return (Boolean) argParam;
+    }
+
+    private String getStringParameter(NativeObject parameters, String key) {
+        Object argParam = parameters.get(key);
+        if (argParam == null) {
+            return null;
+        }
+        if (!(argParam instanceof CharSequence) || TextUtils.isEmpty((CharSequence) argParam)) {
+            String message = String.format("Parameter [%s] is not String.", key);
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        return argParam.toString();
+    }
+
+    private Integer getPositiveIntParameter(NativeObject parameters, String key) {
+        Object argParam = parameters.get(key);
+        if (argParam == null) {
+            return null;
+        }
+        if (!(argParam instanceof Number) || ((Number) argParam).intValue() <= 0) {
+            String message = String.format("Parameter [%s] is not positive Number.", key);
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        return ((Number) argParam).intValue();
+    }
+
+    private Long getPositiveLongParameter(NativeObject parameters, String key) {
+        Object argParam = parameters.get(key);
+        if (argParam == null) {
+            return null;
+        }
+        if (!(argParam instanceof Number) || ((Number) argParam).longValue() <= 0) {
+            String message = String.format("Parameter [%s] is not positive Number.", key);
             this.getLogger().info(message);
             throw ExtensionErrorConstructor.construct(message);
         }
-        ignoreHostnameVerification = (Boolean) argParam;
+        return ((Number) argParam).longValue();
     }
 
     private void setDefaultHeaders(NativeObject parameters) {
@@ -124,7 +655,24 @@ public class Ext_HttpClient extends AbstractExtensionScriptableObject { // CHECK
             this.getLogger().info(message);
             throw ExtensionErrorConstructor.construct(message);
         }
-        defaultHeaders = (NativeObject) argParam;
+        NativeObject headers = (NativeObject) argParam;
+        List<Header> list = new ArrayList<>(headers.size());
+        for (Entry<Object, Object> e : headers.entrySet()) {
+            String name = e.getKey().toString();
+            Object value = e.getValue();
+            if (name.isEmpty() || !(value instanceof CharSequence || value instanceof Number
+                    || value instanceof Boolean) || containsLineBreak(name) || containsLineBreak(value.toString())) {
+                String message = String.format("Parameter [%s] has an invalid header: %s", KEY_DEFAULT_HEADERS, name);
+                this.getLogger().info(message);
+                throw ExtensionErrorConstructor.construct(message);
+            }
+            list.add(new BasicHeader(name, value.toString()));
+        }
+        defaultHeaders = list.toArray(NO_HEADERS);
+    }
+
+    private static boolean containsLineBreak(String s) {
+        return s.indexOf('\r') >= 0 || s.indexOf('\n') >= 0;
     }
 
     /**
@@ -142,22 +690,107 @@ public class Ext_HttpClient extends AbstractExtensionScriptableObject { // CHECK
      * @param respondsAsStream true:stream/false:text
      * @return JSONObject
      */
-    @JSFunction
     public NativeObject get(String url, NativeObject headers, boolean respondsAsStream) {
+        return get(url, headers, respondsAsStream, null);
+    }
+
+    /**
+     * get.
+     * @param url String
+     * @param headers JSONObject
+     * @param respondsAsStream true:stream/false:text
+     * @param options {connectTimeout, connectionRequestTimeout, socketTimeout, timeout, maxAttempts, nativeResponse,
+     *                responseType, maxResponseSize}
+     * @return JSONObject
+     */
+    @JSFunction
+    public NativeObject get(String url, NativeObject headers, boolean respondsAsStream, NativeObject options) {
         // Verification.
         verifyParamIsEmpty(url, "url");
 
         HttpGet get = new HttpGet(url);
         addRequestHeaders(get, headers);
 
-        try (CloseableHttpClient httpclient = createHttpClient()) {
-            // Request
-            HttpResponse res = httpclient.execute(get);
-            // Response
-            return createResponseToJavascript(res, respondsAsStream);
-        } catch (IOException e) {
-            throw ExtensionErrorConstructor.construct(createErrorMessage(e));
+        return execute(get, respondsAsStream, options);
+    }
+
+    /**
+     * getRanged.
+     * @param url String
+     * @param headers JSONObject
+     * @return JSONObject
+     */
+    public NativeObject getRanged(String url, NativeObject headers) {
+        return getRanged(url, headers, null);
+    }
+
+    /**
+     * getRanged.
+     * Download a large resource by byte ranges fetched in parallel, returned as one stream.
+     * The first range tells whether the server supports ranges and the length of the resource.
+     * If the server does not send the range, the resource is fetched by a plain GET.
+     * @param url String
+     * @param headers JSONObject
+     * @param options {rangeSize, concurrency, window, connectTimeout, connectionRequestTimeout, socketTimeout,
+     *                timeout, maxAttempts, nativeResponse}
+     * @return JSONObject
+     */
+    @JSFunction
+    public NativeObject getRanged(String url, NativeObject headers, NativeObject options) {
+        // Verification.
+        verifyParamIsEmpty(url, "url");
+
+        int rangeSize = DEFAULT_RANGE_SIZE;
+        int concurrency = DEFAULT_RANGED_CONCURRENCY;
+        long window = DEFAULT_RANGED_WINDOW;
+        if (options != null) {
+            Integer rangeSizeParam = getPositiveIntParameter(options, KEY_RANGED_RANGE_SIZE);
+            if (rangeSizeParam != null) {
+                rangeSize = rangeSizeParam;
+            }
+            Integer concurrencyParam = getPositiveIntParameter(options, KEY_RANGED_CONCURRENCY);
+            if (concurrencyParam != null) {
+                concurrency = concurrencyParam;
+            }
+            Long windowParam = getPositiveLongParameter(options, KEY_RANGED_WINDOW);
+            if (windowParam != null) {
+                window = windowParam;
+            }
+        }
+        // The ranges held in memory are bounded as a response body read in memory.
+        window = Math.min(window, maxResponseSize);
+        rangeSize = (int) Math.min(rangeSize, window);
+
+        HttpGet probe = new HttpGet(url);
+        addRequestHeaders(probe, headers);
+        // Ranges are of the bytes as stored, which a content coding would change.
+        probe.setHeader(HttpHeaders.ACCEPT_ENCODING, ContentCodings.IDENTITY);
+        Header[] requestHeaders = probe.getAllHeaders();
+        RequestTimeouts requestTimeouts = getRequestTimeouts(options);
+        RetryPolicy requestRetryPolicy = getRetryPolicy(options);
+        ResponseOptions rangeOptions = new ResponseOptions(ResponseType.STREAM, true, maxResponseSize);
+        RangedDownload download = new RangedDownload(rangeSize, concurrency, window, (first, last, validator) ->
+                fetchRange(url, requestHeaders, first, last, validator, rangeOptions, requestTimeouts,
+                        requestRetryPolicy));
+        probe.setHeader(HttpHeaders.RANGE, download.getProbeRange());
+
+        NativeObject result = execute(probe, new ResponseOptions(ResponseType.STREAM, isNativeResponse(options),
+                maxResponseSize, download), options);
+        String status = String.valueOf(result.get("status"));
+        if (!Integer.toString(HttpStatus.SC_PARTIAL_CONTENT).equals(status)
+                && !Integer.toString(HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE).equals(status)) {
+            return result;
         }
+        // The range was not usable (e.g. unknown length, or an empty resource).
+        Object body = result.get("body");
+        if (body instanceof InputStream) {
+            try {
+                ((InputStream) body).close();
+            } catch (IOException e) {
+                log.debug("Failed to close the probe.", e);
+            }
+        }
+        return get(url, headers, true, options);
     }
 
     /**
@@ -169,200 +802,1144 @@ public class Ext_HttpClient extends AbstractExtensionScriptableObject { // CHECK
      * @param params String
      * @return NativeObject
      */
-    @JSFunction
     public NativeObject postParam(String uri, NativeObject headers, String contentType, String params) {
-        return post(uri, headers, contentType, params, null, null);
-    }
-
-//    /**
-//     * postStream (PersoniumInputStream).
-//     * @param uri String
-//     * @param headers NativeObject
-//     * @param contentType String
-//     * @param params String
-//     * @param pis PersoniumInputStream
-//     * @param fileName String
-//     * @return NativeObject
-//     */
-// PostのStreamは、動作が確認できていないためコメント。
-//    @JSFunction
-//    public NativeObject postStream(String uri, NativeObject headers, String contentType,
-//            PersoniumInputStream pis, String fileName) {
-//        return post(uri, headers, contentType, null, pis, fileName);
-//    }
+        return postParam(uri, headers, contentType, params, null);
+    }
 
     /**
-     * post (String).
+     * postParam (String).
+     * This method name is old version (v1.0.1 or older).
      * @param uri String
      * @param headers NativeObject
      * @param contentType String
      * @param params String
+     * @param options {connectTimeout, connectionRequestTimeout, socketTimeout, timeout, maxAttempts, nativeResponse,
+     *                responseType, maxResponseSize}
      * @return NativeObject
      */
     @JSFunction
-    public NativeObject post(String uri, NativeObject headers, String contentType, String params) {
-        return post(uri, headers, contentType, params, null, null);
+    public NativeObject postParam(String uri, NativeObject headers, String contentType, String params,
+            NativeObject options) {
+        return post(uri, headers, contentType, params, null, options);
     }
 
     /**
-     * putParam (String).
-     * This method name is old version (v1.0.1 or older).
+     * postStream (PersoniumInputStream).
+     * The body is sent as it is read from the stream, with the Content-Length given in headers
+     * or with chunked transfer encoding.
      * @param uri String
      * @param headers NativeObject
      * @param contentType String
-     * @param params String
+     * @param stream PersoniumInputStream
      * @return NativeObject
      */
-    @JSFunction
-    public NativeObject putParam(String uri, NativeObject headers, String contentType, String params) {
-        return put(uri, headers, contentType, params, null, null);
+    public NativeObject postStream(String uri, NativeObject headers, String contentType, Object stream) {
+        return postStream(uri, headers, contentType, stream, null);
     }
 
     /**
-     * put (String).
+     * postStream (PersoniumInputStream).
+     * The body is sent as it is read from the stream, with the Content-Length given in headers
+     * or with chunked transfer encoding.
      * @param uri String
      * @param headers NativeObject
      * @param contentType String
-     * @param params String
+     * @param stream PersoniumInputStream
+     * @param options {connectTimeout, connectionRequestTimeout, socketTimeout, timeout, maxAttempts, nativeResponse,
+     *                responseType, maxResponseSize}
      * @return NativeObject
      */
     @JSFunction
-    public NativeObject put(String uri, NativeObject headers, String contentType, String params) {
-        return put(uri, headers, contentType, params, null, null);
+    public NativeObject postStream(String uri, NativeObject headers, String contentType, Object stream,
+            NativeObject options) {
+        return post(uri, headers, contentType, null, toInputStream(stream), options);
     }
 
     /**
-     * patch (String).
-     * @param url String
+     * postMultipart.
+     * The parts are sent as multipart/form-data, each written as it is read, without building the body in memory.
+     * @param uri String
      * @param headers NativeObject
-     * @param contentType String
-     * @param params String
+     * @param parts Array of {name, body: String, byte array or PersoniumInputStream, filename, contentType}
      * @return NativeObject
      */
-    @JSFunction
-    public NativeObject patch(String url, NativeObject headers, String contentType, String params) {
-        boolean respondsAsStream = false;
-
-        // Verification.
-        verifyParamIsEmpty(url, "url");
-        verifyParamIsEmpty(contentType, "contentType");
-        verifyParamIsEmpty(params, "body");
-
-        HttpPatch patch = new HttpPatch(url);
-        // set contentType
-        patch.addHeader("Content-Type", contentType);
-        // set headers
-        addRequestHeaders(patch, headers, contentType);
-        // set body
-        addRequestBody(patch, params);
-
-        try (CloseableHttpClient httpclient = createHttpClient()) {
-            // Request
-            HttpResponse res = httpclient.execute(patch);
-            // Response
-            return createResponseToJavascript(res, respondsAsStream);
-        } catch (IOException e) {
-            throw ExtensionErrorConstructor.construct(createErrorMessage(e));
-        }
+    public NativeObject postMultipart(String uri, NativeObject headers, NativeArray parts) {
+        return postMultipart(uri, headers, parts, null);
     }
 
     /**
-     * delete.
-     * @param url String
-     * @param headers JSONObject
-     * @param respondsAsStream true:stream/false:text
-     * @return JSONObject
+     * postMultipart.
+     * The parts are sent as multipart/form-data, each written as it is read, without building the body in memory.
+     * @param uri String
+     * @param headers NativeObject
+     * @param parts Array of {name, body: String, byte array or PersoniumInputStream, filename, contentType}
+     * @param options {connectTimeout, connectionRequestTimeout, socketTimeout, timeout, maxAttempts, nativeResponse,
+     *                responseType, maxResponseSize}
+     * @return NativeObject
      */
     @JSFunction
-    public NativeObject delete(String url, NativeObject headers, boolean respondsAsStream) {
+    public NativeObject postMultipart(String uri, NativeObject headers, NativeArray parts, NativeObject options) {
         // Verification.
-        verifyParamIsEmpty(url, "url");
+        verifyParamIsEmpty(uri, "url");
 
-        HttpDelete delete = new HttpDelete(url);
-        addRequestHeaders(delete, headers);
+        HttpPost post = new HttpPost(uri);
+        addRequestHeaders(post, headers);
+        addMultipartBody(post, parts);
 
-        try (CloseableHttpClient httpclient = createHttpClient()) {
-            // Request
-            HttpResponse res = httpclient.execute(delete);
-            // Response
-            return createResponseToJavascript(res, respondsAsStream);
-        } catch (IOException e) {
-            throw ExtensionErrorConstructor.construct(createErrorMessage(e));
-        }
+        return execute(post, false, options);
     }
 
     /**
-     * Post.
-     * @param url String
+     * post (String).
+     * @param uri String
      * @param headers NativeObject
      * @param contentType String
      * @param params String
-     * @param is PersoniumInputStream
-     * @param fileName String
      * @return NativeObject
      */
-    private NativeObject post(String url, NativeObject headers, String contentType,
-                              String params, PersoniumInputStream pis, String fileName) {
-        boolean respondsAsStream = false;
-
-        // Verification.
-        verifyParamIsEmpty(url, "url");
-        verifyParamIsEmpty(contentType, "contentType");
-        verifyParamIsEmpty(params, "body");
-
-        HttpPost post = new HttpPost(url);
-        // set contentType
-        post.addHeader("Content-Type", contentType);
-        // set headers
-        addRequestHeaders(post, headers, contentType);
-        // set body
-        addRequestBody(post, params);
-
-        try (CloseableHttpClient httpclient = createHttpClient()) {
-            // Request
-            HttpResponse res = httpclient.execute(post);
-            // Response
-            return createResponseToJavascript(res, respondsAsStream);
-        } catch (IOException e) {
-            throw ExtensionErrorConstructor.construct(createErrorMessage(e));
-        }
+    public NativeObject post(String uri, NativeObject headers, String contentType, String params) {
+        return post(uri, headers, contentType, params, null);
     }
 
     /**
-     * put.
-     * @param url String
+     * post (String).
+     * @param uri String
      * @param headers NativeObject
      * @param contentType String
      * @param params String
-     * @param is PersoniumInputStream
-     * @param fileName String
+     * @param options {connectTimeout, connectionRequestTimeout, socketTimeout, timeout, maxAttempts, nativeResponse,
+     *                responseType, maxResponseSize}
      * @return NativeObject
      */
-    private NativeObject put(String url, NativeObject headers, String contentType,
-                              String params, PersoniumInputStream pis, String fileName) {
-        boolean respondsAsStream = false;
+    @JSFunction
+    public NativeObject post(String uri, NativeObject headers, String contentType, String params,
+            NativeObject options) {
+        return post(uri, headers, contentType, params, null, options);
+    }
 
-        // Verification.
+    /**
+     * putParam (String).
+     * This method name is old version (v1.0.1 or older).
+     * @param uri String
+     * @param headers NativeObject
+     * @param contentType String
+     * @param params String
+     * @return NativeObject
+     */
+    public NativeObject putParam(String uri, NativeObject headers, String contentType, String params) {
+        return putParam(uri, headers, contentType, params, null);
+    }
+
+    /**
+     * putParam (String).
+     * This method name is old version (v1.0.1 or older).
+     * @param uri String
+     * @param headers NativeObject
+     * @param contentType String
+     * @param params String
+     * @param options {connectTimeout, connectionRequestTimeout, socketTimeout, timeout, maxAttempts, nativeResponse,
+     *                responseType, maxResponseSize}
+     * @return NativeObject
+     */
+    @JSFunction
+    public NativeObject putParam(String uri, NativeObject headers, String contentType, String params,
+            NativeObject options) {
+        return put(uri, headers, contentType, params, null, options);
+    }
+
+    /**
+     * put (String).
+     * @param uri String
+     * @param headers NativeObject
+     * @param contentType String
+     * @param params String
+     * @return NativeObject
+     */
+    public NativeObject put(String uri, NativeObject headers, String contentType, String params) {
+        return put(uri, headers, contentType, params, null);
+    }
+
+    /**
+     * put (String).
+     * @param uri String
+     * @param headers NativeObject
+     * @param contentType String
+     * @param params String
+     * @param options {connectTimeout, connectionRequestTimeout, socketTimeout, timeout, maxAttempts, nativeResponse,
+     *                responseType, maxResponseSize}
+     * @return NativeObject
+     */
+    @JSFunction
+    public NativeObject put(String uri, NativeObject headers, String contentType, String params, NativeObject options) {
+        return put(uri, headers, contentType, params, null, options);
+    }
+
+    /**
+     * putStream (PersoniumInputStream).
+     * The body is sent as it is read from the stream, with the Content-Length given in headers
+     * or with chunked transfer encoding.
+     * @param uri String
+     * @param headers NativeObject
+     * @param contentType String
+     * @param stream PersoniumInputStream
+     * @return NativeObject
+     */
+    public NativeObject putStream(String uri, NativeObject headers, String contentType, Object stream) {
+        return putStream(uri, headers, contentType, stream, null);
+    }
+
+    /**
+     * putStream (PersoniumInputStream).
+     * The body is sent as it is read from the stream, with the Content-Length given in headers
+     * or with chunked transfer encoding.
+     * @param uri String
+     * @param headers NativeObject
+     * @param contentType String
+     * @param stream PersoniumInputStream
+     * @param options {connectTimeout, connectionRequestTimeout, socketTimeout, timeout, maxAttempts, nativeResponse,
+     *                responseType, maxResponseSize}
+     * @return NativeObject
+     */
+    @JSFunction
+    public NativeObject putStream(String uri, NativeObject headers, String contentType, Object stream,
+            NativeObject options) {
+        return put(uri, headers, contentType, null, toInputStream(stream), options);
+    }
+
+    /**
+     * putMultipart.
+     * The parts are sent as multipart/form-data, each written as it is read, without building the body in memory.
+     * @param uri String
+     * @param headers NativeObject
+     * @param parts Array of {name, body: String, byte array or PersoniumInputStream, filename, contentType}
+     * @return NativeObject
+     */
+    public NativeObject putMultipart(String uri, NativeObject headers, NativeArray parts) {
+        return putMultipart(uri, headers, parts, null);
+    }
+
+    /**
+     * putMultipart.
+     * The parts are sent as multipart/form-data, each written as it is read, without building the body in memory.
+     * @param uri String
+     * @param headers NativeObject
+     * @param parts Array of {name, body: String, byte array or PersoniumInputStream, filename, contentType}
+     * @param options {connectTimeout, connectionRequestTimeout, socketTimeout, timeout, maxAttempts, nativeResponse,
+     *                responseType, maxResponseSize}
+     * @return NativeObject
+     */
+    @JSFunction
+    public NativeObject putMultipart(String uri, NativeObject headers, NativeArray parts, NativeObject options) {
+        // Verification.
+        verifyParamIsEmpty(uri, "url");
+
+        HttpPut put = new HttpPut(uri);
+        addRequestHeaders(put, headers);
+        addMultipartBody(put, parts);
+
+        return execute(put, false, options);
+    }
+
+    /**
+     * patch (String).
+     * @param url String
+     * @param headers NativeObject
+     * @param contentType String
+     * @param params String
+     * @return NativeObject
+     */
+    public NativeObject patch(String url, NativeObject headers, String contentType, String params) {
+        return patch(url, headers, contentType, params, null);
+    }
+
+    /**
+     * patch (String).
+     * @param url String
+     * @param headers NativeObject
+     * @param contentType String
+     * @param params String
+     * @param options {connectTimeout, connectionRequestTimeout, socketTimeout, timeout, maxAttempts, nativeResponse,
+     *                responseType, maxResponseSize}
+     * @return NativeObject
+     */
+    @JSFunction
+    public NativeObject patch(String url, NativeObject headers, String contentType, String params,
+            NativeObject options) {
+        return patch(url, headers, contentType, params, null, options);
+    }
+
+    /**
+     * patchStream (PersoniumInputStream).
+     * The body is sent as it is read from the stream, with the Content-Length given in headers
+     * or with chunked transfer encoding.
+     * @param url String
+     * @param headers NativeObject
+     * @param contentType String
+     * @param stream PersoniumInputStream
+     * @return NativeObject
+     */
+    public NativeObject patchStream(String url, NativeObject headers, String contentType, Object stream) {
+        return patchStream(url, headers, contentType, stream, null);
+    }
+
+    /**
+     * patchStream (PersoniumInputStream).
+     * The body is sent as it is read from the stream, with the Content-Length given in headers
+     * or with chunked transfer encoding.
+     * @param url String
+     * @param headers NativeObject
+     * @param contentType String
+     * @param stream PersoniumInputStream
+     * @param options {connectTimeout, connectionRequestTimeout, socketTimeout, timeout, maxAttempts, nativeResponse,
+     *                responseType, maxResponseSize}
+     * @return NativeObject
+     */
+    @JSFunction
+    public NativeObject patchStream(String url, NativeObject headers, String contentType, Object stream,
+            NativeObject options) {
+        return patch(url, headers, contentType, null, toInputStream(stream), options);
+    }
+
+    /**
+     * delete.
+     * @param url String
+     * @param headers JSONObject
+     * @param respondsAsStream true:stream/false:text
+     * @return JSONObject
+     */
+    public NativeObject delete(String url, NativeObject headers, boolean respondsAsStream) {
+        return delete(url, headers, respondsAsStream, null);
+    }
+
+    /**
+     * delete.
+     * @param url String
+     * @param headers JSONObject
+     * @param respondsAsStream true:stream/false:text
+     * @param options {connectTimeout, connectionRequestTimeout, socketTimeout, timeout, maxAttempts, nativeResponse,
+     *                responseType, maxResponseSize}
+     * @return JSONObject
+     */
+    @JSFunction
+    public NativeObject delete(String url, NativeObject headers, boolean respondsAsStream, NativeObject options) {
+        // Verification.
+        verifyParamIsEmpty(url, "url");
+
+        HttpDelete delete = new HttpDelete(url);
+        addRequestHeaders(delete, headers);
+
+        return execute(delete, respondsAsStream, options);
+    }
+
+    /**
+     * all.
+     * Execute the requests concurrently and return the results in the same order.
+     * A request that fails, or does not finish by the deadline, results in {"error": message}
+     * instead of failing the whole batch.
+     * @param requests Array of {method, url, headers, contentType, body, respondsAsStream}
+     * @param options {concurrency: max requests at the same time (capped by the operator),
+     *                timeout: deadline(milliseconds) of the batch}
+     * @return Array of NativeObject
+     */
+    @JSFunction
+    public NativeArray all(NativeArray requests, NativeObject options) {
+        if (requests == null) {
+            String message = "Parameter [requests] is not set.";
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        int concurrency = DEFAULT_BATCH_CONCURRENCY;
+        long timeout = DEFAULT_BATCH_TIMEOUT;
+        if (options != null) {
+            Integer concurrencyParam = getPositiveIntParameter(options, KEY_BATCH_CONCURRENCY);
+            if (concurrencyParam != null) {
+                concurrency = concurrencyParam;
+            }
+            Long timeoutParam = getPositiveLongParameter(options, KEY_BATCH_TIMEOUT);
+            if (timeoutParam != null) {
+                timeout = timeoutParam;
+            }
+        }
+
+        long remaining = 0;
+        if (budget != null) {
+            // The batch as a whole is charged to the budget.
+            remaining = getRemainingBudget();
+            timeout = Math.min(timeout, remaining);
+        }
+
+        // Requests are built on the calling thread, which owns the javascript objects.
+        int size = (int) requests.getLength();
+        AtomicReferenceArray<NativeObject> results = new AtomicReferenceArray<>(size);
+        List<BatchRunner.Task<NativeObject>> tasks = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            try {
+                tasks.add(createBatchTask(requests.get(i, requests), remaining));
+            } catch (RuntimeException e) {
+                tasks.add(new BatchTask(null, null, null, null, createErrorResult(e)));
+            }
+        }
+        long start = System.nanoTime();
+        try {
+            BatchRunner.run(tasks, concurrency, timeout, results);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw ExtensionErrorConstructor.construct(createErrorMessage(e));
+        } catch (RejectedExecutionException e) {
+            String message = "Too many batches are running.";
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        } finally {
+            if (budget != null) {
+                budget.charge(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+        }
+
+        Object[] elements = new Object[size];
+        for (int i = 0; i < size; i++) {
+            results.compareAndSet(i, null, createErrorResult("Batch deadline exceeded."));
+            elements[i] = results.get(i);
+        }
+        NativeArray array = new NativeArray(elements);
+        Scriptable scope = getParentScope();
+        if (scope != null) {
+            ScriptRuntime.setBuiltinProtoAndParent(array, scope, TopLevel.Builtins.Array);
+        }
+        return array;
+    }
+
+    /**
+     * Create the task of a batch request.
+     * @param descriptor {method, url, headers, contentType, body, respondsAsStream} and per call options
+     * @param remaining time left(milliseconds) of the deadline budget, or 0 if there is no budget
+     * @return task
+     */
+    private BatchTask createBatchTask(Object descriptor, long remaining) {
+        if (!(descriptor instanceof NativeObject)) {
+            String message = "Parameter [requests] is not Array of NativeObject.";
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        NativeObject request = (NativeObject) descriptor;
+        String method = getStringParameter(request, KEY_BATCH_METHOD);
+        if (method == null) {
+            method = HttpGet.METHOD_NAME;
+        }
+        String url = getStringParameter(request, KEY_BATCH_URL);
         verifyParamIsEmpty(url, "url");
+        NativeObject headers = new NativeObject();
+        Object headersParam = request.get(KEY_BATCH_HEADERS);
+        if (headersParam instanceof NativeObject) {
+            headers = (NativeObject) headersParam;
+        }
+        Boolean respondsAsStream = getBooleanParameter(request, KEY_BATCH_RESPONDS_AS_STREAM);
+
+        HttpRequestBase httpRequest;
+        switch (method.toUpperCase(Locale.ENGLISH)) {
+        case HttpGet.METHOD_NAME:
+            httpRequest = new HttpGet(url);
+            addRequestHeaders(httpRequest, headers);
+            break;
+        case HttpDelete.METHOD_NAME:
+            httpRequest = new HttpDelete(url);
+            addRequestHeaders(httpRequest, headers);
+            break;
+        case HttpPost.METHOD_NAME:
+            httpRequest = createBatchRequestWithBody(new HttpPost(url), request, headers);
+            break;
+        case HttpPut.METHOD_NAME:
+            httpRequest = createBatchRequestWithBody(new HttpPut(url), request, headers);
+            break;
+        case HttpPatch.METHOD_NAME:
+            httpRequest = createBatchRequestWithBody(new HttpPatch(url), request, headers);
+            break;
+        default:
+            String message = String.format("Parameter [%s] is not supported: %s", KEY_BATCH_METHOD, method);
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        RequestTimeouts requestTimeouts = getTimeouts(request, timeouts, KEY_OPTION_CONNECT_TIMEOUT,
+                KEY_OPTION_CONNECTION_REQUEST_TIMEOUT, KEY_OPTION_SOCKET_TIMEOUT, KEY_OPTION_TIMEOUT);
+        if (remaining > 0) {
+            requestTimeouts = requestTimeouts.limitTo(remaining);
+        }
+        return new BatchTask(httpRequest, getResponseOptions(request, Boolean.TRUE.equals(respondsAsStream)),
+                requestTimeouts, getRetryPolicy(request), null);
+    }
+
+    /**
+     * Set content type, headers and body of a batch request.
+     * @param httpRequest http request method object
+     * @param request request descriptor
+     * @param headers http headers
+     * @return httpRequest
+     */
+    private HttpRequestBase createBatchRequestWithBody(HttpEntityEnclosingRequestBase httpRequest,
+            NativeObject request, NativeObject headers) {
+        String contentType = getStringParameter(request, KEY_BATCH_CONTENT_TYPE);
         verifyParamIsEmpty(contentType, "contentType");
-        verifyParamIsEmpty(params, "body");
+        String body = getStringParameter(request, KEY_BATCH_BODY);
+        verifyParamIsEmpty(body, "body");
+        httpRequest.addHeader("Content-Type", contentType);
+        addRequestHeaders(httpRequest, headers);
+        addRequestBody(httpRequest, body);
+        return httpRequest;
+    }
+
+    /**
+     * Create the result of a failed batch request.
+     * @param e error
+     * @return {"error": message, "name": error name}
+     */
+    private NativeObject createErrorResult(RuntimeException e) {
+        if (e instanceof EcmaError) {
+            NativeObject result = createErrorResult(((EcmaError) e).getErrorMessage());
+            // Lets scripts tell e.g. CircuitBreakerOpenError from other errors.
+            result.put("name", result, ((EcmaError) e).getName());
+            return result;
+        }
+        return createErrorResult(createErrorMessage(e));
+    }
+
+    /**
+     * Create the result of a failed batch request.
+     * @param message error message
+     * @return {"error": message}
+     */
+    private NativeObject createErrorResult(String message) {
+        NativeObject result = new NativeObject();
+        result.put("error", result, message);
+        return result;
+    }
+
+    /**
+     * Request of a batch.
+     */
+    private final class BatchTask implements BatchRunner.Task<NativeObject> {
+        private final HttpRequestBase request;
+        private final ResponseOptions responseOptions;
+        private final RequestTimeouts requestTimeouts;
+        private final RetryPolicy requestRetryPolicy;
+        private final NativeObject failure;
+
+        /**
+         * Constructor.
+         * @param request http request method object
+         * @param responseOptions how the response is returned
+         * @param requestTimeouts timeouts of the request
+         * @param requestRetryPolicy retry policy of the request
+         * @param failure result returned without executing the request, if the request is invalid
+         */
+        BatchTask(HttpRequestBase request, ResponseOptions responseOptions, RequestTimeouts requestTimeouts,
+                RetryPolicy requestRetryPolicy, NativeObject failure) {
+            this.request = request;
+            this.responseOptions = responseOptions;
+            this.requestTimeouts = requestTimeouts;
+            this.requestRetryPolicy = requestRetryPolicy;
+            this.failure = failure;
+        }
+
+        @Override
+        public NativeObject call() {
+            if (failure != null) {
+                return failure;
+            }
+            try {
+                return execute(request, responseOptions, requestTimeouts, requestRetryPolicy);
+            } catch (RuntimeException e) {
+                return createErrorResult(e);
+            }
+        }
+
+        @Override
+        public void abort() {
+            if (request != null) {
+                request.abort();
+            }
+        }
+    }
+
+    /**
+     * Post.
+     * @param url String
+     * @param headers NativeObject
+     * @param contentType String
+     * @param params String
+     * @param is body stream, used instead of params if not null
+     * @param options per call options
+     * @return NativeObject
+     */
+    private NativeObject post(String url, NativeObject headers, String contentType,
+            String params, InputStream is, NativeObject options) {
+        boolean respondsAsStream = false;
+
+        // Verification.
+        verifyParamIsEmpty(url, "url");
+        verifyParamIsEmpty(contentType, "contentType");
+        if (is == null) {
+            verifyParamIsEmpty(params, "body");
+        }
+
+        HttpPost post = new HttpPost(url);
+        // set contentType
+        post.addHeader("Content-Type", contentType);
+        // set headers
+        addRequestHeaders(post, headers);
+        // set body
+        addRequestBody(post, params, is);
+
+        return execute(post, respondsAsStream, options);
+    }
+
+    /**
+     * put.
+     * @param url String
+     * @param headers NativeObject
+     * @param contentType String
+     * @param params String
+     * @param is body stream, used instead of params if not null
+     * @param options per call options
+     * @return NativeObject
+     */
+    private NativeObject put(String url, NativeObject headers, String contentType,
+            String params, InputStream is, NativeObject options) {
+        boolean respondsAsStream = false;
+
+        // Verification.
+        verifyParamIsEmpty(url, "url");
+        verifyParamIsEmpty(contentType, "contentType");
+        if (is == null) {
+            verifyParamIsEmpty(params, "body");
+        }
+
+        HttpPut put = new HttpPut(url);
+        // set contentType
+        put.addHeader("Content-Type", contentType);
+        // set headers
+        addRequestHeaders(put, headers);
+        // set body
+        addRequestBody(put, params, is);
+
+        return execute(put, respondsAsStream, options);
+    }
+
+    /**
+     * patch.
+     * @param url String
+     * @param headers NativeObject
+     * @param contentType String
+     * @param params String
+     * @param is body stream, used instead of params if not null
+     * @param options per call options
+     * @return NativeObject
+     */
+    private NativeObject patch(String url, NativeObject headers, String contentType,
+            String params, InputStream is, NativeObject options) {
+        boolean respondsAsStream = false;
+
+        // Verification.
+        verifyParamIsEmpty(url, "url");
+        verifyParamIsEmpty(contentType, "contentType");
+        if (is == null) {
+            verifyParamIsEmpty(params, "body");
+        }
+
+        HttpPatch patch = new HttpPatch(url);
+        // set contentType
+        patch.addHeader("Content-Type", contentType);
+        // set headers
+        addRequestHeaders(patch, headers);
+        // set body
+        addRequestBody(patch, params, is);
+
+        return execute(patch, respondsAsStream, options);
+    }
+
+    /**
+     * Execute the request with the timeouts of the options, within the deadline budget.
+     * @param request http request method object
+     * @param respondsAsStream Flag as to whether body is returned as stream
+     * @param options per call options, or null
+     * @return response to javascript
+     */
+    private NativeObject execute(HttpRequestBase request, boolean respondsAsStream, NativeObject options) {
+        return execute(request, getResponseOptions(options, respondsAsStream), options);
+    }
 
-        HttpPut put = new HttpPut(url);
-        // set contentType
-        put.addHeader("Content-Type", contentType);
-        // set headers
-        addRequestHeaders(put, headers, contentType);
-        // set body
-        addRequestBody(put, params);
+    /**
+     * Execute the request, charging the deadline budget if any.
+     * @param request http request method object
+     * @param responseOptions how the response is returned
+     * @param options per call options, or null
+     * @return response to javascript
+     */
+    private NativeObject execute(HttpRequestBase request, ResponseOptions responseOptions, NativeObject options) {
+        RequestTimeouts requestTimeouts = getRequestTimeouts(options);
+        RetryPolicy requestRetryPolicy = getRetryPolicy(options);
+        if (budget == null) {
+            return execute(request, responseOptions, requestTimeouts, requestRetryPolicy);
+        }
+        long start = System.nanoTime();
+        try {
+            return execute(request, responseOptions, requestTimeouts.limitTo(getRemainingBudget()),
+                    requestRetryPolicy);
+        } finally {
+            budget.charge(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * Timeouts of a call.
+     * @param options per call options, or null
+     * @return timeouts
+     */
+    private RequestTimeouts getRequestTimeouts(NativeObject options) {
+        if (options == null) {
+            return timeouts;
+        }
+        return getTimeouts(options, timeouts, KEY_OPTION_CONNECT_TIMEOUT, KEY_OPTION_CONNECTION_REQUEST_TIMEOUT,
+                KEY_OPTION_SOCKET_TIMEOUT, KEY_OPTION_TIMEOUT);
+    }
+
+    /**
+     * Fetch a range of a ranged download. Called on the workers of the download.
+     * @param url url of the resource
+     * @param requestHeaders headers of the probe, without Range
+     * @param first position of the first byte
+     * @param last position of the last byte
+     * @param validator sent as If-Range, or null
+     * @param rangeOptions response options of the range
+     * @param requestTimeouts timeouts of the request
+     * @param requestRetryPolicy retry policy of the request
+     * @return bytes of the range
+     * @throws IOException failed, or the server did not answer with the range
+     */
+    private byte[] fetchRange(String url, Header[] requestHeaders, long first, long last, String validator,
+            ResponseOptions rangeOptions, RequestTimeouts requestTimeouts, RetryPolicy requestRetryPolicy)
+            throws IOException {
+        HttpGet get = new HttpGet(url);
+        get.setHeaders(requestHeaders);
+        get.setHeader(HttpHeaders.RANGE, RangedDownload.toRange(first, last));
+        if (validator != null) {
+            get.setHeader(HttpHeaders.IF_RANGE, validator);
+        }
+        NativeObject result = execute(get, rangeOptions, requestTimeouts, requestRetryPolicy);
+        try (InputStream body = (InputStream) result.get("body")) {
+            ResponseHeaders resHeaders = (ResponseHeaders) result.get("headers");
+            Object contentRange = resHeaders.get(HttpHeaders.CONTENT_RANGE, resHeaders);
+            if (!(contentRange instanceof String)) {
+                contentRange = null;
+            }
+            RangedDownload.verify((Integer) result.get("status"), (String) contentRange, first, last);
+            byte[] data = new byte[(int) (last - first + 1)];
+            int read = 0;
+            while (read < data.length) {
+                int n = body.read(data, read, data.length - read);
+                if (n == -1) {
+                    throw new IOException(String.format("Range %d-%d ended after %d bytes.", first, last, read));
+                }
+                read += n;
+            }
+            // Reading to the end returns the connection to the pool.
+            if (body.read() != -1) {
+                throw new IOException(String.format("Range %d-%d has more than %d bytes.", first, last, read));
+            }
+            return data;
+        }
+    }
+
+    /**
+     * Retry policy of a call.
+     * @param options per call options, or null
+     * @return retry policy
+     */
+    private RetryPolicy getRetryPolicy(NativeObject options) {
+        if (options == null) {
+            return retryPolicy;
+        }
+        Integer maxAttempts = getPositiveIntParameter(options, KEY_OPTION_MAX_ATTEMPTS);
+        if (maxAttempts == null) {
+            return retryPolicy;
+        }
+        return retryPolicy.withMaxAttempts(maxAttempts);
+    }
+
+    /**
+     * How the response of a call is returned.
+     * @param options per call options, or null
+     * @param respondsAsStream Flag as to whether body is returned as stream, used if the options have no responseType
+     * @return response options
+     */
+    private ResponseOptions getResponseOptions(NativeObject options, boolean respondsAsStream) {
+        long maxSize = maxResponseSize;
+        if (options != null) {
+            Long maxSizeParam = getPositiveLongParameter(options, KEY_OPTION_MAX_RESPONSE_SIZE);
+            if (maxSizeParam != null) {
+                maxSize = Math.min(MAX_RESPONSE_SIZE, maxSizeParam);
+            }
+        }
+        return new ResponseOptions(getResponseType(options, respondsAsStream), isNativeResponse(options), maxSize);
+    }
+
+    /**
+     * Form of the response body of a call.
+     * @param options per call options, or null
+     * @param respondsAsStream Flag as to whether body is returned as stream, used if the options have no responseType
+     * @return response type
+     */
+    private ResponseType getResponseType(NativeObject options, boolean respondsAsStream) {
+        String name = null;
+        if (options != null) {
+            name = getStringParameter(options, KEY_OPTION_RESPONSE_TYPE);
+        }
+        if (name == null) {
+            if (respondsAsStream) {
+                return ResponseType.STREAM;
+            }
+            return ResponseType.TEXT;
+        }
+        ResponseType type = ResponseType.of(name);
+        if (type == null) {
+            String message = String.format("Parameter [%s] is not supported: %s", KEY_OPTION_RESPONSE_TYPE, name);
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        return type;
+    }
+
+    /**
+     * Response mode of a call.
+     * @param options per call options, or null
+     * @return true:native response mode
+     */
+    private boolean isNativeResponse(NativeObject options) {
+        if (options == null) {
+            return nativeResponse;
+        }
+        Boolean argParam = getBooleanParameter(options, KEY_OPTION_NATIVE_RESPONSE);
+        if (argParam == null) {
+            return nativeResponse;
+        }
+        return argParam;
+    }
+
+    /**
+     * @return time left(milliseconds) of the deadline budget
+     */
+    private long getRemainingBudget() {
+        long remaining = budget.remaining();
+        if (remaining <= 0) {
+            String message = "Deadline budget is exhausted.";
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        return remaining;
+    }
 
-        try (CloseableHttpClient httpclient = createHttpClient()) {
-            // Request
-            HttpResponse res = httpclient.execute(put);
+    /**
+     * Execute the request with the shared HttpClient, or over HTTP/2 if configured.
+     * @param request http request method object
+     * @param responseOptions how the response is returned
+     * @param requestTimeouts timeouts of the request
+     * @param requestRetryPolicy retry policy of the request
+     * @return response to javascript
+     */
+    private NativeObject execute(HttpRequestBase request, ResponseOptions responseOptions,
+            RequestTimeouts requestTimeouts, RetryPolicy requestRetryPolicy) {
+        HttpCacheContext context = null;
+        // The shared client is not closed here. Closing the response returns the connection to the pool.
+        CloseableHttpResponse res = null;
+        boolean streaming = false;
+        requestTimeouts.applyTo(request);
+        RequestTimeouts.Timer timer = requestTimeouts.start(request);
+        RetryBudget.SHARED.deposit();
+        RequestMetrics metrics = HttpClientMetrics.of(request.getURI(), request.getMethod());
+        long start = System.nanoTime();
+        if (request instanceof HttpEntityEnclosingRequestBase) {
+            HttpEntityEnclosingRequestBase enclosing = (HttpEntityEnclosingRequestBase) request;
+            if (enclosing.getEntity() != null) {
+                enclosing.setEntity(new MeteredEntity(enclosing.getEntity(), metrics));
+            }
+        }
+        CircuitBreaker breaker = null;
+        if (circuitBreaker) {
+            breaker = CircuitBreaker.of(request.getURI());
+        }
+        Bulkhead.Permit permit = null;
+        int attempts = 1;
+        try {
+            permit = acquirePermit(request, requestTimeouts);
+            // Request, retried within the total timeout.
+            while (true) {
+                long delay;
+                try {
+                    context = HttpCacheContext.create();
+                    res = sendOrJoin(request, context, breaker, metrics, responseOptions);
+                    if (!RetryPolicy.isRetryable(res)) {
+                        break;
+                    }
+                    delay = requestRetryPolicy.getDelay(attempts, res);
+                    if (!canRetry(request, null, requestRetryPolicy, attempts, delay, timer, breaker)) {
+                        break;
+                    }
+                } catch (IOException e) {
+                    delay = requestRetryPolicy.getDelay(attempts, null);
+                    if (timer.isExpired() || !RetryPolicy.isRetryable(e)
+                            || !canRetry(request, e, requestRetryPolicy, attempts, delay, timer, breaker)) {
+                        throw e;
+                    }
+                }
+                if (res != null) {
+                    // Return the connection of the failed attempt to the pool before waiting.
+                    EntityUtils.consumeQuietly(res.getEntity());
+                    HttpClientUtils.closeQuietly(res);
+                    res = null;
+                }
+                log.debug("Retry {} {} in {} ms (attempt {}).", request.getMethod(), request.getURI(), delay, attempts);
+                Thread.sleep(delay);
+                attempts++;
+            }
             // Response
-            return createResponseToJavascript(res, respondsAsStream);
-        } catch (IOException e) {
+            if (res.getEntity() != null) {
+                res.setEntity(new MeteredEntity(res.getEntity(), metrics));
+            }
+            if (responseOptions.getRangedDownload() != null && responseOptions.getType() == ResponseType.STREAM) {
+                responseOptions.getRangedDownload().assemble(res);
+            }
+            NativeObject result = createResponseToJavascript(res, responseOptions);
+            result.put("attempts", result, attempts);
+            if (clientConfig.isResponseCache() && !clientConfig.isHttp2()) {
+                result.put("cacheStatus", result, toCacheStatus(context.getCacheResponseStatus()));
+            }
+            // The body stream now owns the response.
+            streaming = result.get("body") instanceof PersoniumInputStream;
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw ExtensionErrorConstructor.construct(createErrorMessage(e));
+        } catch (ResponseTooLargeException e) {
+            throw createBodyError(e);
+        } catch (GeneralSecurityException | IOException e) {
+            if (timer.isExpired()) {
+                // Aborted by the total timeout.
+                throw ExtensionErrorConstructor.construct(createErrorMessage(new TimeoutException(
+                        String.format("Request timed out after %d ms.", requestTimeouts.getRequestTimeout()))));
+            }
+            throw ExtensionErrorConstructor.construct(createErrorMessage(e));
+        } finally {
+            if (permit != null) {
+                permit.release();
+            }
+            timer.cancel();
+            metrics.recordTotal(System.nanoTime() - start);
+            if (!streaming) {
+                HttpClientUtils.closeQuietly(res);
+            }
+        }
+    }
+
+    /**
+     * Take a permit of the bulkhead of the origin for the cell, waiting at most until the request timeout.
+     * A client without a cell takes the permit of the default cell, so the limit of the origin applies to all calls.
+     * @param request http request method object
+     * @param requestTimeouts timeouts of the request
+     * @return permit
+     */
+    private Bulkhead.Permit acquirePermit(HttpRequestBase request, RequestTimeouts requestTimeouts) {
+        String cellName = cell;
+        if (cellName == null) {
+            cellName = Bulkhead.DEFAULT_CELL;
+        }
+        long maxWait = Bulkhead.MAX_WAIT;
+        if (requestTimeouts.getRequestTimeout() > 0) {
+            maxWait = Math.min(maxWait, requestTimeouts.getRequestTimeout());
+        }
+        Bulkhead bulkhead = Bulkhead.of(request.getURI());
+        Bulkhead.Permit permit;
+        try {
+            permit = bulkhead.acquire(cellName, maxWait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw ExtensionErrorConstructor.construct(createErrorMessage(e));
         }
+        if (permit == null) {
+            String message = String.format("Bulkhead is full: cell=%s, origin=%s", cellName, bulkhead.getOrigin());
+            this.getLogger().info(message);
+            throw ScriptRuntime.constructError(BULKHEAD_REJECTED_ERROR, message);
+        }
+        return permit;
+    }
+
+    /**
+     * Send the request once, or wait for the identical request in flight if coalescing applies to it.
+     * @param request http request method object
+     * @param context context receiving the cache response status
+     * @param breaker circuit breaker of the origin, or null
+     * @param metrics metrics of the request
+     * @param responseOptions how the response is returned
+     * @return response
+     * @throws GeneralSecurityException security error
+     * @throws IOException failed to execute the request
+     */
+    private CloseableHttpResponse sendOrJoin(HttpRequestBase request, HttpCacheContext context, CircuitBreaker breaker,
+            RequestMetrics metrics, ResponseOptions responseOptions) throws GeneralSecurityException, IOException {
+        long responseSizeLimit = responseOptions.getMaxSize();
+        if (!requestCoalescing || !(request instanceof HttpGet) || responseOptions.getType() == ResponseType.STREAM) {
+            return sendWithinLimit(request, context, breaker, metrics, responseSizeLimit);
+        }
+        return RequestCoalescer.SHARED.execute(clientConfig, request, responseSizeLimit,
+                () -> sendWithinLimit(request, context, breaker, metrics, responseSizeLimit));
+    }
+
+    /**
+     * Send the request once within the adaptive concurrency limit of the origin, if enabled.
+     * The time until the response headers adjusts the limit, and a failure, 5xx or 429 lowers it.
+     * A call rejected by the circuit breaker or failing before it is sent leaves the limit as is.
+     * @param request http request method object
+     * @param context context receiving the cache response status
+     * @param breaker circuit breaker of the origin, or null
+     * @param metrics metrics of the request
+     * @param responseSizeLimit max size(bytes) of the body read in memory by HTTP/2
+     * @return response
+     * @throws GeneralSecurityException security error
+     * @throws IOException failed to execute the request
+     */
+    private CloseableHttpResponse sendWithinLimit(HttpRequestBase request, HttpCacheContext context,
+            CircuitBreaker breaker, RequestMetrics metrics, long responseSizeLimit)
+            throws GeneralSecurityException, IOException {
+        if (!adaptiveConcurrency) {
+            return send(request, context, breaker, metrics, responseSizeLimit);
+        }
+        AdaptiveLimiter limiter = AdaptiveLimiter.of(request.getURI());
+        int startInFlight = limiter.tryAcquire();
+        if (startInFlight == 0) {
+            String message = String.format("Concurrency limit is reached: origin=%s, limit=%d",
+                    limiter.getOrigin(), limiter.getLimit());
+            this.getLogger().info(message);
+            throw ScriptRuntime.constructError(CONCURRENCY_LIMIT_ERROR, message);
+        }
+        long start = System.nanoTime();
+        boolean sent = true;
+        boolean dropped = true;
+        try {
+            CloseableHttpResponse res = send(request, context, breaker, metrics, responseSizeLimit);
+            int status = res.getStatusLine().getStatusCode();
+            dropped = status >= HttpStatus.SC_INTERNAL_SERVER_ERROR || status == RetryPolicy.SC_TOO_MANY_REQUESTS;
+            return res;
+        } catch (ResponseTooLargeException e) {
+            // The origin answered.
+            dropped = false;
+            throw e;
+        } catch (ConnectionPoolTimeoutException | GeneralSecurityException | RuntimeException e) {
+            // Rejected by the circuit breaker or failed locally, which says nothing of the origin.
+            sent = false;
+            throw e;
+        } finally {
+            if (sent) {
+                limiter.release(startInFlight, System.nanoTime() - start, dropped);
+            } else {
+                limiter.ignore();
+            }
+        }
+    }
+
+    /**
+     * Send the request once with the shared HttpClient, or over HTTP/2 if configured.
+     * A response of 502, 503 or 504 or a failure is counted as failure of the origin by the circuit breaker.
+     * @param request http request method object
+     * @param context context receiving the cache response status
+     * @param breaker circuit breaker of the origin, or null
+     * @param metrics metrics of the request
+     * @param responseSizeLimit max size(bytes) of the body read in memory by HTTP/2
+     * @return response
+     * @throws GeneralSecurityException security error
+     * @throws IOException failed to execute the request
+     */
+    private CloseableHttpResponse send(HttpRequestBase request, HttpCacheContext context, CircuitBreaker breaker,
+            RequestMetrics metrics, long responseSizeLimit) throws GeneralSecurityException, IOException {
+        if (breaker == null) {
+            return send(request, context, metrics, responseSizeLimit);
+        }
+        if (!breaker.tryAcquire()) {
+            String message = String.format("Circuit breaker is open: %s", breaker.getOrigin());
+            this.getLogger().info(message);
+            throw ScriptRuntime.constructError(CIRCUIT_BREAKER_OPEN_ERROR, message);
+        }
+        boolean success = false;
+        try {
+            CloseableHttpResponse res = send(request, context, metrics, responseSizeLimit);
+            success = !CircuitBreaker.isFailure(res.getStatusLine().getStatusCode());
+            return res;
+        } catch (ResponseTooLargeException e) {
+            // The origin answered.
+            success = true;
+            throw e;
+        } finally {
+            // Every call let through is recorded, so that a trial call always closes or reopens the breaker.
+            if (success) {
+                breaker.onSuccess();
+            } else {
+                breaker.onFailure();
+            }
+        }
+    }
+
+    private CloseableHttpResponse send(HttpRequestBase request, HttpCacheContext context, RequestMetrics metrics,
+            long responseSizeLimit) throws GeneralSecurityException, IOException {
+        long start = System.nanoTime();
+        CloseableHttpResponse res;
+        try {
+            if (clientConfig.isHttp2()) {
+                res = Http2Transport.execute(clientConfig, request, responseSizeLimit);
+            } else {
+                CloseableHttpClient httpclient = HttpClientRegistry.getClient(clientConfig);
+                res = httpclient.execute(request, context);
+            }
+        } catch (GeneralSecurityException | IOException | RuntimeException e) {
+            metrics.recordError();
+            throw e;
+        }
+        metrics.recordResponse(res.getStatusLine().getStatusCode(), System.nanoTime() - start);
+        return res;
+    }
+
+    /**
+     * Whether to retry the request, which withdraws a retry from the shared budget if so.
+     * @param request http request method object
+     * @param e failure, or null if the server answered
+     * @param requestRetryPolicy retry policy of the request
+     * @param attempts number of attempts made
+     * @param delay delay(milliseconds) before the retry, or -1 if the server asks to wait too long
+     * @param timer total timeout of the request
+     * @param breaker circuit breaker of the origin, or null. Requests are not retried unless it is closed.
+     * @return true to retry
+     */
+    private static boolean canRetry(HttpRequestBase request, IOException e, RetryPolicy requestRetryPolicy,
+            int attempts, long delay, RequestTimeouts.Timer timer, CircuitBreaker breaker) {
+        return attempts < requestRetryPolicy.getMaxAttempts() && delay >= 0 && delay < timer.remaining()
+                && (breaker == null || breaker.getState() == CircuitBreaker.State.CLOSED)
+                && requestRetryPolicy.canRetry(request, e) && RetryBudget.SHARED.tryWithdraw();
+    }
+
+    /**
+     * Convert cache response status to the string returned to javascript.
+     * @param status cache response status
+     * @return HIT, MISS, VALIDATED or MODULE_RESPONSE
+     */
+    private String toCacheStatus(CacheResponseStatus status) {
+        if (status == null) {
+            return "MISS";
+        }
+        switch (status) {
+        case CACHE_HIT:
+            return "HIT";
+        case VALIDATED:
+            return "VALIDATED";
+        case CACHE_MODULE_RESPONSE:
+            return "MODULE_RESPONSE";
+        default:
+            return "MISS";
+        }
     }
 
     /**
@@ -381,41 +1958,26 @@ public class Ext_HttpClient extends AbstractExtensionScriptableObject { // CHECK
 
     /**
      * Add http request headers.
+     * Default headers are added unless the request already has a header of the same name, ignoring case,
+     * so that per call headers (and Content-Type set by the caller) override them.
+     * The headers object of the caller is not modified.
      * @param request http request method object
-     * @param headers http headers
+     * @param headers http headers, or null
      * @return Request with header added
      */
     private HttpRequestBase addRequestHeaders(HttpRequestBase request, NativeObject headers) {
-        return addRequestHeaders(request, headers, null);
-    }
-
-    /**
-     * Add http request headers.
-     * @param request http request method object
-     * @param headers http headers
-     * @param contentType
-     * @return Request with header added
-     */
-    private HttpRequestBase addRequestHeaders(HttpRequestBase request, NativeObject headers, String contentType) {
-        // Set default headers.
-        if (defaultHeaders != null) {
-            for (@SuppressWarnings("rawtypes") Iterator iterator = defaultHeaders.keySet().iterator();
-                    iterator.hasNext();) {
-                String key = (String) iterator.next();
-                if (key.equals("Content-Type") && contentType != null) {
-                    continue;
-                }
-                if (headers.get(key) == null) {
-                    headers.put(key, headers, (String) defaultHeaders.get(key));
-                }
-            }
-        }
         // Set request headers.
         if (headers != null) {
             for (Entry<Object, Object> e : headers.entrySet()) {
                 request.addHeader(e.getKey().toString(), e.getValue().toString());
             }
         }
+        // Set default headers.
+        for (Header header : defaultHeaders) {
+            if (!request.containsHeader(header.getName())) {
+                request.addHeader(header);
+            }
+        }
         if (log.isDebugEnabled()) {
             for (Header header: request.getAllHeaders()) {
                 log.debug("{}: {}", header.getName(), header.getValue());
@@ -424,6 +1986,33 @@ public class Ext_HttpClient extends AbstractExtensionScriptableObject { // CHECK
         return request;
     }
 
+    /**
+     * Add http request body.
+     * @param request http request method object
+     * @param bodyString http body string
+     * @param is http body stream, used instead of bodyString if not null
+     * @return Request with body added
+     */
+    private HttpRequestBase addRequestBody(HttpEntityEnclosingRequestBase request, String bodyString, InputStream is) {
+        if (is == null) {
+            return addRequestBody(request, bodyString);
+        }
+        // The stream is not buffered. A Content-Length header moves to the entity, otherwise the body is chunked.
+        long length = -1;
+        Header contentLength = request.getFirstHeader(HTTP.CONTENT_LEN);
+        if (contentLength != null) {
+            try {
+                length = Long.parseLong(contentLength.getValue().trim());
+            } catch (NumberFormatException e) {
+                throw ExtensionErrorConstructor.construct(createErrorMessage(e));
+            }
+            request.removeHeaders(HTTP.CONTENT_LEN);
+        }
+        // A body of unknown length is compressed as it may be large.
+        request.setEntity(compressIfLarge(new InputStreamEntity(is, length)));
+        return request;
+    }
+
     /**
      * Add http request body.
      * @param request http request method object
@@ -433,102 +2022,292 @@ public class Ext_HttpClient extends AbstractExtensionScriptableObject { // CHECK
     private HttpRequestBase addRequestBody(HttpEntityEnclosingRequestBase request, String bodyString) {
         // set body
         try {
-            request.setEntity(new ByteArrayEntity(bodyString.getBytes("UTF-8")));
+            request.setEntity(compressIfLarge(new ByteArrayEntity(bodyString.getBytes("UTF-8"))));
         } catch (UnsupportedEncodingException e) {
             throw ExtensionErrorConstructor.construct(createErrorMessage(e));
         }
         return request;
     }
 
+    /**
+     * Add multipart/form-data request body.
+     * The Content-Type of the headers is replaced with the one of the body, which has the boundary.
+     * @param request http request method object
+     * @param parts Array of {name, body, filename, contentType}
+     */
+    private void addMultipartBody(HttpEntityEnclosingRequestBase request, NativeArray parts) {
+        if (parts == null) {
+            String message = "Parameter [parts] is not set.";
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        MultipartEntityBuilder builder = MultipartEntityBuilder.create()
+                .setMode(HttpMultipartMode.RFC6532)
+                .setCharset(StandardCharsets.UTF_8);
+        long length = parts.getLength();
+        for (int i = 0; i < length; i++) {
+            Object part = parts.get(i, parts);
+            if (!(part instanceof NativeObject)) {
+                String message = "Parameter [parts] is not Array of NativeObject.";
+                this.getLogger().info(message);
+                throw ExtensionErrorConstructor.construct(message);
+            }
+            NativeObject descriptor = (NativeObject) part;
+            String name = getStringParameter(descriptor, KEY_PART_NAME);
+            verifyParamIsEmpty(name, KEY_PART_NAME);
+            builder.addPart(name, toContentBody(descriptor));
+        }
+        request.removeHeaders(HTTP.CONTENT_TYPE);
+        request.setEntity(compressIfLarge(builder.build()));
+    }
+
+    /**
+     * Body of a part of a multipart request.
+     * A String without filename is a text field. The other parts are files, sent as application/octet-stream
+     * unless the part has contentType.
+     * @param part {name, body, filename, contentType}
+     * @return body
+     */
+    private ContentBody toContentBody(NativeObject part) {
+        String filename = getStringParameter(part, KEY_PART_FILENAME);
+        String type = getStringParameter(part, KEY_PART_CONTENT_TYPE);
+        Object body = part.get(KEY_PART_BODY);
+        if (body instanceof Wrapper) {
+            body = ((Wrapper) body).unwrap();
+        }
+        if (body instanceof CharSequence && filename == null) {
+            return new StringBody(body.toString(), toContentType(type, TEXT_PLAIN_UTF_8));
+        } else if (body instanceof CharSequence) {
+            return new ByteArrayBody(body.toString().getBytes(StandardCharsets.UTF_8),
+                    toContentType(type, TEXT_PLAIN_UTF_8), filename);
+        } else if (body instanceof byte[]) {
+            return new ByteArrayBody((byte[]) body, toContentType(type, ContentType.APPLICATION_OCTET_STREAM),
+                    filename);
+        } else if (body instanceof InputStream) {
+            return new InputStreamBody((InputStream) body, toContentType(type, ContentType.APPLICATION_OCTET_STREAM),
+                    filename);
+        }
+        String message = String.format("Parameter [%s] of part is not String, byte array or InputStream.",
+                KEY_PART_BODY);
+        this.getLogger().info(message);
+        throw ExtensionErrorConstructor.construct(message);
+    }
+
+    /**
+     * Content type of a part. Text is UTF-8 unless the type tells its charset.
+     * @param type content type given by the script, or null
+     * @param defaultType content type used if type is null
+     * @return content type
+     */
+    private ContentType toContentType(String type, ContentType defaultType) {
+        ContentType contentType = defaultType;
+        if (type != null) {
+            try {
+                contentType = ContentType.parse(type);
+            } catch (ParseException | UnsupportedCharsetException e) {
+                String message = String.format("Parameter [%s] of part is invalid: %s", KEY_PART_CONTENT_TYPE, type);
+                this.getLogger().info(message);
+                throw ExtensionErrorConstructor.construct(message);
+            }
+        }
+        if (contentType.getCharset() == null && contentType.getMimeType().startsWith("text/")) {
+            contentType = contentType.withCharset(StandardCharsets.UTF_8);
+        }
+        return contentType;
+    }
+
+    /**
+     * Compress the request body if compression is enabled and the body is not smaller than the threshold.
+     * @param entity request body
+     * @return compressing request body, or entity as is
+     */
+    private HttpEntity compressIfLarge(HttpEntity entity) {
+        if (requestCompressionThreshold <= 0) {
+            return entity;
+        }
+        long length = entity.getContentLength();
+        if (length >= 0 && length < requestCompressionThreshold) {
+            return entity;
+        }
+        return ContentCodings.compress(entity, requestCompression);
+    }
+
+    /**
+     * Get the InputStream passed from javascript.
+     * @param stream PersoniumInputStream, possibly wrapped by javascript
+     * @return InputStream
+     */
+    private InputStream toInputStream(Object stream) {
+        Object unwrapped = stream;
+        if (unwrapped instanceof Wrapper) {
+            unwrapped = ((Wrapper) unwrapped).unwrap();
+        }
+        if (!(unwrapped instanceof InputStream)) {
+            String message = "Parameter [stream] is not InputStream.";
+            this.getLogger().info(message);
+            throw ExtensionErrorConstructor.construct(message);
+        }
+        return (InputStream) unwrapped;
+    }
+
     /**
      * Create response from HttpResponse to javascript.
      * @param res http response
-     * @param respondsAsStream Flag as to whether body is returned as stream
+     * @param responseOptions how the response is returned.
+     * A body returned as stream takes over the response and closes it.
      * @return response to javascript
      */
     @SuppressWarnings("unchecked")
-    private NativeObject createResponseToJavascript(HttpResponse res, boolean respondsAsStream) {
+    private NativeObject createResponseToJavascript(CloseableHttpResponse res, ResponseOptions responseOptions) {
         // Retrieve the status.
         int resStatus = res.getStatusLine().getStatusCode();
         if (log.isDebugEnabled()) {
             log.debug("status:" + resStatus);
         }
 
-        // Retrieve the response headers.
-        JSONObject resHeaders = new JSONObject();
-        for (Header header : res.getAllHeaders()) {
-            resHeaders.put(header.getName(), header.getValue());
-        }
-
         // Set NativeObject.
         NativeObject result = new NativeObject();
-        result.put("status", result, Integer.toString(resStatus));
-        result.put("headers", result, resHeaders.toString());
+        if (responseOptions.isNativeResponse()) {
+            // Headers are looked up on first access.
+            ResponseHeaders resHeaders = new ResponseHeaders(res.getAllHeaders());
+            Scriptable scope = getParentScope();
+            if (scope != null) {
+                ScriptRuntime.setBuiltinProtoAndParent(resHeaders, scope, TopLevel.Builtins.Object);
+            }
+            result.put("status", result, resStatus);
+            result.put("headers", result, resHeaders);
+        } else {
+            // Retrieve the response headers.
+            JSONObject resHeaders = new JSONObject();
+            for (Header header : res.getAllHeaders()) {
+                resHeaders.put(header.getName(), header.getValue());
+            }
+            result.put("status", result, Integer.toString(resStatus));
+            result.put("headers", result, resHeaders.toString());
+        }
 
         HttpEntity entity = res.getEntity();
         if (entity != null) {
-            if (respondsAsStream) {
+            if (responseOptions.getType() == ResponseType.STREAM) {
                 try {
                     // InputStream > PersoniumInputStream.
-                    InputStream is = new BufferedHttpEntity(res.getEntity()).getContent();
+                    // The connection stays leased until the script closes or drains the stream.
+                    LeasedInputStream is = new LeasedInputStream(entity.getContent(), entity.getContentLength());
                     PersoniumInputStream pis = new PersoniumInputStream((InputStream) is);
+                    is.attach(StreamLeakGuard.register(pis, res, streamLeaseTimeout));
                     result.put("body", result, (PersoniumInputStream) pis);
                 } catch (IOException e) {
                     throw ExtensionErrorConstructor.construct(createErrorMessage(e));
                 }
+            } else if (responseOptions.getType() == ResponseType.JSON) {
+                result.put("body", result, parseJson(entity, responseOptions.getMaxSize()));
             } else {
-                try {
-                    // String.
-                    result.put("body", result, EntityUtils.toString(entity, "UTF-8"));
-                } catch (ParseException | IOException e) {
-                    throw ExtensionErrorConstructor.construct(createErrorMessage(e));
-                }
+                // String.
+                result.put("body", result, readText(entity, responseOptions.getMaxSize()));
             }
         }
         return result;
     }
 
     /**
-     * Create and return instance of HttpClient.
-     * @return HttpClient
+     * Read the body as text within the max size.
+     * The charset of Content-Type is used if any, then the default charset of the media type, then UTF-8.
+     * @param entity response entity
+     * @param maxSize max size(bytes) of the body
+     * @return text
      */
-    private CloseableHttpClient createHttpClient() {
-        HttpClientBuilder builder = HttpClients.custom();
+    private String readText(HttpEntity entity, long maxSize) {
+        try (InputStream is = entity.getContent()) {
+            checkContentLength(entity, maxSize);
+            Charset charset = getCharset(entity);
+            if (charset == null) {
+                charset = StandardCharsets.UTF_8;
+                ContentType defaultType = ContentType.getByMimeType(ContentType.getOrDefault(entity).getMimeType());
+                if (defaultType != null && defaultType.getCharset() != null) {
+                    charset = defaultType.getCharset();
+                }
+            }
+            int capacity = TEXT_INITIAL_CAPACITY;
+            long length = entity.getContentLength();
+            if (length > 0) {
+                capacity = (int) Math.min(length, TEXT_MAX_INITIAL_CAPACITY);
+            }
+            StringBuilder text = new StringBuilder(capacity);
+            Reader reader = new InputStreamReader(new LimitedInputStream(is, maxSize), charset);
+            char[] buffer = new char[TEXT_BUFFER_SIZE];
+            int n;
+            while ((n = reader.read(buffer)) != -1) {
+                text.append(buffer, 0, n);
+            }
+            return text.toString();
+        } catch (ParseException | UnsupportedCharsetException | IOException e) {
+            throw createBodyError(e);
+        }
+    }
 
-        // SSL verify settings.
-        if (ignoreHostnameVerification) {
-            try {
-                builder.setSSLContext(createSkipSSLVerifyContext());
-            } catch (GeneralSecurityException e) {
-                throw ExtensionErrorConstructor.construct(createErrorMessage(e));
+    /**
+     * Parse the JSON body into javascript objects while reading it.
+     * The charset of Content-Type is used if any, UTF-8 otherwise.
+     * @param entity response entity
+     * @param maxSize max size(bytes) of the body, besides JsonMaxSize
+     * @return NativeObject, NativeArray or primitive value
+     */
+    private Object parseJson(HttpEntity entity, long maxSize) {
+        long limit = Math.min(maxSize, jsonMaxSize);
+        try (InputStream is = entity.getContent()) {
+            checkContentLength(entity, limit);
+            Charset charset = getCharset(entity);
+            if (charset == null) {
+                charset = StandardCharsets.UTF_8;
             }
+            return JsonResponseParser.parse(is, charset, jsonMaxDepth, limit, getParentScope());
+        } catch (ParseException | UnsupportedCharsetException | IOException e) {
+            throw createBodyError(e);
         }
+    }
 
-        // Proxy settings.
-        builder.useSystemProperties();
+    /**
+     * Fail before reading a body whose Content-Length exceeds the max size.
+     * @param entity response entity
+     * @param maxSize max size(bytes) of the body
+     * @throws ResponseTooLargeException Content-Length exceeds the max size
+     */
+    private static void checkContentLength(HttpEntity entity, long maxSize) throws ResponseTooLargeException {
+        if (entity.getContentLength() > maxSize) {
+            throw new ResponseTooLargeException(maxSize);
+        }
+    }
 
-        return builder.build();
+    /**
+     * @param entity response entity
+     * @return charset of Content-Type, or null if not specified
+     */
+    private static Charset getCharset(HttpEntity entity) {
+        ContentType contentType = ContentType.get(entity);
+        if (contentType == null) {
+            return null;
+        }
+        return contentType.getCharset();
     }
 
     /**
-     * Create and return the SSLContext that skips ssl verification.
-     * @return SSL context.
-     * @throws GeneralSecurityException security error
+     * Create the error of reading a response body.
+     * @param e error
+     * @return ResponseTooLargeError if the body exceeds the max size, Error otherwise
      */
-    @SuppressWarnings("PMD.ReturnEmptyArrayRatherThanNull")
-    private SSLContext createSkipSSLVerifyContext() throws GeneralSecurityException {
-        SSLContext sslContext = SSLContext.getInstance("TLSv1.2");
-        TrustManager tm = new X509TrustManager() {
-            public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
-            }
-            public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
-            }
-            public X509Certificate[] getAcceptedIssuers() {
-                return null;
-            }
-        };
-        sslContext.init(null, new TrustManager[] {tm}, null);
-        return sslContext;
+    private EcmaError createBodyError(Exception e) {
+        if (e instanceof ResponseTooLargeException) {
+            this.getLogger().info(e.getMessage());
+            return ScriptRuntime.constructError(RESPONSE_TOO_LARGE_ERROR, e.getMessage());
+        }
+        if (e instanceof ConnectionClosedException || e instanceof MalformedChunkCodingException) {
+            // Ended before Content-Length or the last chunk.
+            String message = String.format("Response body is truncated. Cause: [%s: %s]",
+                    e.getClass().getName(), e.getMessage());
+            this.getLogger().warn(message, e);
+            return ExtensionErrorConstructor.construct(message);
+        }
+        return ExtensionErrorConstructor.construct(createErrorMessage(e));
     }
 
     /**
@@ -0,0 +1,344 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hc.client5.http.async.methods.AbstractBinResponseConsumer;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.H2AsyncClientBuilder;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.protocol.HttpClientContext;
+import org.apache.hc.client5.http.ssl.ClientTlsStrategyBuilder;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.nio.AsyncEntityProducer;
+import org.apache.hc.core5.http.nio.AsyncRequestProducer;
+import org.apache.hc.core5.http.nio.support.AsyncRequestBuilder;
+import org.apache.hc.core5.http.nio.support.classic.AbstractClassicEntityProducer;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.util.ByteArrayBuffer;
+import org.apache.hc.core5.util.Timeout;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.execchain.RequestAbortedException;
+import org.apache.http.message.BasicHttpResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * HTTP/2 transport.
+ * <p>
+ * Requests built for the classic HttpClient are sent through a shared HTTP/2 client, one per {@link ClientConfig}.
+ * The client keeps one connection per origin and multiplexes the concurrent requests over it:
+ * cleartext connections start HTTP/2 with prior knowledge (h2c), TLS connections negotiate h2 with ALPN.
+ * Responses are converted back to classic responses, so that callers handle both transports alike.
+ */
+final class Http2Transport {
+
+    /** Logger. */
+    private static final Logger log = LoggerFactory.getLogger(Http2Transport.class);
+
+    /** Protocol version of converted responses. */
+    private static final ProtocolVersion HTTP_2 = new ProtocolVersion("HTTP", 2, 0);
+
+    /** Buffer size to stream request bodies. */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** Connection-specific headers, which HTTP/2 does not allow, and headers derived from the body. */
+    private static final Set<String> EXCLUDED_HEADERS = new HashSet<>(Arrays.asList(
+            "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade", "te",
+            "host", "content-length"));
+
+    /** Clients by configuration. */
+    private static final ConcurrentMap<ClientConfig, CloseableHttpAsyncClient> CLIENTS = new ConcurrentHashMap<>();
+
+    /** Threads that write streamed request bodies. */
+    private static final ExecutorService BODY_WRITERS =
+            Executors.newCachedThreadPool(new DaemonThreadFactory("personium-httpclient-h2-body-"));
+
+    private Http2Transport() {
+    }
+
+    /**
+     * Execute the request over HTTP/2 and wait for the response.
+     * The request can be aborted with {@link HttpRequestBase#abort()} as with the classic client.
+     * @param config client configuration
+     * @param request http request method object
+     * @param maxResponseSize max size(bytes) of the response body read in memory
+     * @return response with the body read in memory
+     * @throws GeneralSecurityException security error
+     * @throws IOException failed to execute the request.
+     * {@link ResponseTooLargeException} if the body exceeds the max size
+     */
+    static CloseableHttpResponse execute(ClientConfig config, HttpRequestBase request, long maxResponseSize)
+            throws GeneralSecurityException, IOException {
+        CloseableHttpAsyncClient client = getClient(config);
+        Future<SimpleHttpResponse> future = client.execute(toRequestProducer(request),
+                new LimitedResponseConsumer(maxResponseSize), null, toContext(request.getConfig()), null);
+        request.setCancellable(() -> future.cancel(true));
+        try {
+            return toResponse(future.get());
+        } catch (CancellationException e) {
+            throw new RequestAbortedException("Request aborted");
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the response");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Close all the shared HTTP/2 clients.
+     */
+    static void closeAll() {
+        synchronized (CLIENTS) {
+            for (CloseableHttpAsyncClient client : CLIENTS.values()) {
+                client.close(CloseMode.GRACEFUL);
+            }
+            CLIENTS.clear();
+        }
+    }
+
+    private static CloseableHttpAsyncClient getClient(ClientConfig config) throws GeneralSecurityException {
+        CloseableHttpAsyncClient client = CLIENTS.get(config);
+        if (client != null) {
+            return client;
+        }
+        synchronized (CLIENTS) {
+            client = CLIENTS.get(config);
+            if (client == null) {
+                client = createClient(config);
+                CLIENTS.put(config, client);
+            }
+        }
+        return client;
+    }
+
+    private static CloseableHttpAsyncClient createClient(ClientConfig config) throws GeneralSecurityException {
+        ClientTlsStrategyBuilder tlsStrategy = ClientTlsStrategyBuilder.create()
+                .setSslContext(SSLSocketFactoryCache.getSSLContext(config))
+                .setHostnameVerifier(SSLSocketFactoryCache.createHostnameVerifier());
+        String[] protocols = SSLSocketFactoryCache.getSupportedProtocols();
+        if (protocols != null) {
+            tlsStrategy.setTlsVersions(protocols);
+        }
+        String[] cipherSuites = SSLSocketFactoryCache.getSupportedCipherSuites();
+        if (cipherSuites != null) {
+            tlsStrategy.setCiphers(cipherSuites);
+        }
+
+        H2AsyncClientBuilder builder = HttpAsyncClients.customHttp2()
+                .setTlsStrategy(tlsStrategy.build())
+                .useSystemProperties();
+        if (config.isDnsCache()) {
+            builder.setDnsResolver(CachingDnsResolver.SHARED);
+        }
+        CloseableHttpAsyncClient client = builder.build();
+        client.start();
+        log.debug("Create HTTP/2 client: {}", config);
+        return client;
+    }
+
+    /**
+     * Carry over the connect and socket timeouts of the classic request config.
+     * The socket timeout becomes the response timeout of the stream, as the connection is shared.
+     * @param config classic request config, or null
+     * @return context
+     */
+    private static HttpClientContext toContext(org.apache.http.client.config.RequestConfig config) {
+        HttpClientContext context = HttpClientContext.create();
+        if (config == null) {
+            return context;
+        }
+        RequestConfig.Builder builder = RequestConfig.custom();
+        if (config.getConnectTimeout() > 0) {
+            builder.setConnectTimeout(Timeout.ofMilliseconds(config.getConnectTimeout()));
+        }
+        if (config.getSocketTimeout() > 0) {
+            builder.setResponseTimeout(Timeout.ofMilliseconds(config.getSocketTimeout()));
+        }
+        context.setRequestConfig(builder.build());
+        return context;
+    }
+
+    private static AsyncRequestProducer toRequestProducer(HttpRequestBase request) {
+        AsyncRequestBuilder builder = AsyncRequestBuilder.create(request.getMethod()).setUri(request.getURI());
+        for (Header header : request.getAllHeaders()) {
+            if (!EXCLUDED_HEADERS.contains(header.getName().toLowerCase(Locale.ENGLISH))) {
+                builder.addHeader(header.getName(), header.getValue());
+            }
+        }
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity != null) {
+                // As the classic client does, a Content-Type given as a header wins over the one of the body.
+                if (entity.getContentType() != null && !request.containsHeader(entity.getContentType().getName())) {
+                    builder.addHeader(entity.getContentType().getName(), entity.getContentType().getValue());
+                }
+                if (entity.getContentEncoding() != null) {
+                    builder.addHeader(entity.getContentEncoding().getName(), entity.getContentEncoding().getValue());
+                }
+                builder.setEntity(toEntityProducer(entity));
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Convert the request body. The Content-Type and Content-Encoding headers are sent as request headers.
+     * @param entity classic request body
+     * @return producer of the body
+     */
+    private static AsyncEntityProducer toEntityProducer(HttpEntity entity) {
+        // Copied by a writer thread as the connection accepts data, without holding the body in memory.
+        // Written rather than read, as a compressing body can only be written.
+        return new AbstractClassicEntityProducer(BUFFER_SIZE, null, BODY_WRITERS) {
+            @Override
+            protected void produceData(ContentType contentType, OutputStream outputStream) throws IOException {
+                entity.writeTo(outputStream);
+            }
+        };
+    }
+
+    private static CloseableHttpResponse toResponse(SimpleHttpResponse response) {
+        Http2Response res = new Http2Response(response.getCode(), response.getReasonPhrase());
+        for (org.apache.hc.core5.http.Header header : response.getHeaders()) {
+            res.addHeader(header.getName(), header.getValue());
+        }
+        byte[] body = response.getBodyBytes();
+        if (body != null) {
+            ByteArrayEntity entity = new ByteArrayEntity(body);
+            entity.setContentType(res.getFirstHeader("Content-Type"));
+            entity.setContentEncoding(res.getFirstHeader("Content-Encoding"));
+            res.setEntity(entity);
+        }
+        return res;
+    }
+
+    /**
+     * Consumer reading the response body in memory, which fails the exchange as soon as the body exceeds the max size.
+     */
+    private static final class LimitedResponseConsumer extends AbstractBinResponseConsumer<SimpleHttpResponse> {
+        private final long maxSize;
+        private SimpleHttpResponse response;
+        private ContentType contentType;
+        /** Body, or null if the response has no body. */
+        private ByteArrayBuffer body;
+
+        LimitedResponseConsumer(long maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected void start(HttpResponse res, ContentType type) throws IOException {
+            response = SimpleHttpResponse.copy(res);
+            contentType = type;
+            if (type == null) {
+                return;
+            }
+            long length = -1;
+            org.apache.hc.core5.http.Header contentLength = res.getFirstHeader("Content-Length");
+            if (contentLength != null) {
+                try {
+                    length = Long.parseLong(contentLength.getValue());
+                } catch (NumberFormatException e) {
+                    length = -1;
+                }
+            }
+            if (length > maxSize) {
+                throw new ResponseTooLargeException(maxSize);
+            }
+            body = new ByteArrayBuffer(BUFFER_SIZE);
+        }
+
+        @Override
+        protected int capacityIncrement() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        protected void data(ByteBuffer src, boolean endOfStream) throws IOException {
+            if (body.length() + (long) src.remaining() > maxSize) {
+                throw new ResponseTooLargeException(maxSize);
+            }
+            if (src.hasArray()) {
+                body.append(src.array(), src.arrayOffset() + src.position(), src.remaining());
+                src.position(src.limit());
+            } else {
+                while (src.hasRemaining()) {
+                    body.append(src.get());
+                }
+            }
+        }
+
+        @Override
+        protected SimpleHttpResponse buildResult() {
+            if (body != null) {
+                response.setBody(body.toByteArray(), contentType);
+            }
+            return response;
+        }
+
+        @Override
+        public void releaseResources() {
+            body = null;
+        }
+    }
+
+    /**
+     * Classic response converted from an HTTP/2 response. The body is in memory, so close does nothing.
+     */
+    private static final class Http2Response extends BasicHttpResponse implements CloseableHttpResponse {
+        Http2Response(int code, String reason) {
+            super(HTTP_2, code, reason);
+        }
+
+        @Override
+        public void close() {
+            // Nothing to release.
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.http.pool.PoolStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process-wide metrics of the requests and the shared connection pools, exposed as JMX MXBeans.
+ * <p>
+ * Requests are measured per origin and method under
+ * {@code io.personium.engine.extension.httpclient:type=Requests,origin=...,method=...}, and connection pools
+ * under {@code io.personium.engine.extension.httpclient:type=ConnectionPool,name=...}, and bulkheads
+ * under {@code io.personium.engine.extension.httpclient:type=Bulkhead,origin=...}.
+ * Setting the system property {@code io.personium.engine.extension.httpclient.metrics.logInterval} (seconds)
+ * also logs all the metrics periodically.
+ */
+final class HttpClientMetrics {
+
+    /** Logger. */
+    private static final Logger log = LoggerFactory.getLogger(HttpClientMetrics.class);
+
+    /** JMX domain. */
+    static final String DOMAIN = "io.personium.engine.extension.httpclient";
+
+    /** Prefix of system properties. */
+    private static final String PROPERTY_PREFIX = DOMAIN + ".metrics.";
+    /** Default max number of origins measured separately. */
+    private static final int DEFAULT_MAX_ORIGINS = 1000;
+    /** Max number of origins measured separately. The others are measured together. */
+    private static final int MAX_ORIGINS = Integer.getInteger(PROPERTY_PREFIX + "maxOrigins", DEFAULT_MAX_ORIGINS);
+    /** Interval(seconds) of logging the metrics. 0:No logging. */
+    private static final long LOG_INTERVAL = Long.getLong(PROPERTY_PREFIX + "logInterval", 0);
+    /** Origin of the requests beyond the max number of origins. */
+    private static final String OTHER_ORIGIN = "other";
+
+    /** Request metrics by origin and method. */
+    private static final ConcurrentMap<String, RequestMetrics> REQUESTS = new ConcurrentHashMap<>();
+    /** Connection pool metrics by name. */
+    private static final ConcurrentMap<ObjectName, ConnectionPool> POOLS = new ConcurrentHashMap<>();
+    /** Sequence of pool names. */
+    private static final AtomicInteger POOL_SEQUENCE = new AtomicInteger();
+
+    static {
+        if (LOG_INTERVAL > 0) {
+            ScheduledExecutorService logger = Executors.newSingleThreadScheduledExecutor(
+                    new DaemonThreadFactory("personium-httpclient-metrics-"));
+            logger.scheduleAtFixedRate(HttpClientMetrics::logAll, LOG_INTERVAL, LOG_INTERVAL, TimeUnit.SECONDS);
+        }
+    }
+
+    private HttpClientMetrics() {
+    }
+
+    /**
+     * Get the metrics of the requests to the origin of the uri with the method, registering them on first use.
+     * @param uri request uri
+     * @param method http method
+     * @return metrics
+     */
+    static RequestMetrics of(URI uri, String method) {
+        String origin = CircuitBreaker.toOrigin(uri);
+        String key = origin + " " + method;
+        RequestMetrics metrics = REQUESTS.get(key);
+        if (metrics != null) {
+            return metrics;
+        }
+        if (REQUESTS.size() >= MAX_ORIGINS) {
+            origin = OTHER_ORIGIN;
+            key = origin + " " + method;
+        }
+        String metricsOrigin = origin;
+        return REQUESTS.computeIfAbsent(key, k -> {
+            RequestMetrics created = new RequestMetrics(metricsOrigin, method);
+            register(created, String.format("%s:type=Requests,origin=%s,method=%s",
+                    DOMAIN, ObjectName.quote(metricsOrigin), ObjectName.quote(method)));
+            return created;
+        });
+    }
+
+    /**
+     * @return metrics of all the requests
+     */
+    static List<RequestMetrics> getRequestMetrics() {
+        return new ArrayList<>(REQUESTS.values());
+    }
+
+    /**
+     * Register the metrics of a shared connection pool.
+     * @param config configuration of the client owning the pool
+     * @param connectionManager connection pool
+     * @return name to unregister the metrics with, or null if not registered
+     */
+    static ObjectName registerPool(ClientConfig config, EvictingConnectionManager connectionManager) {
+        ConnectionPool pool = new ConnectionPool(config.toString(), connectionManager);
+        ObjectName name = register(pool, String.format(Locale.ENGLISH, "%s:type=ConnectionPool,name=pool-%d",
+                DOMAIN, POOL_SEQUENCE.incrementAndGet()));
+        if (name != null) {
+            POOLS.put(name, pool);
+        }
+        return name;
+    }
+
+    /**
+     * Register the metrics of a shared bulkhead.
+     * @param bulkhead bulkhead
+     */
+    static void registerBulkhead(Bulkhead bulkhead) {
+        register(bulkhead, String.format("%s:type=Bulkhead,origin=%s",
+                DOMAIN, ObjectName.quote(bulkhead.getOrigin())));
+    }
+
+    /**
+     * Unregister the metrics of a connection pool.
+     * @param name name returned by {@link #registerPool}, or null
+     */
+    static void unregisterPool(ObjectName name) {
+        if (name == null || POOLS.remove(name) == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            log.info("Failed to unregister MBean: " + name, e);
+        }
+    }
+
+    private static ObjectName register(Object bean, String name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = new ObjectName(name);
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(bean, objectName);
+            return objectName;
+        } catch (JMException e) {
+            // Metrics are still collected, and logged if configured.
+            log.info("Failed to register MBean: " + name, e);
+            return null;
+        }
+    }
+
+    private static void logAll() {
+        try {
+            for (RequestMetrics metrics : REQUESTS.values()) {
+                log.info("Requests: {}", metrics);
+            }
+            for (ConnectionPool pool : POOLS.values()) {
+                log.info("Connection pool: {}", pool);
+            }
+            for (Bulkhead bulkhead : Bulkhead.all()) {
+                log.info("Bulkhead: {}", bulkhead);
+            }
+        } catch (RuntimeException e) {
+            log.warn("Failed to log metrics.", e);
+        }
+    }
+
+    /**
+     * Metrics of a shared connection pool.
+     */
+    static final class ConnectionPool implements ConnectionPoolMXBean {
+        private final String config;
+        private final EvictingConnectionManager connectionManager;
+
+        ConnectionPool(String config, EvictingConnectionManager connectionManager) {
+            this.config = config;
+            this.connectionManager = connectionManager;
+        }
+
+        @Override
+        public String getConfig() {
+            return config;
+        }
+
+        @Override
+        public int getLeased() {
+            return connectionManager.getTotalStats().getLeased();
+        }
+
+        @Override
+        public int getAvailable() {
+            return connectionManager.getTotalStats().getAvailable();
+        }
+
+        @Override
+        public int getPending() {
+            return connectionManager.getTotalStats().getPending();
+        }
+
+        @Override
+        public int getMax() {
+            return connectionManager.getTotalStats().getMax();
+        }
+
+        @Override
+        public long getCreated() {
+            return connectionManager.getCreated();
+        }
+
+        @Override
+        public long getEvicted() {
+            return connectionManager.getEvicted();
+        }
+
+        @Override
+        public String toString() {
+            PoolStats stats = connectionManager.getTotalStats();
+            return String.format("leased=%d available=%d pending=%d max=%d created=%d evicted=%d %s",
+                    stats.getLeased(), stats.getAvailable(), stats.getPending(), stats.getMax(),
+                    connectionManager.getCreated(), connectionManager.getEvicted(), config);
+        }
+    }
+}
@@ -0,0 +1,356 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.cache.CacheConfig;
+import org.apache.http.impl.client.cache.CachingHttpClientBuilder;
+import org.apache.http.impl.client.cache.CachingHttpClients;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.pool.PoolStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process-wide registry of pooled HttpClients.
+ * <p>
+ * One client, backed by its own {@link EvictingConnectionManager}, is created per effective
+ * {@link ClientConfig} and shared by all Ext_HttpClient instances, so that connections are kept alive
+ * and reused across script calls. A background task evicts the idle and expired connections of the pools.
+ * <p>
+ * The number of clients is bounded by the system property "io.personium.engine.extension.httpclient.pool.maxClients".
+ * A client not used for ".pool.clientIdleTimeout" is retired: it is removed, and closed by a later run of the task
+ * once its connections are returned, so that a caller still holding it can finish. A configuration that needs a new
+ * client while all are in use fails.
+ */
+final class HttpClientRegistry {
+
+    /** Logger. */
+    private static final Logger log = LoggerFactory.getLogger(HttpClientRegistry.class);
+
+    /** Prefix of system properties. */
+    private static final String PROPERTY_PREFIX = HttpClientMetrics.DOMAIN + ".pool.";
+    /** Default interval(milliseconds) of eviction. */
+    private static final long DEFAULT_EVICT_INTERVAL = 5000;
+    /** Interval(milliseconds) of eviction. */
+    private static final long EVICT_INTERVAL = Long.getLong(PROPERTY_PREFIX + "evictInterval", DEFAULT_EVICT_INTERVAL);
+    /** Default max number of clients. */
+    private static final int DEFAULT_MAX_CLIENTS = 32;
+    /** Max number of clients. */
+    static final int MAX_CLIENTS = Integer.getInteger(PROPERTY_PREFIX + "maxClients", DEFAULT_MAX_CLIENTS);
+    /** Default time(milliseconds) after which an unused client is retired. */
+    private static final long DEFAULT_CLIENT_IDLE_TIMEOUT = 10 * 60 * 1000;
+    /** Time(milliseconds) after which an unused client is retired. */
+    static final long CLIENT_IDLE_TIMEOUT = Long.getLong(PROPERTY_PREFIX + "clientIdleTimeout",
+            DEFAULT_CLIENT_IDLE_TIMEOUT);
+
+    /** Evictor of idle and expired connections. */
+    private static final ScheduledExecutorService EVICTOR =
+            Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("personium-httpclient-evictor-"));
+
+    /** Clients by configuration. */
+    private static final ConcurrentMap<ClientConfig, PooledClient> CLIENTS = new ConcurrentHashMap<>();
+
+    /** Clients removed from CLIENTS and not closed yet. Guarded by CLIENTS. */
+    private static final List<PooledClient> RETIRED = new ArrayList<>();
+
+    /** Response cache storages on disk by directory. Guarded by CLIENTS. */
+    private static final Map<File, MappedFileCacheStorage> STORAGES = new HashMap<>();
+
+    static {
+        EVICTOR.scheduleWithFixedDelay(HttpClientRegistry::evictAll, EVICT_INTERVAL, EVICT_INTERVAL,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private HttpClientRegistry() {
+    }
+
+    /**
+     * Return the shared HttpClient for the configuration, creating it on first use.
+     * The returned client must not be closed by the caller.
+     * @param config client configuration
+     * @return HttpClient
+     * @throws GeneralSecurityException security error
+     * @throws IOException failed to open the response cache directory, or too many clients are in use
+     */
+    static CloseableHttpClient getClient(ClientConfig config) throws GeneralSecurityException, IOException {
+        PooledClient client = CLIENTS.get(config);
+        if (client != null) {
+            client.touch();
+            return client.getHttpClient();
+        }
+        synchronized (CLIENTS) {
+            client = CLIENTS.get(config);
+            if (client == null) {
+                if (CLIENTS.size() >= MAX_CLIENTS) {
+                    retireIdleClients(System.currentTimeMillis());
+                }
+                if (CLIENTS.size() >= MAX_CLIENTS) {
+                    throw new IOException(String.format("Too many HttpClient configurations are in use (%d).",
+                            MAX_CLIENTS));
+                }
+                client = createClient(config);
+                CLIENTS.put(config, client);
+            }
+            client.touch();
+        }
+        return client.getHttpClient();
+    }
+
+    /**
+     * Return the connection manager of the shared HttpClient for the configuration.
+     * @param config client configuration
+     * @return connection manager, or null if the client has not been created yet
+     */
+    static EvictingConnectionManager getConnectionManager(ClientConfig config) {
+        PooledClient client = CLIENTS.get(config);
+        if (client == null) {
+            return null;
+        }
+        return client.getConnectionManager();
+    }
+
+    /**
+     * Evict the idle and expired connections of all the pools.
+     */
+    static void evictAll() {
+        for (PooledClient client : CLIENTS.values()) {
+            try {
+                int evicted = client.getConnectionManager().evict();
+                if (evicted > 0) {
+                    log.debug("Evicted {} connections of {}", evicted, client.getPoolMetricsName());
+                }
+            } catch (RuntimeException e) {
+                // The task must not die, or it would not run anymore.
+                log.info("Failed to evict connections.", e);
+            }
+        }
+        synchronized (CLIENTS) {
+            // Retired by an earlier run, so that the callers which got them before have leased their connections.
+            closeRetiredClients();
+            retireIdleClients(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Remove the clients not used since the idle timeout and without connections in use.
+     * They are closed by {@link #closeRetiredClients()}.
+     * @param now current time(milliseconds)
+     */
+    static void retireIdleClients(long now) {
+        synchronized (CLIENTS) {
+            Iterator<PooledClient> clients = CLIENTS.values().iterator();
+            while (clients.hasNext()) {
+                PooledClient client = clients.next();
+                if (now - client.getLastUsed() >= CLIENT_IDLE_TIMEOUT && !client.isInUse()) {
+                    clients.remove();
+                    HttpClientMetrics.unregisterPool(client.getPoolMetricsName());
+                    RETIRED.add(client);
+                    log.debug("Retire HttpClient: {}", client.getPoolMetricsName());
+                }
+            }
+        }
+    }
+
+    /**
+     * Close the retired clients whose connections are all returned. Called with the lock of CLIENTS held.
+     */
+    private static void closeRetiredClients() {
+        Iterator<PooledClient> clients = RETIRED.iterator();
+        while (clients.hasNext()) {
+            PooledClient client = clients.next();
+            if (!client.isInUse()) {
+                clients.remove();
+                close(client);
+            }
+        }
+    }
+
+    private static void close(PooledClient client) {
+        try {
+            client.getHttpClient().close();
+        } catch (IOException e) {
+            log.info("Failed to close HttpClient.", e);
+        }
+    }
+
+    /**
+     * Close all the shared HttpClients, their connection pools and the HTTP/2 clients.
+     */
+    static void closeAll() {
+        Http2Transport.closeAll();
+        synchronized (CLIENTS) {
+            for (PooledClient client : CLIENTS.values()) {
+                HttpClientMetrics.unregisterPool(client.getPoolMetricsName());
+                close(client);
+            }
+            CLIENTS.clear();
+            for (PooledClient client : RETIRED) {
+                close(client);
+            }
+            RETIRED.clear();
+            for (MappedFileCacheStorage storage : STORAGES.values()) {
+                storage.close();
+            }
+            STORAGES.clear();
+        }
+    }
+
+    private static PooledClient createClient(ClientConfig config) throws GeneralSecurityException, IOException {
+        Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", SSLSocketFactoryCache.getSocketFactory(config))
+                .build();
+
+        DnsResolver dnsResolver = null;
+        if (config.isDnsCache()) {
+            dnsResolver = CachingDnsResolver.SHARED;
+        }
+        EvictingConnectionManager connectionManager = new EvictingConnectionManager(socketFactoryRegistry,
+                dnsResolver, config.getIdleConnectionTimeout());
+        connectionManager.setMaxTotal(config.getMaxTotalConnections());
+        connectionManager.setDefaultMaxPerRoute(config.getMaxConnectionsPerRoute());
+        // A connection idle for a while may have been closed by the server, so it is checked before reuse.
+        connectionManager.setValidateAfterInactivity(config.getValidateAfterInactivity());
+
+        HttpClientBuilder builder;
+        if (config.isResponseCache()) {
+            // RFC 7234 caching. The cache is shared by the engine, so it behaves as a shared cache.
+            CacheConfig cacheConfig = CacheConfig.custom()
+                    .setMaxCacheEntries(config.getResponseCacheMaxEntries())
+                    .setMaxObjectSize(config.getResponseCacheMaxObjectSize())
+                    .setSharedCache(true)
+                    .build();
+            CachingHttpClientBuilder cachingBuilder = CachingHttpClients.custom().setCacheConfig(cacheConfig);
+            if (config.getResponseCacheDirectory() != null) {
+                MappedFileCacheStorage storage = getCacheStorage(config);
+                cachingBuilder.setResourceFactory(new MappedFileResourceFactory(storage.getDirectory()));
+                cachingBuilder.setHttpCacheStorage(storage);
+            }
+            builder = cachingBuilder;
+        } else {
+            builder = HttpClients.custom();
+        }
+        builder.setConnectionManager(connectionManager);
+        builder.setKeepAliveStrategy(new KeepAliveStrategy(config.getMaxKeepAlive()));
+        // Ext_HttpClient retries by its own policy.
+        builder.disableAutomaticRetries();
+
+        // Response decoding. Decoded bodies are read as streams, in text mode as well.
+        if (config.getAcceptEncoding().isEmpty()) {
+            builder.disableContentCompression();
+        } else if (!config.getAcceptEncoding().equals(ClientConfig.DEFAULT_ACCEPT_ENCODING)) {
+            builder.setContentDecoderRegistry(ContentCodings.createDecoders(config.getAcceptEncoding()));
+        }
+
+        // Proxy settings.
+        builder.useSystemProperties();
+
+        log.debug("Create HttpClient: {}", config);
+        return new PooledClient(builder.build(), connectionManager,
+                HttpClientMetrics.registerPool(config, connectionManager));
+    }
+
+    /**
+     * Return the response cache storage of the directory, opening it on first use.
+     * One storage is shared by all the clients that use the same directory.
+     * @param config client configuration
+     * @return response cache storage
+     * @throws IOException failed to open the directory, or the name is not a plain directory name
+     */
+    private static MappedFileCacheStorage getCacheStorage(ClientConfig config) throws IOException {
+        File directory = MappedFileCacheStorage.resolve(config.getResponseCacheDirectory());
+        if (directory == null) {
+            throw new IOException("Invalid response cache directory: " + config.getResponseCacheDirectory());
+        }
+        MappedFileCacheStorage storage = STORAGES.get(directory);
+        if (storage == null) {
+            storage = new MappedFileCacheStorage(directory,
+                    config.getResponseCacheMaxEntries(), config.getResponseCacheMaxDiskSize());
+            STORAGES.put(directory, storage);
+        }
+        return storage;
+    }
+
+    /**
+     * HttpClient and its connection manager.
+     */
+    private static final class PooledClient {
+        private final CloseableHttpClient httpClient;
+        private final EvictingConnectionManager connectionManager;
+        private final ObjectName poolMetricsName;
+        /** Time(milliseconds) the client was last returned to a caller. */
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        PooledClient(CloseableHttpClient httpClient, EvictingConnectionManager connectionManager,
+                ObjectName poolMetricsName) {
+            this.httpClient = httpClient;
+            this.connectionManager = connectionManager;
+            this.poolMetricsName = poolMetricsName;
+        }
+
+        CloseableHttpClient getHttpClient() {
+            return httpClient;
+        }
+
+        EvictingConnectionManager getConnectionManager() {
+            return connectionManager;
+        }
+
+        ObjectName getPoolMetricsName() {
+            return poolMetricsName;
+        }
+
+        void touch() {
+            lastUsed = System.currentTimeMillis();
+        }
+
+        long getLastUsed() {
+            return lastUsed;
+        }
+
+        /**
+         * @return true if connections are leased, or requested
+         */
+        boolean isInUse() {
+            PoolStats stats = connectionManager.getTotalStats();
+            return stats.getLeased() > 0 || stats.getPending() > 0;
+        }
+    }
+}
@@ -0,0 +1,399 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.TopLevel;
+
+/**
+ * Parser of JSON response bodies into javascript objects.
+ * <p>
+ * The body is parsed as it is decoded from the connection, so neither the bytes nor the text of the whole body
+ * are held in memory; only the resulting NativeObject and NativeArray graph is.
+ * Parsing fails as soon as the body exceeds the max size or nests deeper than the max depth.
+ */
+final class JsonResponseParser {
+
+    /** Size of the buffer of decoded characters. */
+    private static final int BUFFER_SIZE = 8192;
+    /** Max digits of a number parsed without Double.parseDouble. Exact as double up to 15 digits. */
+    private static final int MAX_FAST_DIGITS = 15;
+    /** Radix of decimal numbers. */
+    private static final int DECIMAL = 10;
+    /** Radix of unicode escapes. */
+    private static final int HEX = 16;
+    /** Digits of a unicode escape. */
+    private static final int UNICODE_ESCAPE_LENGTH = 4;
+
+    private final Reader reader;
+    private final int maxDepth;
+    private final Scriptable scope;
+    /** Prototype of objects, looked up once. */
+    private final Scriptable objectPrototype;
+    /** Prototype of arrays, looked up once. */
+    private final Scriptable arrayPrototype;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private final StringBuilder builder = new StringBuilder();
+    private int pos = 0;
+    private int limit = 0;
+    /** Characters read before the buffer. */
+    private long offset = 0;
+    private int depth = 0;
+
+    private JsonResponseParser(Reader reader, int maxDepth, Scriptable scope) {
+        this.reader = reader;
+        this.maxDepth = maxDepth;
+        this.scope = scope;
+        if (scope == null) {
+            objectPrototype = null;
+            arrayPrototype = null;
+        } else {
+            objectPrototype = TopLevel.getBuiltinPrototype(scope, TopLevel.Builtins.Object);
+            arrayPrototype = TopLevel.getBuiltinPrototype(scope, TopLevel.Builtins.Array);
+        }
+    }
+
+    /**
+     * Parse a JSON body.
+     * @param in body stream
+     * @param charset charset of the body
+     * @param maxDepth max nesting depth of objects and arrays
+     * @param maxSize max size(bytes) of the body
+     * @param scope scope giving the prototypes of the created objects, or null
+     * @return NativeObject, NativeArray, String, Double, Boolean or null
+     * @throws IOException failed to read, the body is not JSON or exceeds the limits.
+     * {@link ResponseTooLargeException} if the body exceeds the max size
+     */
+    static Object parse(InputStream in, Charset charset, int maxDepth, long maxSize, Scriptable scope)
+            throws IOException {
+        Reader reader = new InputStreamReader(new LimitedInputStream(in, maxSize), charset);
+        JsonResponseParser parser = new JsonResponseParser(reader, maxDepth, scope);
+        Object value = parser.readValue(parser.nextToken());
+        if (parser.peekToken() != -1) {
+            throw parser.error("Unexpected character after JSON value");
+        }
+        return value;
+    }
+
+    private Object readValue(int c) throws IOException {
+        switch (c) {
+        case '{':
+            return readObject();
+        case '[':
+            return readArray();
+        case '"':
+            return readString();
+        case 't':
+            readLiteral("rue");
+            return Boolean.TRUE;
+        case 'f':
+            readLiteral("alse");
+            return Boolean.FALSE;
+        case 'n':
+            readLiteral("ull");
+            return null;
+        default:
+            if (c == '-' || (c >= '0' && c <= '9')) {
+                return readNumber(c);
+            }
+            throw error("Unexpected character");
+        }
+    }
+
+    private NativeObject readObject() throws IOException {
+        enter();
+        NativeObject object = new NativeObject();
+        if (scope != null) {
+            object.setPrototype(objectPrototype);
+            object.setParentScope(scope);
+        }
+        int c = nextToken();
+        if (c != '}') {
+            while (true) {
+                if (c != '"') {
+                    throw error("Expected property name");
+                }
+                String key = readString();
+                if (nextToken() != ':') {
+                    throw error("Expected ':'");
+                }
+                Object value = readValue(nextToken());
+                int index = toIndex(key);
+                if (index < 0) {
+                    object.put(key, object, value);
+                } else {
+                    object.put(index, object, value);
+                }
+                c = nextToken();
+                if (c == '}') {
+                    break;
+                }
+                if (c != ',') {
+                    throw error("Expected ',' or '}'");
+                }
+                c = nextToken();
+            }
+        }
+        depth--;
+        return object;
+    }
+
+    private NativeArray readArray() throws IOException {
+        enter();
+        List<Object> elements = new ArrayList<>();
+        int c = nextToken();
+        if (c != ']') {
+            while (true) {
+                elements.add(readValue(c));
+                c = nextToken();
+                if (c == ']') {
+                    break;
+                }
+                if (c != ',') {
+                    throw error("Expected ',' or ']'");
+                }
+                c = nextToken();
+            }
+        }
+        depth--;
+        NativeArray array = new NativeArray(elements.toArray());
+        if (scope != null) {
+            array.setPrototype(arrayPrototype);
+            array.setParentScope(scope);
+        }
+        return array;
+    }
+
+    private void enter() throws IOException {
+        if (++depth > maxDepth) {
+            throw new IOException(String.format("JSON response is nested deeper than %d.", maxDepth));
+        }
+    }
+
+    /**
+     * Read a string after the opening quote.
+     * @return string
+     * @throws IOException failed to read or invalid string
+     */
+    private String readString() throws IOException {
+        // Most strings have no escapes and lie within the buffer.
+        int start = pos;
+        while (pos < limit) {
+            char c = buffer[pos++];
+            if (c == '"') {
+                return new String(buffer, start, pos - start - 1);
+            }
+            if (c == '\\' || c < ' ') {
+                pos--;
+                break;
+            }
+        }
+        builder.setLength(0);
+        builder.append(buffer, start, pos - start);
+        while (true) {
+            int c = read();
+            if (c == '"') {
+                return builder.toString();
+            }
+            if (c == '\\') {
+                builder.append(readEscape());
+            } else if (c < ' ') {
+                // Includes the end of the body.
+                throw error("Unterminated string");
+            } else {
+                builder.append((char) c);
+            }
+        }
+    }
+
+    private char readEscape() throws IOException {
+        int c = read();
+        switch (c) {
+        case '"':
+        case '\\':
+        case '/':
+            return (char) c;
+        case 'b':
+            return '\b';
+        case 'f':
+            return '\f';
+        case 'n':
+            return '\n';
+        case 'r':
+            return '\r';
+        case 't':
+            return '\t';
+        case 'u':
+            int code = 0;
+            for (int i = 0; i < UNICODE_ESCAPE_LENGTH; i++) {
+                int digit = Character.digit(read(), HEX);
+                if (digit < 0) {
+                    throw error("Invalid unicode escape");
+                }
+                code = code * HEX + digit;
+            }
+            return (char) code;
+        default:
+            throw error("Invalid escape");
+        }
+    }
+
+    /**
+     * Read a number from its first character.
+     * @param first '-' or digit
+     * @return number
+     * @throws IOException failed to read or invalid number
+     */
+    private Double readNumber(int first) throws IOException {
+        builder.setLength(0);
+        builder.append((char) first);
+        boolean integer = true;
+        while (true) {
+            int c = peek();
+            if (c >= '0' && c <= '9') {
+                builder.append((char) c);
+            } else if (c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+                builder.append((char) c);
+                integer = false;
+            } else {
+                break;
+            }
+            pos++;
+        }
+        int length = builder.length();
+        int digits = 0;
+        if (first == '-') {
+            digits = 1;
+        }
+        // Double.valueOf checks the rest of the syntax.
+        if (length == digits || !isDigit(builder.charAt(digits)) || !isDigit(builder.charAt(length - 1))
+                || length > digits + 1 && builder.charAt(digits) == '0' && isDigit(builder.charAt(digits + 1))) {
+            throw error("Invalid number");
+        }
+        if (integer && length <= MAX_FAST_DIGITS) {
+            long value = 0;
+            for (int i = 0; i < length; i++) {
+                char c = builder.charAt(i);
+                if (c != '-') {
+                    value = value * DECIMAL + (c - '0');
+                }
+            }
+            if (first == '-') {
+                // -0 stays negative zero as in JSON.parse.
+                return -(double) value;
+            }
+            return (double) value;
+        }
+        try {
+            return Double.valueOf(builder.toString());
+        } catch (NumberFormatException e) {
+            throw error("Invalid number");
+        }
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private void readLiteral(String rest) throws IOException {
+        for (int i = 0; i < rest.length(); i++) {
+            if (read() != rest.charAt(i)) {
+                throw error("Invalid literal");
+            }
+        }
+    }
+
+    /**
+     * @param key property name
+     * @return array index the name stands for, or -1
+     */
+    private static int toIndex(String key) {
+        int length = key.length();
+        if (length == 0 || length > MAX_FAST_DIGITS || length > 1 && key.charAt(0) == '0') {
+            return -1;
+        }
+        long index = 0;
+        for (int i = 0; i < length; i++) {
+            char c = key.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            index = index * DECIMAL + (c - '0');
+        }
+        if (index >= Integer.MAX_VALUE) {
+            return -1;
+        }
+        return (int) index;
+    }
+
+    /**
+     * @return next character that is not white space, or -1 at the end
+     * @throws IOException failed to read
+     */
+    private int nextToken() throws IOException {
+        int c = peekToken();
+        if (c != -1) {
+            pos++;
+        }
+        return c;
+    }
+
+    private int peekToken() throws IOException {
+        while (true) {
+            int c = peek();
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return c;
+            }
+            pos++;
+        }
+    }
+
+    private int read() throws IOException {
+        int c = peek();
+        if (c != -1) {
+            pos++;
+        }
+        return c;
+    }
+
+    private int peek() throws IOException {
+        if (pos == limit) {
+            offset += limit;
+            pos = 0;
+            limit = reader.read(buffer);
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[pos];
+    }
+
+    private IOException error(String message) {
+        return new IOException(String.format("%s at character %d of JSON response.", message, offset + pos));
+    }
+}
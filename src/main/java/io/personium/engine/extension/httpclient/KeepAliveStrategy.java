@@ -0,0 +1,82 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Keep-alive strategy honoring the Keep-Alive timeout of the server, within a cap.
+ * <p>
+ * A server (or a load balancer in front of it) closes an idle connection when its timeout passes.
+ * A connection reused just then fails with NoHttpResponseException, so the connection is kept a margin
+ * shorter than the server's timeout. Without Keep-Alive timeout, the connection is kept for the cap,
+ * instead of forever as by default.
+ */
+final class KeepAliveStrategy implements ConnectionKeepAliveStrategy {
+
+    /** Parameter of Keep-Alive header. */
+    private static final String PARAM_TIMEOUT = "timeout";
+    /** Time(milliseconds) subtracted from the server's timeout. */
+    private static final long MARGIN = 1000;
+
+    /** Max time(milliseconds) a connection is kept alive. */
+    private final long maxKeepAlive;
+
+    /**
+     * Constructor.
+     * @param maxKeepAlive max time(milliseconds) a connection is kept alive
+     */
+    KeepAliveStrategy(long maxKeepAlive) {
+        this.maxKeepAlive = maxKeepAlive;
+    }
+
+    @Override
+    public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+        HeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+        while (it.hasNext()) {
+            HeaderElement element = it.nextElement();
+            if (PARAM_TIMEOUT.equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+                long seconds = parseSeconds(element.getValue());
+                if (seconds >= 0) {
+                    // At least 1 millisecond, since 0 would keep the connection forever.
+                    return Math.max(1, Math.min(TimeUnit.SECONDS.toMillis(seconds) - MARGIN, maxKeepAlive));
+                }
+            }
+        }
+        return maxKeepAlive;
+    }
+
+    /**
+     * @param value timeout parameter of Keep-Alive header
+     * @return seconds, or -1 if the value is not a number
+     */
+    private static long parseSeconds(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
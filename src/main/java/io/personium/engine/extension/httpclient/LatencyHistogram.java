@@ -0,0 +1,145 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies with log-linear buckets, in the manner of HdrHistogram.
+ * <p>
+ * Latencies are counted in microseconds. Each power of two is split into 16 buckets,
+ * which keeps the relative error of percentiles within about 6% over the whole range.
+ * Recording is a few atomic increments and takes no lock.
+ */
+final class LatencyHistogram {
+
+    /** Bits of the sub-buckets of a power of two. */
+    private static final int SUB_BUCKET_BITS = 4;
+    /** Number of sub-buckets of a power of two. */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /** Max power of two of the recorded latencies(microseconds), about 12 days. */
+    private static final int MAX_EXPONENT = 40;
+    /** Max latency(microseconds) recorded. Larger latencies are counted in the last bucket. */
+    private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+    /** Number of buckets. */
+    private static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    /** Bits of a long. */
+    private static final int LONG_BITS = 64;
+
+    /** Percentiles of snapshots. */
+    private static final double P50 = 0.5;
+    private static final double P90 = 0.9;
+    private static final double P99 = 0.99;
+    private static final double P999 = 0.999;
+    /** Microseconds per millisecond. */
+    private static final double MICROS_PER_MILLI = 1000.0;
+
+    /** Counts of the buckets. */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    /** Number of recorded latencies. */
+    private final AtomicLong count = new AtomicLong();
+    /** Sum(microseconds) of recorded latencies. */
+    private final AtomicLong sum = new AtomicLong();
+    /** Max(microseconds) of recorded latencies. */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a latency.
+     * @param nanos latency(nanoseconds)
+     */
+    void record(long nanos) {
+        long micros = Math.min(MAX_VALUE, Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos)));
+        counts.incrementAndGet(indexOf(micros));
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+        long current = max.get();
+        while (micros > current && !max.compareAndSet(current, micros)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Take a snapshot. Latencies recorded meanwhile may be partly included.
+     * @return snapshot in milliseconds
+     */
+    LatencySnapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        double mean = 0;
+        if (total > 0) {
+            mean = sum.get() / (double) total / MICROS_PER_MILLI;
+        }
+        return new LatencySnapshot(total, mean, max.get() / MICROS_PER_MILLI,
+                percentile(copy, total, P50), percentile(copy, total, P90),
+                percentile(copy, total, P99), percentile(copy, total, P999));
+    }
+
+    /**
+     * @return number of recorded latencies
+     */
+    long getCount() {
+        return count.get();
+    }
+
+    private static double percentile(long[] copy, long total, double p) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * p);
+        long seen = 0;
+        for (int i = 0; i < copy.length; i++) {
+            seen += copy[i];
+            if (seen >= rank) {
+                return highestValueOf(i) / MICROS_PER_MILLI;
+            }
+        }
+        return highestValueOf(copy.length - 1) / MICROS_PER_MILLI;
+    }
+
+    /**
+     * @param micros latency(microseconds)
+     * @return index of the bucket
+     */
+    static int indexOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = LONG_BITS - 1 - Long.numberOfLeadingZeros(micros);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int sub = (int) (micros >>> shift) - SUB_BUCKETS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @param index index of the bucket
+     * @return highest latency(microseconds) counted in the bucket
+     */
+    static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        long sub = (index - SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
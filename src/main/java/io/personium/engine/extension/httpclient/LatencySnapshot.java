@@ -0,0 +1,117 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Snapshot of a {@link LatencyHistogram}, in milliseconds.
+ * Public for JMX, which exposes it as composite data.
+ */
+public final class LatencySnapshot {
+
+    /** Number of latencies. */
+    private final long count;
+    /** Mean. */
+    private final double mean;
+    /** Max. */
+    private final double max;
+    /** 50th percentile. */
+    private final double p50;
+    /** 90th percentile. */
+    private final double p90;
+    /** 99th percentile. */
+    private final double p99;
+    /** 99.9th percentile. */
+    private final double p999;
+
+    /**
+     * Constructor.
+     * @param count number of latencies
+     * @param mean mean
+     * @param max max
+     * @param p50 50th percentile
+     * @param p90 90th percentile
+     * @param p99 99th percentile
+     * @param p999 99.9th percentile
+     */
+    @ConstructorProperties({"count", "mean", "max", "p50", "p90", "p99", "p999"})
+    public LatencySnapshot(long count, double mean, double max, double p50, double p90, double p99, double p999) {
+        this.count = count;
+        this.mean = mean;
+        this.max = max;
+        this.p50 = p50;
+        this.p90 = p90;
+        this.p99 = p99;
+        this.p999 = p999;
+    }
+
+    /**
+     * @return number of latencies
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return mean
+     */
+    public double getMean() {
+        return mean;
+    }
+
+    /**
+     * @return max
+     */
+    public double getMax() {
+        return max;
+    }
+
+    /**
+     * @return 50th percentile
+     */
+    public double getP50() {
+        return p50;
+    }
+
+    /**
+     * @return 90th percentile
+     */
+    public double getP90() {
+        return p90;
+    }
+
+    /**
+     * @return 99th percentile
+     */
+    public double getP99() {
+        return p99;
+    }
+
+    /**
+     * @return 99.9th percentile
+     */
+    public double getP999() {
+        return p999;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.1f p50=%.1f p90=%.1f p99=%.1f p999=%.1f max=%.1f",
+                count, mean, p50, p90, p99, p999, max);
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Response body stream that holds a {@link StreamLeakGuard.Lease} on its connection.
+ * <p>
+ * Reading to the end, or closing after reading the whole Content-Length, returns the connection to the pool.
+ * Closing before the end releases the lease, which aborts the connection instead of reading the rest of the body.
+ * The body of unknown length (chunked or decoded) is known to be read only at its end.
+ */
+final class LeasedInputStream extends FilterInputStream {
+
+    /** Lease of the connection. */
+    private volatile StreamLeakGuard.Lease lease;
+    /** Bytes of the body, or -1 if unknown. */
+    private final long length;
+    /** Bytes read. */
+    private long count = 0;
+    /** Reached the end of the body. */
+    private boolean eof = false;
+
+    /**
+     * Constructor.
+     * @param in response body stream
+     * @param length bytes of the body, or -1 if unknown
+     */
+    LeasedInputStream(InputStream in, long length) {
+        super(in);
+        this.length = length;
+    }
+
+    /**
+     * Attach the lease released with this stream.
+     * @param streamLease lease
+     */
+    void attach(StreamLeakGuard.Lease streamLease) {
+        this.lease = streamLease;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b == -1) {
+            eof = true;
+            complete();
+        } else {
+            count++;
+            touch();
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n == -1) {
+            eof = true;
+            complete();
+        } else {
+            count += n;
+            touch();
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        count += skipped;
+        touch();
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (eof || (length >= 0 && count >= length)) {
+            // Nothing left to read, so the connection can be reused.
+            complete();
+        } else {
+            // Reading the rest could take long, so the connection is aborted.
+            release();
+        }
+        try {
+            super.close();
+        } catch (IOException e) {
+            // The connection is already aborted.
+            return;
+        }
+    }
+
+    /**
+     * Close the drained body, which returns the connection to the pool, and deregister the lease.
+     * The decoded body may end before the underlying message (e.g. gzip trailer or last chunk),
+     * so the connection is released by closing the stream rather than by EOF.
+     */
+    private void complete() {
+        StreamLeakGuard.Lease l = lease;
+        if (l == null) {
+            return;
+        }
+        try {
+            super.close();
+            l.complete();
+        } catch (IOException e) {
+            l.release();
+        }
+    }
+
+    private void touch() {
+        StreamLeakGuard.Lease l = lease;
+        if (l != null) {
+            l.touch();
+        }
+    }
+
+    private void release() {
+        StreamLeakGuard.Lease l = lease;
+        if (l != null) {
+            l.release();
+        }
+    }
+}
@@ -0,0 +1,453 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import org.apache.http.Header;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.client.cache.Resource;
+import org.apache.http.impl.client.cache.HeapResource;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * HttpCacheStorage that keeps cache entries in files under a directory.
+ * <p>
+ * Bodies are stored by {@link MappedFileResourceFactory} and read through memory-mapped regions,
+ * so they stay off the heap. Each entry (key, headers and a reference to the body file) is written
+ * to its own index file, which lets the storage reopen the existing entries after restart.
+ * Entries are evicted in LRU order when the number of entries or the total body size exceeds the limit.
+ * <p>
+ * The directories are under a root set by the operator with the system property
+ * "io.personium.engine.extension.httpclient.responseCache.directory", and scripts only name a subdirectory.
+ * Index files are written in a format of their own instead of Java serialization, and refer to body files
+ * by name in the same directory.
+ */
+final class MappedFileCacheStorage implements HttpCacheStorage {
+
+    /** Logger. */
+    private static final Logger log = LoggerFactory.getLogger(MappedFileCacheStorage.class);
+
+    /** System property of the root directory of the storages. */
+    static final String PROPERTY_ROOT = HttpClientMetrics.DOMAIN + ".responseCache.directory";
+    /** Default root directory of the storages. */
+    private static final String DEFAULT_ROOT =
+            new File(System.getProperty("java.io.tmpdir"), "personium-httpclient-cache").getPath();
+    /** Name of a storage directory: no separator, and no leading dot, so neither "." nor "..". */
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-][A-Za-z0-9._-]{0,63}");
+
+    /** First bytes of index files. */
+    private static final int MAGIC = 0x50484331;
+    /** Max size(bytes) of a string in index files. */
+    private static final int MAX_STRING_SIZE = 1024 * 1024;
+    /** Max number of headers or variants in index files. */
+    private static final int MAX_ITEMS = 10000;
+    /** Resource kinds in index files. */
+    private static final int RESOURCE_NONE = 0;
+    private static final int RESOURCE_FILE = 1;
+    private static final int RESOURCE_HEAP = 2;
+
+    /** Suffix of index files. */
+    private static final String ENTRY_SUFFIX = ".entry";
+    /** Suffix of temporary files. */
+    private static final String TEMP_SUFFIX = ".tmp";
+    /** Initial capacity of the entry map. */
+    private static final int INITIAL_CAPACITY = 16;
+    /** Load factor of the entry map. */
+    private static final float LOAD_FACTOR = 0.75f;
+
+    /** Cache directory. */
+    private final File directory;
+    /** Max number of entries. */
+    private final int maxEntries;
+    /** Max total size(bytes) of bodies. */
+    private final long maxBytes;
+
+    /** Entries in access order. */
+    private final LinkedHashMap<String, HttpCacheEntry> entries =
+            new LinkedHashMap<>(INITIAL_CAPACITY, LOAD_FACTOR, true);
+    /** Total size(bytes) of bodies. */
+    private long totalBytes = 0;
+    /** Closed flag. */
+    private boolean closed = false;
+
+    /**
+     * Constructor.
+     * Opens the entries already stored in the directory.
+     * @param directory cache directory
+     * @param maxEntries max number of entries
+     * @param maxBytes max total size(bytes) of bodies
+     * @throws IOException failed to open the directory
+     */
+    MappedFileCacheStorage(File directory, int maxEntries, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory.toPath());
+        load();
+    }
+
+    /**
+     * Resolve the directory of a storage under the root directory.
+     * @param name name of the directory given by a script
+     * @return directory, or null if the name is not a plain directory name
+     */
+    static File resolve(String name) {
+        if (name == null || !NAME.matcher(name).matches()) {
+            return null;
+        }
+        return new File(System.getProperty(PROPERTY_ROOT, DEFAULT_ROOT), name).getAbsoluteFile();
+    }
+
+    /**
+     * @return cache directory
+     */
+    File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return number of entries
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return total size(bytes) of bodies
+     */
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Close the storage. The entries stay on disk to be reopened, and are no longer read or written by this storage.
+     */
+    synchronized void close() {
+        closed = true;
+        entries.clear();
+        totalBytes = 0;
+    }
+
+    @Override
+    public synchronized void putEntry(String key, HttpCacheEntry entry) throws IOException {
+        if (closed) {
+            return;
+        }
+        writeIndex(key, entry);
+        replace(key, entry);
+    }
+
+    @Override
+    public synchronized HttpCacheEntry getEntry(String key) throws IOException {
+        HttpCacheEntry entry = entries.get(key);
+        if (entry != null && entry.getResource() instanceof MappedFileResource
+                && entry.getResource().length() <= Integer.MAX_VALUE) {
+            // Map while the entry cannot be evicted, so that the caller can read it after eviction.
+            ((MappedFileResource) entry.getResource()).map();
+        }
+        return entry;
+    }
+
+    @Override
+    public synchronized void removeEntry(String key) throws IOException {
+        HttpCacheEntry removed = entries.remove(key);
+        if (removed != null) {
+            Files.deleteIfExists(indexFile(key).toPath());
+            release(removed);
+        }
+    }
+
+    @Override
+    public synchronized void updateEntry(String key, HttpCacheUpdateCallback callback) throws IOException {
+        if (closed) {
+            return;
+        }
+        HttpCacheEntry updated = callback.update(entries.get(key));
+        if (updated == null) {
+            removeEntry(key);
+        } else {
+            putEntry(key, updated);
+        }
+    }
+
+    private void replace(String key, HttpCacheEntry entry) {
+        HttpCacheEntry old = entries.put(key, entry);
+        totalBytes += bodyLength(entry);
+        if (old != null && old != entry) {
+            release(old);
+        }
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, HttpCacheEntry>> it = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || totalBytes > maxBytes) && it.hasNext()) {
+            Map.Entry<String, HttpCacheEntry> eldest = it.next();
+            it.remove();
+            File index = indexFile(eldest.getKey());
+            if (!index.delete() && index.exists()) {
+                log.info("Failed to delete cache index: {}", index);
+            }
+            release(eldest.getValue());
+        }
+    }
+
+    private void release(HttpCacheEntry entry) {
+        totalBytes -= bodyLength(entry);
+        Resource resource = entry.getResource();
+        if (resource != null) {
+            resource.dispose();
+        }
+    }
+
+    private static long bodyLength(HttpCacheEntry entry) {
+        Resource resource = entry.getResource();
+        if (resource == null) {
+            return 0;
+        }
+        return resource.length();
+    }
+
+    private File indexFile(String key) {
+        String name = UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)).toString();
+        return new File(directory, name + ENTRY_SUFFIX);
+    }
+
+    private void writeIndex(String key, HttpCacheEntry entry) throws IOException {
+        File index = indexFile(key);
+        File temp = new File(directory, index.getName() + TEMP_SUFFIX);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            writeString(out, key);
+            out.writeLong(entry.getRequestDate().getTime());
+            out.writeLong(entry.getResponseDate().getTime());
+            ProtocolVersion version = entry.getProtocolVersion();
+            writeString(out, version.getProtocol());
+            out.writeInt(version.getMajor());
+            out.writeInt(version.getMinor());
+            out.writeInt(entry.getStatusCode());
+            writeString(out, entry.getReasonPhrase());
+            writeString(out, entry.getRequestMethod());
+            Header[] headers = entry.getAllHeaders();
+            out.writeInt(headers.length);
+            for (Header header : headers) {
+                writeString(out, header.getName());
+                writeString(out, header.getValue());
+            }
+            Map<String, String> variants = entry.getVariantMap();
+            out.writeInt(variants.size());
+            for (Map.Entry<String, String> variant : variants.entrySet()) {
+                writeString(out, variant.getKey());
+                writeString(out, variant.getValue());
+            }
+            writeResource(out, entry.getResource());
+        }
+        Files.move(temp.toPath(), index.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeResource(DataOutputStream out, Resource resource) throws IOException {
+        if (resource == null) {
+            out.writeByte(RESOURCE_NONE);
+        } else if (resource instanceof MappedFileResource) {
+            out.writeByte(RESOURCE_FILE);
+            writeString(out, ((MappedFileResource) resource).getFile().getName());
+            out.writeLong(resource.length());
+        } else {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (InputStream in = resource.getInputStream()) {
+                byte[] buffer = new byte[MappedFileResourceFactory.BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    body.write(buffer, 0, n);
+                }
+            }
+            out.writeByte(RESOURCE_HEAP);
+            out.writeInt(body.size());
+            body.writeTo(out);
+        }
+    }
+
+    /**
+     * Read an index file written by {@link #writeIndex(String, HttpCacheEntry)}.
+     * @param index index file
+     * @return key and entry
+     * @throws IOException broken or unknown index file
+     */
+    private Map.Entry<String, HttpCacheEntry> readIndex(File index) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Unknown format.");
+            }
+            String key = readString(in);
+            Date requestDate = new Date(in.readLong());
+            Date responseDate = new Date(in.readLong());
+            ProtocolVersion version = new ProtocolVersion(readString(in), in.readInt(), in.readInt());
+            BasicStatusLine statusLine = new BasicStatusLine(version, in.readInt(), readString(in));
+            String requestMethod = readString(in);
+            Header[] headers = new Header[readCount(in)];
+            for (int i = 0; i < headers.length; i++) {
+                headers[i] = new BasicHeader(readString(in), readString(in));
+            }
+            int variantCount = readCount(in);
+            Map<String, String> variants = new HashMap<>();
+            for (int i = 0; i < variantCount; i++) {
+                variants.put(readString(in), readString(in));
+            }
+            Resource resource = readResource(in);
+            return new AbstractMap.SimpleImmutableEntry<>(key, new HttpCacheEntry(requestDate, responseDate,
+                    statusLine, headers, resource, variants, requestMethod));
+        }
+    }
+
+    private Resource readResource(DataInputStream in) throws IOException {
+        int kind = in.readByte();
+        if (kind == RESOURCE_NONE) {
+            return null;
+        }
+        if (kind == RESOURCE_FILE) {
+            String name = readString(in);
+            long length = in.readLong();
+            File body = new File(directory, name);
+            if (!name.endsWith(MappedFileResourceFactory.BODY_SUFFIX) || !directory.equals(body.getParentFile())) {
+                throw new IOException("Body file is not in the directory: " + name);
+            }
+            return new MappedFileResource(body, length);
+        }
+        if (kind == RESOURCE_HEAP) {
+            int length = in.readInt();
+            if (length < 0 || length > MAX_STRING_SIZE) {
+                throw new IOException("Body is too large: " + length);
+            }
+            byte[] body = new byte[length];
+            in.readFully(body);
+            return new HeapResource(body);
+        }
+        throw new IOException("Unknown resource: " + kind);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > MAX_STRING_SIZE) {
+            throw new IOException("String is too large: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > MAX_ITEMS) {
+            throw new IOException("Too many items: " + count);
+        }
+        return count;
+    }
+
+    /**
+     * Reopen the stored entries, oldest first, and delete the files that no entry refers to.
+     */
+    private void load() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> indexes = new ArrayList<>();
+        for (File file : files) {
+            if (file.getName().endsWith(ENTRY_SUFFIX)) {
+                indexes.add(file);
+            }
+        }
+        indexes.sort(Comparator.comparingLong(File::lastModified));
+
+        Set<File> bodies = new HashSet<>();
+        for (File index : indexes) {
+            try {
+                Map.Entry<String, HttpCacheEntry> entry = readIndex(index);
+                Resource resource = entry.getValue().getResource();
+                if (resource instanceof MappedFileResource) {
+                    File body = ((MappedFileResource) resource).getFile();
+                    if (!body.isFile() || body.length() != resource.length()) {
+                        throw new IOException("Body file is missing: " + body);
+                    }
+                    bodies.add(body.getAbsoluteFile());
+                }
+                replace(entry.getKey(), entry.getValue());
+            } catch (IOException | RuntimeException e) {
+                log.info("Discard cache index: " + index, e);
+                if (!index.delete()) {
+                    log.info("Failed to delete cache index: {}", index);
+                }
+            }
+        }
+
+        for (File file : files) {
+            String name = file.getName();
+            boolean orphan = name.endsWith(MappedFileResourceFactory.BODY_SUFFIX)
+                    && !bodies.contains(file.getAbsoluteFile());
+            if ((orphan || name.endsWith(TEMP_SUFFIX)) && !file.delete()) {
+                log.info("Failed to delete cache file: {}", file);
+            }
+        }
+        log.debug("Opened response cache: directory={}, entries={}, bytes={}", directory, entries.size(), totalBytes);
+    }
+}
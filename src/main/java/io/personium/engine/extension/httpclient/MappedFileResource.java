@@ -0,0 +1,164 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.http.client.cache.Resource;
+
+/**
+ * Cached response body stored in a file and read through a memory-mapped region.
+ * <p>
+ * The cache index keeps the name and the length of the file, so the resource can be restored after restart.
+ * The body is never copied onto the heap as a whole; each stream reads a view of the mapped region.
+ */
+final class MappedFileResource implements Resource {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Body file. */
+    private final File file;
+    /** Body length. */
+    private final long length;
+
+    /** Mapped region, created on first read. */
+    private transient volatile ByteBuffer mapped;
+    /** Disposed flag. */
+    private transient volatile boolean disposed;
+
+    /**
+     * Constructor.
+     * @param file body file
+     * @param length body length
+     */
+    MappedFileResource(File file, long length) {
+        this.file = file;
+        this.length = length;
+    }
+
+    /**
+     * @return body file
+     */
+    File getFile() {
+        return file;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            // Larger than one mapped region can be.
+            return new FileInputStream(file);
+        }
+        return new ByteBufferInputStream(map().duplicate());
+    }
+
+    /**
+     * Map the body file unless it is already mapped.
+     * A region mapped before dispose stays readable, so entries handed out by the storage can still be read.
+     * @return mapped region
+     * @throws IOException failed to map, or disposed before mapped
+     */
+    ByteBuffer map() throws IOException {
+        ByteBuffer buffer = mapped;
+        if (buffer == null) {
+            synchronized (this) {
+                buffer = mapped;
+                if (buffer == null) {
+                    if (disposed) {
+                        throw new IOException("Cached response body was disposed: " + file);
+                    }
+                    try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                            FileChannel channel = raf.getChannel()) {
+                        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+                    }
+                    mapped = buffer;
+                }
+            }
+        }
+        return buffer;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public synchronized void dispose() {
+        if (disposed) {
+            return;
+        }
+        disposed = true;
+        // A region that is already mapped stays readable after the file is deleted.
+        if (!file.delete() && file.exists()) {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * InputStream over a ByteBuffer.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            return buffer.get() & 0xFF; // CHECKSTYLE IGNORE - unsigned byte
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            if (n <= 0) {
+                return 0;
+            }
+            int skipped = (int) Math.min(n, buffer.remaining());
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.UUID;
+
+import org.apache.http.client.cache.InputLimit;
+import org.apache.http.client.cache.Resource;
+import org.apache.http.client.cache.ResourceFactory;
+
+/**
+ * ResourceFactory that writes cached response bodies to files read by {@link MappedFileResource}.
+ */
+final class MappedFileResourceFactory implements ResourceFactory {
+
+    /** Suffix of body files. */
+    static final String BODY_SUFFIX = ".body";
+
+    /** Buffer size to write body files. */
+    static final int BUFFER_SIZE = 8192;
+
+    /** Cache directory. */
+    private final File directory;
+
+    /**
+     * Constructor.
+     * @param directory cache directory
+     */
+    MappedFileResourceFactory(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public Resource generate(String requestId, InputStream instream, InputLimit limit) throws IOException {
+        File file = newBodyFile();
+        long total = 0;
+        try (OutputStream out = new FileOutputStream(file)) {
+            byte[] buf = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = instream.read(buf)) != -1) {
+                out.write(buf, 0, len);
+                total += len;
+                if (limit != null && total > limit.getValue()) {
+                    limit.reached();
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(file.toPath());
+            throw e;
+        }
+        return new MappedFileResource(file, total);
+    }
+
+    @Override
+    public Resource copy(String requestId, Resource resource) throws IOException {
+        File file = newBodyFile();
+        if (resource instanceof MappedFileResource) {
+            // A hard link shares the body on disk and is deleted independently.
+            try {
+                Files.createLink(file.toPath(), ((MappedFileResource) resource).getFile().toPath());
+                return new MappedFileResource(file, resource.length());
+            } catch (UnsupportedOperationException | IOException e) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+        try (InputStream in = resource.getInputStream()) {
+            Files.copy(in, file.toPath());
+        }
+        return new MappedFileResource(file, resource.length());
+    }
+
+    private File newBodyFile() {
+        return new File(directory, UUID.randomUUID().toString() + BODY_SUFFIX);
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Entity that counts the bytes of its body into {@link RequestMetrics}.
+ * <p>
+ * A request body is counted as it is written. A response body is counted as it is read,
+ * and its read time is recorded when it is read to the end or closed.
+ */
+final class MeteredEntity extends HttpEntityWrapper {
+
+    /** Metrics. */
+    private final RequestMetrics metrics;
+
+    /**
+     * Constructor.
+     * @param entity entity
+     * @param metrics metrics
+     */
+    MeteredEntity(HttpEntity entity, RequestMetrics metrics) {
+        super(entity);
+        this.metrics = metrics;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        return new MeteredInputStream(super.getContent(), metrics);
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+        super.writeTo(new FilterOutputStream(outstream) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                metrics.addRequestBytes(1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                metrics.addRequestBytes(len);
+            }
+        });
+    }
+
+    /**
+     * Response body stream that records its bytes and read time.
+     */
+    private static final class MeteredInputStream extends FilterInputStream {
+        private final RequestMetrics metrics;
+        private final long start = System.nanoTime();
+        private long bytes = 0;
+        private boolean recorded = false;
+
+        MeteredInputStream(InputStream in, RequestMetrics metrics) {
+            super(in);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                record();
+            } else {
+                bytes++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n == -1) {
+                record();
+            } else {
+                bytes += n;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            record();
+            super.close();
+        }
+
+        private void record() {
+            if (!recorded) {
+                recorded = true;
+                metrics.recordBodyRead(bytes, System.nanoTime() - start);
+            }
+        }
+    }
+}
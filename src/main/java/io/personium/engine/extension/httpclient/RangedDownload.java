@@ -0,0 +1,203 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.InputStreamEntity;
+
+/**
+ * Download of a resource by byte ranges fetched in parallel.
+ * <p>
+ * The first range is requested as a probe. If the server answers it with 206 and the total length,
+ * the response is turned into a 200 of the whole resource whose body reads the first range from the probe
+ * and the others from responses fetched concurrently, in order. Any other answer is left as it is.
+ * Later ranges are sent with If-Range, so that a resource changed during the download fails the stream
+ * instead of mixing two versions.
+ */
+final class RangedDownload {
+
+    /** Content-Range of a 206 response: bytes first-last/length. */
+    private static final Pattern CONTENT_RANGE =
+            Pattern.compile("bytes\\s+(?<first>\\d+)-(?<last>\\d+)/(?<length>\\d+)");
+    /** Prefix of weak entity tags, which cannot be used with If-Range. */
+    private static final String WEAK_ETAG_PREFIX = "W/";
+
+    /**
+     * Fetcher of a range of the resource.
+     */
+    interface Fetcher {
+        /**
+         * Fetch a range.
+         * @param first position of the first byte
+         * @param last position of the last byte
+         * @param validator entity tag or Last-Modified sent as If-Range, or null
+         * @return bytes of the range
+         * @throws IOException failed, or the server did not answer with the range
+         */
+        byte[] fetch(long first, long last, String validator) throws IOException;
+    }
+
+    /** Bytes of a range. */
+    private final int rangeSize;
+    /** Max number of ranges fetched at the same time. */
+    private final int concurrency;
+    /** Max number of ranges held in memory, including the one being read. */
+    private final int window;
+    /** Fetcher of the ranges after the first. */
+    private final Fetcher fetcher;
+
+    /**
+     * Constructor.
+     * @param rangeSize bytes of a range
+     * @param concurrency max number of ranges fetched at the same time, up to
+     * {@link RangedInputStream#MAX_CONCURRENCY}
+     * @param windowBytes max bytes held in memory. At least one range is held.
+     * @param fetcher fetcher of the ranges after the first
+     */
+    RangedDownload(int rangeSize, int concurrency, long windowBytes, Fetcher fetcher) {
+        this.rangeSize = rangeSize;
+        this.concurrency = Math.min(concurrency, RangedInputStream.MAX_CONCURRENCY);
+        this.window = (int) Math.max(1, Math.min(Integer.MAX_VALUE, windowBytes / rangeSize));
+        this.fetcher = fetcher;
+    }
+
+    /**
+     * @param first position of the first byte
+     * @param last position of the last byte
+     * @return value of Range header
+     */
+    static String toRange(long first, long last) {
+        return "bytes=" + first + "-" + last;
+    }
+
+    /**
+     * @return value of Range header of the probe
+     */
+    String getProbeRange() {
+        return toRange(0, rangeSize - 1);
+    }
+
+    /**
+     * Turn the answer to the probe into the response of the whole resource, if the server sent the first range.
+     * @param res response to the probe
+     * @return true if the body is now read by ranges, false if the response is left as it is
+     * @throws IOException failed to read the probe
+     */
+    boolean assemble(HttpResponse res) throws IOException {
+        HttpEntity entity = res.getEntity();
+        Header contentRange = res.getFirstHeader(HttpHeaders.CONTENT_RANGE);
+        if (res.getStatusLine().getStatusCode() != HttpStatus.SC_PARTIAL_CONTENT || entity == null
+                || contentRange == null) {
+            return false;
+        }
+        Matcher m = CONTENT_RANGE.matcher(contentRange.getValue().trim());
+        // The total length is needed to plan the ranges. Without it, the caller gets the whole resource at once.
+        if (!m.matches() || Long.parseLong(m.group("first")) != 0) {
+            return false;
+        }
+        long headLength = Long.parseLong(m.group("last")) + 1;
+        long length = Long.parseLong(m.group("length"));
+        if (headLength > length || headLength > rangeSize) {
+            return false;
+        }
+        RangedInputStream body = new RangedInputStream(entity.getContent(), headLength, length, this,
+                getValidator(res));
+        InputStreamEntity whole = new InputStreamEntity(body, length);
+        whole.setContentType(entity.getContentType());
+        res.setStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        res.removeHeaders(HttpHeaders.CONTENT_RANGE);
+        res.setHeader(HttpHeaders.CONTENT_LENGTH, Long.toString(length));
+        res.setEntity(whole);
+        body.start();
+        return true;
+    }
+
+    /**
+     * Check the answer to a later range.
+     * @param status status of the response
+     * @param contentRange Content-Range of the response, or null
+     * @param first position of the first byte requested
+     * @param last position of the last byte requested
+     * @throws IOException the response is not the range
+     */
+    static void verify(int status, String contentRange, long first, long last) throws IOException {
+        if (status == HttpStatus.SC_OK) {
+            throw new IOException("The resource changed during the ranged download.");
+        }
+        if (status != HttpStatus.SC_PARTIAL_CONTENT || contentRange == null) {
+            throw new IOException(String.format("Range %d-%d was answered with status %d.", first, last, status));
+        }
+        Matcher m = CONTENT_RANGE.matcher(contentRange.trim());
+        if (!m.matches() || Long.parseLong(m.group("first")) != first || Long.parseLong(m.group("last")) != last) {
+            throw new IOException(String.format("Range %d-%d was answered with %s.", first, last, contentRange));
+        }
+    }
+
+    /**
+     * @return bytes of a range
+     */
+    int getRangeSize() {
+        return rangeSize;
+    }
+
+    /**
+     * @return max number of ranges fetched at the same time
+     */
+    int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * @return max number of ranges held in memory, including the one being read
+     */
+    int getWindow() {
+        return window;
+    }
+
+    /**
+     * @return fetcher of the ranges after the first
+     */
+    Fetcher getFetcher() {
+        return fetcher;
+    }
+
+    /**
+     * Validator of the probed resource: a strong entity tag, else Last-Modified.
+     * @param res response to the probe
+     * @return validator, or null if the response has none
+     */
+    private static String getValidator(HttpResponse res) {
+        Header etag = res.getFirstHeader(HttpHeaders.ETAG);
+        if (etag != null && !etag.getValue().startsWith(WEAK_ETAG_PREFIX)) {
+            return etag.getValue();
+        }
+        Header lastModified = res.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+        if (lastModified != null) {
+            return lastModified.getValue();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,311 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Body of a {@link RangedDownload}, read in order from ranges fetched concurrently.
+ * <p>
+ * The first range is read from the probe response as it arrives. The others are fetched on shared workers
+ * and held in memory until read. A range is fetched only while the number of ranges held, counting the one
+ * being read, is below the window, so the memory is bounded even if the script reads slowly or not at all.
+ * Fetches are scheduled by the reader and by the fetches finishing, so no worker waits for the reader.
+ * The threads of all the downloads, the concurrency of a download and the fetches waiting for a thread are
+ * bounded by the system properties "io.personium.engine.extension.httpclient.ranged.maxThreads",
+ * ".maxConcurrency" and ".maxQueue".
+ */
+final class RangedInputStream extends InputStream {
+
+    /** Seconds an idle worker thread is kept. */
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    /** Prefix of system properties. */
+    private static final String PROPERTY_PREFIX = HttpClientMetrics.DOMAIN + ".ranged.";
+    /** Default max number of threads of all the downloads. */
+    private static final int DEFAULT_MAX_THREADS = 64;
+    /** Default max number of ranges of a download fetched at the same time. */
+    private static final int DEFAULT_MAX_CONCURRENCY = 16;
+    /** Default max number of fetches waiting for a thread. */
+    private static final int DEFAULT_MAX_QUEUE = 1000;
+
+    /** Max number of threads of all the downloads. */
+    static final int MAX_THREADS = Integer.getInteger(PROPERTY_PREFIX + "maxThreads", DEFAULT_MAX_THREADS);
+    /** Max number of ranges of a download fetched at the same time. */
+    static final int MAX_CONCURRENCY = Integer.getInteger(PROPERTY_PREFIX + "maxConcurrency",
+            DEFAULT_MAX_CONCURRENCY);
+    /** Max number of fetches waiting for a thread. */
+    private static final int MAX_QUEUE = Integer.getInteger(PROPERTY_PREFIX + "maxQueue", DEFAULT_MAX_QUEUE);
+
+    /** Workers shared by all downloads. Threads are created on demand up to the max, and stop when idle. */
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+            KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(MAX_QUEUE),
+            new DaemonThreadFactory("personium-httpclient-range-"));
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    /** Body of the probe, which is the first range. */
+    private final InputStream head;
+    /** Bytes of the first range. */
+    private final long headLength;
+    /** Bytes of the resource. */
+    private final long length;
+    /** Settings and fetcher. */
+    private final RangedDownload download;
+    /** Validator sent as If-Range, or null. */
+    private final String validator;
+    /** Number of ranges. */
+    private final int count;
+
+    /** Lock of the fetch state. */
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Signalled when a range arrives, a fetch fails or the stream is closed. */
+    private final Condition arrived = lock.newCondition();
+    /** Fetched ranges not yet read, by index. */
+    private final Map<Integer, byte[]> fetched = new HashMap<>();
+    /** First failure of a fetch. */
+    private IOException failure;
+    /** Index of the next range to fetch. */
+    private int next = 1;
+    /** Number of fetches running. */
+    private int inFlight = 0;
+    /** Index of the range being read. */
+    private int current = 0;
+    /** Closed by the reader. */
+    private boolean closed = false;
+
+    /** Bytes read from the first range. Used by the reader only. */
+    private long headRead = 0;
+    /** Range being read, or null while reading the first range. Used by the reader only. */
+    private byte[] buffer;
+    /** Position in the buffer. Used by the reader only. */
+    private int position;
+
+    /**
+     * Constructor. Call {@link #start()} to begin fetching.
+     * @param head body of the probe
+     * @param headLength bytes of the first range
+     * @param length bytes of the resource
+     * @param download settings and fetcher
+     * @param validator validator sent as If-Range, or null
+     * @throws IOException the resource has more ranges than a stream can count
+     */
+    RangedInputStream(InputStream head, long headLength, long length, RangedDownload download, String validator)
+            throws IOException {
+        this.head = head;
+        this.headLength = headLength;
+        this.length = length;
+        this.download = download;
+        this.validator = validator;
+        // The first range, and the rest rounded up to whole ranges.
+        long ranges = 1 - Math.floorDiv(headLength - length, download.getRangeSize());
+        if (ranges > Integer.MAX_VALUE) {
+            throw new IOException(String.format("%d bytes are too many ranges of %d bytes.",
+                    length, download.getRangeSize()));
+        }
+        this.count = (int) ranges;
+    }
+
+    /**
+     * Start fetching the ranges after the first.
+     */
+    void start() {
+        lock.lock();
+        try {
+            schedule();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        if (n == -1) {
+            return -1;
+        }
+        return Byte.toUnsignedInt(b[0]);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (current < count) {
+            if (current == 0) {
+                int n = readHead(b, off, len);
+                if (n > 0) {
+                    return n;
+                }
+            } else if (position < buffer.length) {
+                int n = Math.min(len, buffer.length - position);
+                System.arraycopy(buffer, position, b, off, n);
+                position += n;
+                return n;
+            }
+            advance();
+        }
+        return -1;
+    }
+
+    @Override
+    public int available() {
+        if (buffer == null) {
+            return 0;
+        }
+        return buffer.length - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            fetched.clear();
+            arrived.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        buffer = null;
+        head.close();
+    }
+
+    /**
+     * Read the first range from the probe.
+     * @return bytes read, or 0 at the end of the range
+     */
+    private int readHead(byte[] b, int off, int len) throws IOException {
+        long remaining = headLength - headRead;
+        if (remaining == 0) {
+            // Returns the connection of the probe to the pool.
+            head.close();
+            return 0;
+        }
+        int n = head.read(b, off, (int) Math.min(len, remaining));
+        if (n == -1) {
+            throw new IOException(String.format("The first range ended after %d of %d bytes.", headRead, headLength));
+        }
+        headRead += n;
+        return n;
+    }
+
+    /**
+     * Move to the next range, waiting until it arrives.
+     */
+    private void advance() throws IOException {
+        buffer = null;
+        position = 0;
+        lock.lock();
+        try {
+            current++;
+            if (current >= count) {
+                return;
+            }
+            // A window slot is free now.
+            schedule();
+            while (!fetched.containsKey(current) && failure == null && !closed) {
+                arrived.await();
+            }
+            if (closed) {
+                throw new IOException("Stream closed.");
+            }
+            buffer = fetched.remove(current);
+            if (buffer == null) {
+                throw new IOException(failure.getMessage(), failure);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for range " + current + ".");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Start fetches while the concurrency and the window allow. Called with the lock held.
+     */
+    private void schedule() {
+        while (!closed && failure == null && inFlight < download.getConcurrency() && next < count
+                && next < current + download.getWindow()) {
+            int index = next;
+            try {
+                EXECUTOR.execute(() -> fetch(index));
+            } catch (RejectedExecutionException e) {
+                // The fetches running schedule this one when they finish. Without any, the download cannot go on.
+                if (inFlight == 0) {
+                    failure = new IOException("Too many ranged downloads are running.", e);
+                    arrived.signalAll();
+                }
+                return;
+            }
+            next++;
+            inFlight++;
+        }
+    }
+
+    /**
+     * Fetch a range and hand it to the reader.
+     * @param index index of the range
+     */
+    private void fetch(int index) {
+        long first = headLength + (long) (index - 1) * download.getRangeSize();
+        long last = Math.min(length, first + download.getRangeSize()) - 1;
+        byte[] data = null;
+        IOException error = null;
+        try {
+            byte[] range = download.getFetcher().fetch(first, last, validator);
+            if (range.length != last - first + 1) {
+                throw new IOException(String.format("Range %d-%d has %d bytes.", first, last, range.length));
+            }
+            data = range;
+        } catch (IOException e) {
+            error = e;
+        } catch (RuntimeException e) {
+            error = new IOException(e.getMessage(), e);
+        }
+        lock.lock();
+        try {
+            inFlight--;
+            if (closed) {
+                return;
+            }
+            if (data != null) {
+                fetched.put(index, data);
+            } else if (failure == null) {
+                failure = error;
+            }
+            schedule();
+            arrived.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
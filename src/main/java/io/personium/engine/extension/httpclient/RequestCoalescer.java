@@ -0,0 +1,352 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.execchain.RequestAbortedException;
+import org.apache.http.message.BasicHttpResponse;
+
+/**
+ * Coalescer of identical concurrent requests.
+ * <p>
+ * The first request of a key is sent and its response is read in memory. The requests with the same key arriving
+ * meanwhile wait for it, and every caller gets its own copy of the response. The response is handed to the
+ * waiting requests only if a shared cache may store it (RFC 7234 section 3): otherwise, e.g. for
+ * "Cache-Control: private" or a response setting a cookie, each of them sends its own request.
+ * The key is the method, URL and all the request headers. Once a response of the URL that may be shared tells its
+ * Vary headers, the key has only those headers plus the credentials. The URLs answered with "Vary: *" are not
+ * coalesced.
+ */
+final class RequestCoalescer {
+
+    /** Permanent Redirect, not defined by HttpStatus. */
+    private static final int SC_PERMANENT_REDIRECT = 308;
+    /** Max number of URLs whose Vary headers are kept. */
+    private static final int MAX_VARY_ENTRIES = 1000;
+    /** Initial capacity of the Vary map. */
+    private static final int INITIAL_CAPACITY = 16;
+    /** Load factor of the Vary map. */
+    private static final float LOAD_FACTOR = 0.75f;
+    /** Size of the copy buffer. */
+    private static final int BUFFER_SIZE = 8192;
+    /** Vary value selecting on anything but the request headers. */
+    private static final String VARY_ANY = "*";
+    /** Status codes cacheable by default (RFC 7231 section 6.1 and RFC 7538). */
+    private static final Set<Integer> CACHEABLE_STATUS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            HttpStatus.SC_OK, HttpStatus.SC_NON_AUTHORITATIVE_INFORMATION, HttpStatus.SC_NO_CONTENT,
+            HttpStatus.SC_PARTIAL_CONTENT, HttpStatus.SC_MULTIPLE_CHOICES, HttpStatus.SC_MOVED_PERMANENTLY,
+            HttpStatus.SC_NOT_FOUND, HttpStatus.SC_METHOD_NOT_ALLOWED, HttpStatus.SC_GONE,
+            HttpStatus.SC_REQUEST_URI_TOO_LONG, HttpStatus.SC_NOT_IMPLEMENTED, SC_PERMANENT_REDIRECT)));
+    /** Request headers always in the key, as responses must not cross users. */
+    private static final Set<String> CREDENTIALS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "authorization", "proxy-authorization", "cookie")));
+
+    /** Coalescer shared by all the clients. */
+    static final RequestCoalescer SHARED = new RequestCoalescer();
+
+    /** Requests in flight by key. A flight completed with null tells the waiting requests to send their own. */
+    private final ConcurrentHashMap<List<Object>, CompletableFuture<BufferedResponse>> flights =
+            new ConcurrentHashMap<>();
+
+    /** Lower case Vary headers by URL, in access order. */
+    private final Map<String, Set<String>> varyByUrl = Collections.synchronizedMap(
+            new LinkedHashMap<String, Set<String>>(INITIAL_CAPACITY, LOAD_FACTOR, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Set<String>> eldest) {
+                    return size() > MAX_VARY_ENTRIES;
+                }
+            });
+
+    /**
+     * Exchange sending the request.
+     */
+    interface Exchange {
+        /**
+         * Send the request.
+         * @return response
+         * @throws GeneralSecurityException security error
+         * @throws IOException failed to execute the request
+         */
+        CloseableHttpResponse execute() throws GeneralSecurityException, IOException;
+    }
+
+    /**
+     * Send the request, or wait for the identical request in flight.
+     * A waiting request is released by its abort, so its own timeout still applies.
+     * @param scope configuration of the client sending the request, part of the key
+     * @param request request
+     * @param maxSize max size(bytes) of the response body, part of the key
+     * @param exchange exchange sending the request
+     * @return copy of the response, read in memory
+     * @throws GeneralSecurityException security error
+     * @throws IOException failed to execute the request
+     */
+    CloseableHttpResponse execute(Object scope, HttpRequestBase request, long maxSize, Exchange exchange)
+            throws GeneralSecurityException, IOException {
+        String url = request.getURI().toString();
+        Set<String> vary = varyByUrl.get(url);
+        if (vary != null && vary.contains(VARY_ANY)) {
+            return exchange.execute();
+        }
+        List<Object> key = Arrays.asList(scope, maxSize, request.getMethod(), url, keyHeaders(request, vary));
+        CompletableFuture<BufferedResponse> flight = new CompletableFuture<>();
+        CompletableFuture<BufferedResponse> leader = flights.putIfAbsent(key, flight);
+        if (leader != null) {
+            BufferedResponse shared = join(request, leader);
+            if (shared == null) {
+                // Not for a shared cache, so not for another caller either.
+                return exchange.execute();
+            }
+            return shared.toResponse();
+        }
+        try {
+            BufferedResponse response = lead(request, url, maxSize, exchange);
+            if (response.isShareable()) {
+                flight.complete(response);
+            } else {
+                flight.complete(null);
+            }
+            return response.toResponse();
+        } catch (GeneralSecurityException | IOException | RuntimeException | Error e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            flights.remove(key, flight);
+        }
+    }
+
+    /**
+     * @return number of requests in flight
+     */
+    int inFlight() {
+        return flights.size();
+    }
+
+    private BufferedResponse lead(HttpRequestBase request, String url, long maxSize, Exchange exchange)
+            throws GeneralSecurityException, IOException {
+        try (CloseableHttpResponse res = exchange.execute()) {
+            Set<String> vary = new HashSet<>();
+            for (Header header : res.getHeaders(HttpHeaders.VARY)) {
+                for (String name : header.getValue().split(",")) {
+                    vary.add(name.trim().toLowerCase(Locale.ENGLISH));
+                }
+            }
+            boolean shareable = isShareable(request, res);
+            if (shareable || vary.contains(VARY_ANY)) {
+                varyByUrl.put(url, vary);
+            } else {
+                // Keep all the headers in the key.
+                varyByUrl.remove(url);
+            }
+            return BufferedResponse.read(res, maxSize, shareable);
+        }
+    }
+
+    /**
+     * Whether a shared cache may store the response (RFC 7234 section 3), which makes it fit for other callers.
+     * A response setting a cookie is not shared either.
+     * @param request request
+     * @param res response
+     * @return true if the response may be shared
+     */
+    private static boolean isShareable(HttpRequestBase request, HttpResponse res) {
+        if (hasDirective(request.getHeaders(HttpHeaders.CACHE_CONTROL), "no-store")
+                || res.containsHeader("Set-Cookie")) {
+            return false;
+        }
+        Header[] cacheControl = res.getHeaders(HttpHeaders.CACHE_CONTROL);
+        if (hasDirective(cacheControl, "no-store") || hasDirective(cacheControl, "private")) {
+            return false;
+        }
+        boolean isPublic = hasDirective(cacheControl, "public");
+        boolean sharedMaxAge = hasDirective(cacheControl, "s-maxage");
+        if (request.containsHeader(HttpHeaders.AUTHORIZATION)
+                && !isPublic && !sharedMaxAge && !hasDirective(cacheControl, "must-revalidate")) {
+            return false;
+        }
+        return isPublic || sharedMaxAge || hasDirective(cacheControl, "max-age")
+                || res.containsHeader(HttpHeaders.EXPIRES)
+                || CACHEABLE_STATUS.contains(res.getStatusLine().getStatusCode());
+    }
+
+    private static boolean hasDirective(Header[] headers, String directive) {
+        for (Header header : headers) {
+            for (HeaderElement element : header.getElements()) {
+                if (directive.equalsIgnoreCase(element.getName())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static BufferedResponse join(HttpRequestBase request, CompletableFuture<BufferedResponse> leader)
+            throws GeneralSecurityException, IOException {
+        CompletableFuture<BufferedResponse> waiting = new CompletableFuture<>();
+        leader.whenComplete((response, e) -> {
+            if (e == null) {
+                waiting.complete(response);
+            } else {
+                waiting.completeExceptionally(e);
+            }
+        });
+        request.setCancellable(() -> waiting.completeExceptionally(new RequestAbortedException("Request aborted")));
+        try {
+            return waiting.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the coalesced request.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Request headers in the key, in a stable order.
+     * @param request request
+     * @param vary lower case Vary headers of the URL, or null if unknown
+     * @return "name:value" of the headers
+     */
+    private static List<String> keyHeaders(HttpRequestBase request, Set<String> vary) {
+        List<String> headers = new ArrayList<>();
+        for (Header header : request.getAllHeaders()) {
+            String name = header.getName().toLowerCase(Locale.ENGLISH);
+            if (vary == null || vary.contains(name) || CREDENTIALS.contains(name)) {
+                headers.add(name + ":" + header.getValue());
+            }
+        }
+        Collections.sort(headers);
+        return headers;
+    }
+
+    /**
+     * Response read in memory, shared by the coalesced requests.
+     */
+    private static final class BufferedResponse {
+        private final StatusLine statusLine;
+        private final Header[] headers;
+        private final Header contentType;
+        private final Header contentEncoding;
+        /** Body, or null if the response has no entity. */
+        private final byte[] body;
+        /** Whether the response may be handed to other callers. */
+        private final boolean shareable;
+
+        private BufferedResponse(CloseableHttpResponse res, byte[] body, boolean shareable) {
+            this.statusLine = res.getStatusLine();
+            this.headers = res.getAllHeaders();
+            HttpEntity entity = res.getEntity();
+            if (entity == null) {
+                this.contentType = null;
+                this.contentEncoding = null;
+            } else {
+                this.contentType = entity.getContentType();
+                this.contentEncoding = entity.getContentEncoding();
+            }
+            this.body = body;
+            this.shareable = shareable;
+        }
+
+        static BufferedResponse read(CloseableHttpResponse res, long maxSize, boolean shareable) throws IOException {
+            HttpEntity entity = res.getEntity();
+            if (entity == null) {
+                return new BufferedResponse(res, null, shareable);
+            }
+            if (entity.getContentLength() > maxSize) {
+                throw new ResponseTooLargeException(maxSize);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (InputStream in = new LimitedInputStream(entity.getContent(), maxSize)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                }
+            }
+            return new BufferedResponse(res, out.toByteArray(), shareable);
+        }
+
+        boolean isShareable() {
+            return shareable;
+        }
+
+        CloseableHttpResponse toResponse() {
+            CoalescedResponse res = new CoalescedResponse(statusLine);
+            res.setHeaders(headers);
+            if (body != null) {
+                ByteArrayEntity entity = new ByteArrayEntity(body);
+                entity.setContentType(contentType);
+                entity.setContentEncoding(contentEncoding);
+                res.setEntity(entity);
+            }
+            return res;
+        }
+    }
+
+    /**
+     * Copy of a coalesced response. The body is in memory, so close does nothing.
+     */
+    private static final class CoalescedResponse extends BasicHttpResponse implements CloseableHttpResponse {
+        CoalescedResponse(StatusLine statusLine) {
+            super(statusLine);
+        }
+
+        @Override
+        public void close() {
+            // Nothing to release.
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.http.HttpStatus;
+
+/**
+ * Metrics of the requests to an origin with a method.
+ */
+final class RequestMetrics implements RequestMetricsMXBean {
+
+    /** Status code per status class. */
+    private static final int STATUS_CLASS = 100;
+    /** Number of status classes, 1xx to 5xx. */
+    private static final int STATUS_CLASSES = 5;
+
+    /** Origin. */
+    private final String origin;
+    /** Http method. */
+    private final String method;
+
+    /** Latency of calls. */
+    private final LatencyHistogram totalTime = new LatencyHistogram();
+    /** Latency until the response headers. */
+    private final LatencyHistogram timeToFirstByte = new LatencyHistogram();
+    /** Latency of reading response bodies. */
+    private final LatencyHistogram bodyReadTime = new LatencyHistogram();
+    /** Request body bytes. */
+    private final LongAdder requestBytes = new LongAdder();
+    /** Response body bytes. */
+    private final LongAdder responseBytes = new LongAdder();
+    /** Responses per status class. */
+    private final LongAdder[] statusClasses = new LongAdder[STATUS_CLASSES];
+    /** Attempts failed without response. */
+    private final LongAdder errors = new LongAdder();
+
+    /**
+     * Constructor.
+     * @param origin origin
+     * @param method http method
+     */
+    RequestMetrics(String origin, String method) {
+        this.origin = origin;
+        this.method = method;
+        for (int i = 0; i < STATUS_CLASSES; i++) {
+            statusClasses[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Record the response headers of an attempt.
+     * @param status status code
+     * @param nanos time(nanoseconds) from sending the request
+     */
+    void recordResponse(int status, long nanos) {
+        timeToFirstByte.record(nanos);
+        int statusClass = status / STATUS_CLASS - 1;
+        if (statusClass >= 0 && statusClass < STATUS_CLASSES) {
+            statusClasses[statusClass].increment();
+        }
+    }
+
+    /**
+     * Record an attempt failed without response.
+     */
+    void recordError() {
+        errors.increment();
+    }
+
+    /**
+     * Record a call.
+     * @param nanos time(nanoseconds) from the request until the response is returned
+     */
+    void recordTotal(long nanos) {
+        totalTime.record(nanos);
+    }
+
+    /**
+     * Record a response body read.
+     * @param bytes bytes read
+     * @param nanos time(nanoseconds) to read
+     */
+    void recordBodyRead(long bytes, long nanos) {
+        responseBytes.add(bytes);
+        bodyReadTime.record(nanos);
+    }
+
+    /**
+     * Count request body bytes.
+     * @param bytes bytes sent
+     */
+    void addRequestBytes(long bytes) {
+        requestBytes.add(bytes);
+    }
+
+    @Override
+    public String getOrigin() {
+        return origin;
+    }
+
+    @Override
+    public String getMethod() {
+        return method;
+    }
+
+    @Override
+    public LatencySnapshot getTotalTime() {
+        return totalTime.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getTimeToFirstByte() {
+        return timeToFirstByte.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getBodyReadTime() {
+        return bodyReadTime.snapshot();
+    }
+
+    @Override
+    public long getRequestBytes() {
+        return requestBytes.sum();
+    }
+
+    @Override
+    public long getResponseBytes() {
+        return responseBytes.sum();
+    }
+
+    @Override
+    public long getStatus1xx() {
+        return countOf(HttpStatus.SC_CONTINUE);
+    }
+
+    @Override
+    public long getStatus2xx() {
+        return countOf(HttpStatus.SC_OK);
+    }
+
+    @Override
+    public long getStatus3xx() {
+        return countOf(HttpStatus.SC_MULTIPLE_CHOICES);
+    }
+
+    @Override
+    public long getStatus4xx() {
+        return countOf(HttpStatus.SC_BAD_REQUEST);
+    }
+
+    @Override
+    public long getStatus5xx() {
+        return countOf(HttpStatus.SC_INTERNAL_SERVER_ERROR);
+    }
+
+    private long countOf(int status) {
+        return statusClasses[status / STATUS_CLASS - 1].sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public String getCircuitBreakerState() {
+        return CircuitBreaker.stateOf(origin).name();
+    }
+
+    @Override
+    public int getConcurrencyLimit() {
+        return AdaptiveLimiter.limitOf(origin);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %s total=[%s] ttfb=[%s] body=[%s] bytes=%d/%d status=%d/%d/%d/%d/%d errors=%d",
+                method, origin, getTotalTime(), getTimeToFirstByte(), getBodyReadTime(),
+                getRequestBytes(), getResponseBytes(), getStatus1xx(), getStatus2xx(), getStatus3xx(),
+                getStatus4xx(), getStatus5xx(), getErrors());
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+/**
+ * JMX view of the requests to an origin with a method.
+ * Latencies are in milliseconds.
+ */
+public interface RequestMetricsMXBean {
+
+    /**
+     * @return origin (scheme://host:port)
+     */
+    String getOrigin();
+
+    /**
+     * @return http method
+     */
+    String getMethod();
+
+    /**
+     * @return latency of calls, from the request until the response is returned, retries included
+     */
+    LatencySnapshot getTotalTime();
+
+    /**
+     * @return latency of attempts, from sending the request until the response headers are received
+     */
+    LatencySnapshot getTimeToFirstByte();
+
+    /**
+     * @return latency of reading response bodies
+     */
+    LatencySnapshot getBodyReadTime();
+
+    /**
+     * @return request body bytes sent
+     */
+    long getRequestBytes();
+
+    /**
+     * @return response body bytes received, after content decoding
+     */
+    long getResponseBytes();
+
+    /**
+     * @return number of 1xx responses
+     */
+    long getStatus1xx();
+
+    /**
+     * @return number of 2xx responses
+     */
+    long getStatus2xx();
+
+    /**
+     * @return number of 3xx responses
+     */
+    long getStatus3xx();
+
+    /**
+     * @return number of 4xx responses
+     */
+    long getStatus4xx();
+
+    /**
+     * @return number of 5xx responses
+     */
+    long getStatus5xx();
+
+    /**
+     * @return number of attempts failed without response
+     */
+    long getErrors();
+
+    /**
+     * @return state of the circuit breaker of the origin
+     */
+    String getCircuitBreakerState();
+
+    /**
+     * @return adaptive concurrency limit of the origin, or -1 if it is not limited
+     */
+    int getConcurrencyLimit();
+}
@@ -0,0 +1,252 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpRequestBase;
+
+/**
+ * Timeouts(milliseconds) of a request. 0 means not set, in which case the client default applies.
+ * Instances are immutable.
+ */
+final class RequestTimeouts {
+
+    /** No timeouts. */
+    static final RequestTimeouts NONE = builder().build();
+
+    /**
+     * Timer that aborts requests exceeding their total timeout.
+     * Most requests finish in time, so their cancelled tasks are removed at once rather than kept until the delay.
+     */
+    static final ScheduledThreadPoolExecutor TIMER =
+            new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("personium-httpclient-timer-"));
+
+    static {
+        TIMER.setRemoveOnCancelPolicy(true);
+    }
+
+    /** Timeout to establish a connection. */
+    private final int connectTimeout;
+    /** Timeout to lease a connection from the pool. */
+    private final int connectionRequestTimeout;
+    /** Timeout of inactivity while reading. */
+    private final int socketTimeout;
+    /** Timeout of the whole request, until the response is returned. */
+    private final int requestTimeout;
+
+    private RequestTimeouts(Builder builder) {
+        this.connectTimeout = builder.connectTimeout;
+        this.connectionRequestTimeout = builder.connectionRequestTimeout;
+        this.socketTimeout = builder.socketTimeout;
+        this.requestTimeout = builder.requestTimeout;
+    }
+
+    /**
+     * Create builder.
+     * @return builder
+     */
+    static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Create builder initialized with the timeouts of this instance.
+     * @return builder
+     */
+    Builder toBuilder() {
+        return new Builder()
+                .connectTimeout(connectTimeout)
+                .connectionRequestTimeout(connectionRequestTimeout)
+                .socketTimeout(socketTimeout)
+                .requestTimeout(requestTimeout);
+    }
+
+    /**
+     * @return timeout to establish a connection
+     */
+    int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * @return timeout to lease a connection from the pool
+     */
+    int getConnectionRequestTimeout() {
+        return connectionRequestTimeout;
+    }
+
+    /**
+     * @return timeout of inactivity while reading
+     */
+    int getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    /**
+     * @return timeout of the whole request
+     */
+    int getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    /**
+     * Bound every timeout by the time left, so that no step of the request outlives it.
+     * @param remaining time left(milliseconds)
+     * @return bounded timeouts
+     */
+    RequestTimeouts limitTo(long remaining) {
+        return builder()
+                .connectTimeout(limit(connectTimeout, remaining))
+                .connectionRequestTimeout(limit(connectionRequestTimeout, remaining))
+                .socketTimeout(limit(socketTimeout, remaining))
+                .requestTimeout(limit(requestTimeout, remaining))
+                .build();
+    }
+
+    private static int limit(int timeout, long remaining) {
+        int bound = (int) Math.max(1, Math.min(Integer.MAX_VALUE, remaining));
+        if (timeout <= 0) {
+            return bound;
+        }
+        return Math.min(timeout, bound);
+    }
+
+    /**
+     * Set the connect, lease and socket timeouts to the request.
+     * @param request http request method object
+     */
+    void applyTo(HttpRequestBase request) {
+        if (connectTimeout <= 0 && connectionRequestTimeout <= 0 && socketTimeout <= 0) {
+            return;
+        }
+        RequestConfig.Builder config;
+        if (request.getConfig() == null) {
+            config = RequestConfig.custom();
+        } else {
+            config = RequestConfig.copy(request.getConfig());
+        }
+        if (connectTimeout > 0) {
+            config.setConnectTimeout(connectTimeout);
+        }
+        if (connectionRequestTimeout > 0) {
+            config.setConnectionRequestTimeout(connectionRequestTimeout);
+        }
+        if (socketTimeout > 0) {
+            config.setSocketTimeout(socketTimeout);
+        }
+        request.setConfig(config.build());
+    }
+
+    /**
+     * Start the total timeout of the request, which aborts the request when it expires.
+     * @param request http request method object
+     * @return timer to cancel once the response is returned
+     */
+    Timer start(HttpRequestBase request) {
+        return new Timer(request, requestTimeout);
+    }
+
+    /**
+     * Total timeout of a running request.
+     */
+    static final class Timer {
+        private final AtomicBoolean expired = new AtomicBoolean(false);
+        private final ScheduledFuture<?> future;
+        private final long deadline;
+
+        private Timer(HttpRequestBase request, int timeout) {
+            if (timeout > 0) {
+                deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+                future = TIMER.schedule(() -> {
+                    expired.set(true);
+                    request.abort();
+                }, timeout, TimeUnit.MILLISECONDS);
+            } else {
+                deadline = 0;
+                future = null;
+            }
+        }
+
+        /**
+         * @return time(milliseconds) left until the request is aborted, or Long.MAX_VALUE if no timeout
+         */
+        long remaining() {
+            if (future == null) {
+                return Long.MAX_VALUE;
+            }
+            return TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        }
+
+        /**
+         * @return true if the request was aborted by the timeout
+         */
+        boolean isExpired() {
+            return expired.get();
+        }
+
+        /**
+         * Cancel the timeout.
+         */
+        void cancel() {
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Builder of RequestTimeouts.
+     */
+    static final class Builder {
+        private int connectTimeout;
+        private int connectionRequestTimeout;
+        private int socketTimeout;
+        private int requestTimeout;
+
+        private Builder() {
+        }
+
+        Builder connectTimeout(int value) {
+            this.connectTimeout = value;
+            return this;
+        }
+
+        Builder connectionRequestTimeout(int value) {
+            this.connectionRequestTimeout = value;
+            return this;
+        }
+
+        Builder socketTimeout(int value) {
+            this.socketTimeout = value;
+            return this;
+        }
+
+        Builder requestTimeout(int value) {
+            this.requestTimeout = value;
+            return this;
+        }
+
+        RequestTimeouts build() {
+            return new RequestTimeouts(this);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.mozilla.javascript.BaseFunction;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.TopLevel;
+
+/**
+ * Response headers given to javascript in native response mode.
+ * <p>
+ * A read-only view of the headers of the response. Names are case-insensitive.
+ * {@code headers["content-type"]} returns the values of the header joined with ", ",
+ * {@code headers.get(name)} the first value, {@code headers.getAll(name)} an Array of all the values
+ * (e.g. Set-Cookie), and {@code headers.has(name)} whether the header exists.
+ * The lookup table is built on first access, so a script that does not read the headers does not pay for it.
+ */
+@SuppressWarnings("serial")
+final class ResponseHeaders extends ScriptableObject {
+
+    /** Separator of joined values. */
+    private static final String SEPARATOR = ", ";
+    /** Name of the function returning the first value. */
+    private static final String FUNCTION_GET = "get";
+    /** Name of the function returning all the values. */
+    private static final String FUNCTION_GET_ALL = "getAll";
+    /** Name of the function testing the existence. */
+    private static final String FUNCTION_HAS = "has";
+
+    /** Headers of the response. */
+    private final Header[] headers;
+    /** Values by lower case name, in the order of the first occurrence. Built on first access. */
+    private transient Map<String, List<String>> values;
+    /** Names as received, in the order of the first occurrence. Built on first access. */
+    private transient List<String> names;
+
+    /**
+     * Constructor.
+     * @param headers headers of the response
+     */
+    ResponseHeaders(Header[] headers) {
+        this.headers = headers;
+    }
+
+    @Override
+    public String getClassName() {
+        return "Headers";
+    }
+
+    @Override
+    public Object get(String name, Scriptable start) {
+        switch (name) {
+        case FUNCTION_GET:
+            return new HeaderFunction(FUNCTION_GET);
+        case FUNCTION_GET_ALL:
+            return new HeaderFunction(FUNCTION_GET_ALL);
+        case FUNCTION_HAS:
+            return new HeaderFunction(FUNCTION_HAS);
+        default:
+            List<String> list = lookup(name);
+            if (list == null) {
+                return super.get(name, start);
+            }
+            return String.join(SEPARATOR, list);
+        }
+    }
+
+    @Override
+    public boolean has(String name, Scriptable start) {
+        return lookup(name) != null || super.has(name, start);
+    }
+
+    @Override
+    public Object[] getIds() {
+        materialize();
+        return names.toArray();
+    }
+
+    @Override
+    public void put(String name, Scriptable start, Object value) {
+        // Read-only.
+    }
+
+    @Override
+    public void delete(String name) {
+        // Read-only.
+    }
+
+    private List<String> lookup(String name) {
+        materialize();
+        return values.get(name.toLowerCase(Locale.ENGLISH));
+    }
+
+    private void materialize() {
+        if (values != null) {
+            return;
+        }
+        Map<String, List<String>> map = new LinkedHashMap<>();
+        List<String> list = new ArrayList<>();
+        for (Header header : headers) {
+            String key = header.getName().toLowerCase(Locale.ENGLISH);
+            List<String> headerValues = map.get(key);
+            if (headerValues == null) {
+                headerValues = new ArrayList<>(1);
+                map.put(key, headerValues);
+                list.add(header.getName());
+            }
+            headerValues.add(header.getValue());
+        }
+        names = list;
+        values = map;
+    }
+
+    /**
+     * get, getAll and has.
+     */
+    private final class HeaderFunction extends BaseFunction {
+        private final String functionName;
+
+        HeaderFunction(String functionName) {
+            this.functionName = functionName;
+        }
+
+        @Override
+        public String getFunctionName() {
+            return functionName;
+        }
+
+        @Override
+        public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+            List<String> list = null;
+            if (args.length > 0) {
+                list = lookup(ScriptRuntime.toString(args[0]));
+            }
+            switch (functionName) {
+            case FUNCTION_HAS:
+                return list != null;
+            case FUNCTION_GET_ALL:
+                List<String> all = new ArrayList<>();
+                if (list != null) {
+                    all.addAll(list);
+                }
+                NativeArray array = new NativeArray(all.toArray());
+                if (scope != null) {
+                    ScriptRuntime.setBuiltinProtoAndParent(array, scope, TopLevel.Builtins.Array);
+                }
+                return array;
+            default:
+                if (list == null) {
+                    return null;
+                }
+                return list.get(0);
+            }
+        }
+    }
+}
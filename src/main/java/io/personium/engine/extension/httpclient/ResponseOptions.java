@@ -0,0 +1,84 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+/**
+ * How the response of a call is returned to javascript.
+ */
+final class ResponseOptions {
+
+    /** Form of the body. */
+    private final ResponseType type;
+    /** Return status as Number and headers as native object. */
+    private final boolean nativeResponse;
+    /** Max size(bytes) of a body read in memory. */
+    private final long maxSize;
+    /** Download of the body by ranges, or null. */
+    private final RangedDownload rangedDownload;
+
+    /**
+     * Constructor.
+     * @param type form of the body
+     * @param nativeResponse true:return status as Number and headers as native object
+     * @param maxSize max size(bytes) of a body read in memory
+     */
+    ResponseOptions(ResponseType type, boolean nativeResponse, long maxSize) {
+        this(type, nativeResponse, maxSize, null);
+    }
+
+    /**
+     * Constructor.
+     * @param type form of the body
+     * @param nativeResponse true:return status as Number and headers as native object
+     * @param maxSize max size(bytes) of a body read in memory
+     * @param rangedDownload download of the body by ranges, or null. Used with {@link ResponseType#STREAM}.
+     */
+    ResponseOptions(ResponseType type, boolean nativeResponse, long maxSize, RangedDownload rangedDownload) {
+        this.type = type;
+        this.nativeResponse = nativeResponse;
+        this.maxSize = maxSize;
+        this.rangedDownload = rangedDownload;
+    }
+
+    /**
+     * @return form of the body
+     */
+    ResponseType getType() {
+        return type;
+    }
+
+    /**
+     * @return true:return status as Number and headers as native object
+     */
+    boolean isNativeResponse() {
+        return nativeResponse;
+    }
+
+    /**
+     * @return max size(bytes) of a body read in memory
+     */
+    long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return download of the body by ranges, or null
+     */
+    RangedDownload getRangedDownload() {
+        return rangedDownload;
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.util.Locale;
+
+/**
+ * Form in which the response body is returned to javascript.
+ */
+enum ResponseType {
+    /** String. */
+    TEXT,
+    /** PersoniumInputStream. */
+    STREAM,
+    /** Object parsed from JSON. */
+    JSON;
+
+    /**
+     * @param name "text", "stream" or "json", case-insensitive
+     * @return response type, or null if the name is not one of them
+     */
+    static ResponseType of(String name) {
+        for (ResponseType type : values()) {
+            if (type.name().equals(name.toUpperCase(Locale.ENGLISH))) {
+                return type;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide budget of retries.
+ * <p>
+ * Each request deposits a fraction of a retry and each retry withdraws a whole one, so retries stay
+ * a bounded share of the traffic. A small number of retries per second is always allowed, so that
+ * low traffic can still retry. During an outage, when most requests fail, the budget runs dry and
+ * the failures are returned instead of being multiplied.
+ * <p>
+ * Every request goes through the budget, so it takes no lock: the balance is kept in fixed point and updated
+ * by compare-and-set, and the retries of the current second are counted in the same word as the second.
+ */
+final class RetryBudget {
+
+    /** Prefix of system properties. */
+    private static final String PROPERTY_PREFIX = "io.personium.engine.extension.httpclient.retryBudget.";
+    /** Default retries deposited per request, in percent. */
+    private static final int DEFAULT_PERCENT = 20;
+    /** Default retries always allowed per second. */
+    private static final int DEFAULT_MIN_RETRIES_PER_SECOND = 10;
+    /** Default max retries kept in the budget. */
+    private static final int DEFAULT_MAX_BALANCE = 1000;
+    /** Percent of a whole retry. */
+    private static final double PERCENT = 100.0;
+    /** Milliseconds per second. */
+    private static final long MILLIS_PER_SECOND = 1000;
+    /** Units of the balance per retry. */
+    private static final long SCALE = 1000000;
+    /** Bits of the reservation word counting the retries of the second. The second is in the upper bits. */
+    private static final int RESERVED_BITS = 20;
+    /** Mask of the count of retries in the reservation word. */
+    private static final long RESERVED_MASK = (1L << RESERVED_BITS) - 1;
+
+    /** Budget shared by all the clients, configured by system properties. */
+    static final RetryBudget SHARED = new RetryBudget(
+            Integer.getInteger(PROPERTY_PREFIX + "percent", DEFAULT_PERCENT) / PERCENT,
+            Integer.getInteger(PROPERTY_PREFIX + "minRetriesPerSecond", DEFAULT_MIN_RETRIES_PER_SECOND),
+            Integer.getInteger(PROPERTY_PREFIX + "maxBalance", DEFAULT_MAX_BALANCE));
+
+    /** Units deposited per request. */
+    private final long deposit;
+    /** Retries always allowed per second. */
+    private final long minRetriesPerSecond;
+    /** Max units kept in the budget. */
+    private final long maxBalance;
+
+    /** Units deposited. */
+    private final AtomicLong balance = new AtomicLong();
+    /** Current second, and the retries allowed in it regardless of the balance. */
+    private final AtomicLong reservation = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param ratio retries deposited per request
+     * @param minRetriesPerSecond retries always allowed per second
+     * @param maxBalance max retries kept in the budget
+     */
+    RetryBudget(double ratio, int minRetriesPerSecond, int maxBalance) {
+        this.deposit = Math.round(ratio * SCALE);
+        this.minRetriesPerSecond = Math.min(minRetriesPerSecond, RESERVED_MASK);
+        this.maxBalance = maxBalance * SCALE;
+    }
+
+    /**
+     * Deposit the share of a request.
+     */
+    void deposit() {
+        long current;
+        do {
+            current = balance.get();
+            if (current >= maxBalance) {
+                // A full budget is not written, so that requests do not contend on it.
+                return;
+            }
+        } while (!balance.compareAndSet(current, Math.min(maxBalance, current + deposit)));
+    }
+
+    /**
+     * Withdraw a retry.
+     * @return true if the retry is allowed
+     */
+    boolean tryWithdraw() {
+        if (tryReserve()) {
+            return true;
+        }
+        long current;
+        do {
+            current = balance.get();
+            if (current < SCALE) {
+                return false;
+            }
+        } while (!balance.compareAndSet(current, current - SCALE));
+        return true;
+    }
+
+    /**
+     * Take one of the retries always allowed in the current second.
+     * @return true if one was left
+     */
+    private boolean tryReserve() {
+        long now = System.currentTimeMillis() / MILLIS_PER_SECOND;
+        long current;
+        long second;
+        long reserved;
+        do {
+            current = reservation.get();
+            second = current >>> RESERVED_BITS;
+            reserved = current & RESERVED_MASK;
+            if (second < now) {
+                // A new second. A thread reading the clock late does not move the second back.
+                second = now;
+                reserved = 0;
+            }
+            if (reserved >= minRetriesPerSecond) {
+                return false;
+            }
+        } while (!reservation.compareAndSet(current, (second << RESERVED_BITS) | (reserved + 1)));
+        return true;
+    }
+}
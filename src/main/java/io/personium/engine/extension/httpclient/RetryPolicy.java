@@ -0,0 +1,226 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.http.ConnectionClosedException;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpOptions;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpTrace;
+import org.apache.http.client.utils.DateUtils;
+
+/**
+ * Policy to retry failed requests.
+ * <p>
+ * A request is retried when the connection fails (refused, reset or closed without response),
+ * or when the server answers 429, 502, 503 or 504. Only idempotent methods are retried, unless
+ * configured otherwise, except for connection failures before the request is sent.
+ * The delay grows exponentially with full jitter, and is at least the Retry-After of the response.
+ * Instances are immutable.
+ */
+final class RetryPolicy {
+
+    /** Default max attempts, including the first one. */
+    static final int DEFAULT_MAX_ATTEMPTS = 3;
+    /** Default delay(milliseconds) before the first retry. */
+    static final long DEFAULT_BASE_DELAY = 100;
+    /** Default max delay(milliseconds) before a retry. */
+    static final long DEFAULT_MAX_DELAY = 5000;
+
+    /** Policy with default values. */
+    static final RetryPolicy DEFAULT =
+            new RetryPolicy(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY, false);
+
+    /** 429 Too Many Requests (RFC 6585), which HttpStatus does not define. */
+    static final int SC_TOO_MANY_REQUESTS = 429;
+
+    /** Status codes retried. */
+    private static final Set<Integer> RETRYABLE_STATUS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            HttpStatus.SC_BAD_GATEWAY, HttpStatus.SC_SERVICE_UNAVAILABLE, HttpStatus.SC_GATEWAY_TIMEOUT,
+            SC_TOO_MANY_REQUESTS)));
+
+    /** Idempotent methods. */
+    private static final Set<String> IDEMPOTENT_METHODS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            HttpGet.METHOD_NAME, HttpHead.METHOD_NAME, HttpPut.METHOD_NAME, HttpDelete.METHOD_NAME,
+            HttpOptions.METHOD_NAME, HttpTrace.METHOD_NAME)));
+
+    /** Max shift of the exponential backoff, which keeps it from overflowing. */
+    private static final int MAX_BACKOFF_SHIFT = 30;
+    /** Milliseconds per second. */
+    private static final long MILLIS_PER_SECOND = 1000;
+
+    /** Max attempts, including the first one. */
+    private final int maxAttempts;
+    /** Delay(milliseconds) before the first retry. */
+    private final long baseDelay;
+    /** Max delay(milliseconds) before a retry. */
+    private final long maxDelay;
+    /** Retry non-idempotent methods too. */
+    private final boolean retryNonIdempotent;
+
+    /**
+     * Constructor.
+     * @param maxAttempts max attempts, including the first one. 1 disables retries.
+     * @param baseDelay delay(milliseconds) before the first retry
+     * @param maxDelay max delay(milliseconds) before a retry
+     * @param retryNonIdempotent retry non-idempotent methods too
+     */
+    RetryPolicy(int maxAttempts, long baseDelay, long maxDelay, boolean retryNonIdempotent) {
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.retryNonIdempotent = retryNonIdempotent;
+    }
+
+    /**
+     * Create policy with max attempts changed.
+     * @param attempts max attempts, including the first one
+     * @return policy
+     */
+    RetryPolicy withMaxAttempts(int attempts) {
+        return new RetryPolicy(attempts, baseDelay, maxDelay, retryNonIdempotent);
+    }
+
+    /**
+     * @return max attempts, including the first one
+     */
+    int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @return delay(milliseconds) before the first retry
+     */
+    long getBaseDelay() {
+        return baseDelay;
+    }
+
+    /**
+     * @return max delay(milliseconds) before a retry
+     */
+    long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * @return true if non-idempotent methods are retried too
+     */
+    boolean isRetryNonIdempotent() {
+        return retryNonIdempotent;
+    }
+
+    /**
+     * Whether the request can be retried after the failure.
+     * @param request http request method object
+     * @param e failure, or null if the server answered
+     * @return true if the request can be sent again
+     */
+    boolean canRetry(HttpRequestBase request, IOException e) {
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity != null && !entity.isRepeatable()) {
+                // The body stream is already consumed.
+                return false;
+            }
+        }
+        if (e instanceof ConnectException) {
+            // Not sent yet.
+            return true;
+        }
+        return retryNonIdempotent || IDEMPOTENT_METHODS.contains(request.getMethod());
+    }
+
+    /**
+     * @param e failure of a request
+     * @return true if the failure is of the connection and may not recur
+     */
+    static boolean isRetryable(IOException e) {
+        // Timeouts and aborts are InterruptedIOException, and are not retried.
+        // The classic and the HTTP/2 transports each throw their own ConnectionClosedException.
+        return e instanceof NoHttpResponseException || e instanceof SocketException
+                || e instanceof ConnectionClosedException
+                || e instanceof org.apache.hc.core5.http.ConnectionClosedException;
+    }
+
+    /**
+     * @param res response
+     * @return true if the server asks to try again later
+     */
+    static boolean isRetryable(HttpResponse res) {
+        return RETRYABLE_STATUS.contains(res.getStatusLine().getStatusCode());
+    }
+
+    /**
+     * Delay before a retry: a random time up to the exponential backoff, and at least the Retry-After.
+     * @param attempt number of attempts made
+     * @param res response, or null if the request failed
+     * @return delay(milliseconds), or -1 if the server asks to wait longer than the max delay
+     */
+    long getDelay(int attempt, HttpResponse res) {
+        long backoff = Math.min(maxDelay, baseDelay << Math.min(attempt - 1, MAX_BACKOFF_SHIFT));
+        long delay = ThreadLocalRandom.current().nextLong(backoff + 1);
+        if (res == null) {
+            return delay;
+        }
+        long retryAfter = getRetryAfter(res);
+        if (retryAfter > maxDelay) {
+            return -1;
+        }
+        return Math.max(delay, retryAfter);
+    }
+
+    /**
+     * @param res response
+     * @return Retry-After(milliseconds) of the response, or 0 if absent or invalid
+     */
+    private static long getRetryAfter(HttpResponse res) {
+        Header header = res.getFirstHeader(HttpHeaders.RETRY_AFTER);
+        if (header == null) {
+            return 0;
+        }
+        String value = header.getValue().trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * MILLIS_PER_SECOND);
+        } catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(value);
+            if (date == null) {
+                return 0;
+            }
+            return Math.max(0, date.getTime() - System.currentTimeMillis());
+        }
+    }
+}
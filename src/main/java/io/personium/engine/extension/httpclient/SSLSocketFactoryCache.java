@@ -0,0 +1,283 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.apache.http.conn.ssl.DefaultHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.conn.util.PublicSuffixMatcherLoader;
+import org.apache.http.util.TextUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process-wide cache of SSLContexts and SSL socket factories.
+ * <p>
+ * An SSLContext keeps the client side TLS session cache, so building it once per trust configuration
+ * lets repeated connections to the same host resume the session with an abbreviated handshake.
+ * The client certificate is taken from the key store set by the system properties javax.net.ssl.keyStore,
+ * javax.net.ssl.keyStoreType, javax.net.ssl.keyStoreProvider and javax.net.ssl.keyStorePassword, as the JVM
+ * default context does.
+ */
+final class SSLSocketFactoryCache {
+
+    /** Logger. */
+    private static final Logger log = LoggerFactory.getLogger(SSLSocketFactoryCache.class);
+
+    /** SSLContexts by trust configuration. */
+    private static final ConcurrentMap<TrustKey, SSLContext> CONTEXTS = new ConcurrentHashMap<>();
+
+    /** Socket factories by trust configuration. */
+    private static final ConcurrentMap<TrustKey, SSLConnectionSocketFactory> FACTORIES = new ConcurrentHashMap<>();
+
+    private SSLSocketFactoryCache() {
+    }
+
+    /**
+     * Return the SSL socket factory for the configuration, creating it on first use.
+     * @param config client configuration
+     * @return SSL socket factory
+     * @throws GeneralSecurityException security error
+     */
+    static SSLConnectionSocketFactory getSocketFactory(ClientConfig config) throws GeneralSecurityException {
+        TrustKey key = new TrustKey(config);
+        SSLConnectionSocketFactory factory = FACTORIES.get(key);
+        if (factory != null) {
+            return factory;
+        }
+        synchronized (FACTORIES) {
+            factory = FACTORIES.get(key);
+            if (factory == null) {
+                factory = createSocketFactory(key);
+                FACTORIES.put(key, factory);
+            }
+        }
+        return factory;
+    }
+
+    /**
+     * Return the SSLContext for the configuration, creating it on first use.
+     * The context is shared by the socket factory and the HTTP/2 transport of the same configuration.
+     * @param config client configuration
+     * @return SSLContext
+     * @throws GeneralSecurityException security error
+     */
+    static SSLContext getSSLContext(ClientConfig config) throws GeneralSecurityException {
+        return getSSLContext(new TrustKey(config));
+    }
+
+    /**
+     * Create the hostname verifier applied to https connections.
+     * @return hostname verifier
+     */
+    static HostnameVerifier createHostnameVerifier() {
+        return new DefaultHostnameVerifier(PublicSuffixMatcherLoader.getDefault());
+    }
+
+    /**
+     * @return protocols set by the system property https.protocols, or null
+     */
+    static String[] getSupportedProtocols() {
+        return split(System.getProperty("https.protocols"));
+    }
+
+    /**
+     * @return cipher suites set by the system property https.cipherSuites, or null
+     */
+    static String[] getSupportedCipherSuites() {
+        return split(System.getProperty("https.cipherSuites"));
+    }
+
+    private static SSLContext getSSLContext(TrustKey key) throws GeneralSecurityException {
+        SSLContext sslContext = CONTEXTS.get(key);
+        if (sslContext != null) {
+            return sslContext;
+        }
+        synchronized (CONTEXTS) {
+            sslContext = CONTEXTS.get(key);
+            if (sslContext == null) {
+                sslContext = createSSLContext(key);
+                CONTEXTS.put(key, sslContext);
+            }
+        }
+        return sslContext;
+    }
+
+    /**
+     * Create the SSL socket factory.
+     * A connection manager set to the builder disables the builder's own SSL settings,
+     * so the system properties are applied here in the same way as HttpClientBuilder does.
+     * @param key trust configuration
+     * @return SSL socket factory
+     * @throws GeneralSecurityException security error
+     */
+    private static SSLConnectionSocketFactory createSocketFactory(TrustKey key) throws GeneralSecurityException {
+        return new SSLConnectionSocketFactory(getSSLContext(key),
+                getSupportedProtocols(), getSupportedCipherSuites(), createHostnameVerifier());
+    }
+
+    /**
+     * Create the SSLContext.
+     * @param key trust configuration
+     * @return SSLContext
+     * @throws GeneralSecurityException security error
+     */
+    private static SSLContext createSSLContext(TrustKey key) throws GeneralSecurityException {
+        SSLContext sslContext;
+        // SSL verify settings.
+        KeyManager[] keyManagers = createKeyManagers(key.keyStore);
+        if (key.ignoreHostnameVerification) {
+            sslContext = createSkipSSLVerifyContext(keyManagers);
+        } else {
+            // Trust managers of the default trust store. Not the JVM default context,
+            // so that the session cache settings below do not leak out of this extension.
+            sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(keyManagers, null, null);
+        }
+
+        SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+        sessionContext.setSessionCacheSize(key.sessionCacheSize);
+        sessionContext.setSessionTimeout(key.sessionTimeout);
+
+        log.debug("Create SSLContext: ignoreHostnameVerification={}, sessionCacheSize={}, sessionTimeout={}, "
+                + "keyStore={}", key.ignoreHostnameVerification, key.sessionCacheSize, key.sessionTimeout,
+                key.keyStore);
+        return sslContext;
+    }
+
+    /**
+     * Create the key managers of the key store set by the system properties.
+     * @param keyStoreFile key store file, or null
+     * @return key managers, or null if no key store is set
+     * @throws GeneralSecurityException failed to load the key store
+     */
+    @SuppressWarnings("PMD.ReturnEmptyArrayRatherThanNull")
+    private static KeyManager[] createKeyManagers(String keyStoreFile) throws GeneralSecurityException {
+        if (keyStoreFile == null) {
+            return null;
+        }
+        String type = System.getProperty("javax.net.ssl.keyStoreType", KeyStore.getDefaultType());
+        String provider = System.getProperty("javax.net.ssl.keyStoreProvider");
+        String password = System.getProperty("javax.net.ssl.keyStorePassword");
+        char[] passwordChars = null;
+        if (password != null) {
+            passwordChars = password.toCharArray();
+        }
+        KeyStore keyStore;
+        if (TextUtils.isBlank(provider)) {
+            keyStore = KeyStore.getInstance(type);
+        } else {
+            keyStore = KeyStore.getInstance(type, provider);
+        }
+        try (InputStream in = new FileInputStream(keyStoreFile)) {
+            keyStore.load(in, passwordChars);
+        } catch (IOException e) {
+            throw new KeyStoreException("Failed to load the key store: " + keyStoreFile, e);
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, passwordChars);
+        return kmf.getKeyManagers();
+    }
+
+    /**
+     * Create and return the SSLContext that skips ssl verification.
+     * @param keyManagers key managers of the client certificate, or null
+     * @return SSL context.
+     * @throws GeneralSecurityException security error
+     */
+    @SuppressWarnings("PMD.ReturnEmptyArrayRatherThanNull")
+    private static SSLContext createSkipSSLVerifyContext(KeyManager[] keyManagers) throws GeneralSecurityException {
+        SSLContext sslContext = SSLContext.getInstance("TLSv1.2");
+        TrustManager tm = new X509TrustManager() {
+            public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            }
+            public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            }
+            public X509Certificate[] getAcceptedIssuers() {
+                return null;
+            }
+        };
+        sslContext.init(keyManagers, new TrustManager[] {tm}, null);
+        return sslContext;
+    }
+
+    @SuppressWarnings("PMD.ReturnEmptyArrayRatherThanNull")
+    private static String[] split(String s) {
+        if (TextUtils.isBlank(s)) {
+            return null;
+        }
+        return s.split(" *, *");
+    }
+
+    /**
+     * Part of ClientConfig, and the key store, that determine the SSLContext.
+     */
+    private static final class TrustKey {
+        private final boolean ignoreHostnameVerification;
+        private final int sessionCacheSize;
+        private final int sessionTimeout;
+        /** Key store of the client certificate, or null. */
+        private final String keyStore;
+
+        TrustKey(ClientConfig config) {
+            this.ignoreHostnameVerification = config.isIgnoreHostnameVerification();
+            this.sessionCacheSize = config.getTlsSessionCacheSize();
+            this.sessionTimeout = config.getTlsSessionTimeout();
+            String file = System.getProperty("javax.net.ssl.keyStore");
+            if (TextUtils.isBlank(file) || "NONE".equals(file)) {
+                file = null;
+            }
+            this.keyStore = file;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof TrustKey)) {
+                return false;
+            }
+            TrustKey other = (TrustKey) obj;
+            return ignoreHostnameVerification == other.ignoreHostnameVerification
+                    && sessionCacheSize == other.sessionCacheSize
+                    && sessionTimeout == other.sessionTimeout
+                    && Objects.equals(keyStore, other.keyStore);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(ignoreHostnameVerification, sessionCacheSize, sessionTimeout, keyStore);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * personium.io
+ * Copyright 2018 FUJITSU LIMITED
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.personium.engine.extension.httpclient;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Guard of connections leased by response streams.
+ * <p>
+ * A response body returned as stream keeps its pooled connection until the script closes or drains it.
+ * If the script ends without doing so, the stream object becomes unreachable and the guard releases
+ * the connection. A lease can also be given a timeout of inactivity: a lease whose stream is not read for the
+ * timeout is released even if still reachable, which bounds the time a forgotten stream holds its connection.
+ */
+final class StreamLeakGuard {
+
+    /** Logger. */
+    private static final Logger log = LoggerFactory.getLogger(StreamLeakGuard.class);
+
+    /** Interval(milliseconds) to check lease timeouts. */
+    private static final long SWEEP_INTERVAL = 500;
+
+    /** Queue of unreachable stream objects. */
+    private static final ReferenceQueue<Object> QUEUE = new ReferenceQueue<>();
+
+    /** Active leases. Keeps the references themselves reachable. */
+    private static final Set<Lease> LEASES = ConcurrentHashMap.newKeySet();
+
+    static {
+        Thread reaper = new Thread(StreamLeakGuard::reap, "personium-httpclient-stream-guard");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    private StreamLeakGuard() {
+    }
+
+    /**
+     * Register a lease.
+     * @param owner object handed to the script. The lease is released when it becomes unreachable.
+     * @param resource resource released with the lease
+     * @param timeout timeout(milliseconds) of inactivity of the lease, or 0 for no timeout
+     * @return lease
+     */
+    static Lease register(Object owner, Closeable resource, long timeout) {
+        Lease lease = new Lease(owner, resource, timeout);
+        LEASES.add(lease);
+        return lease;
+    }
+
+    /**
+     * @return number of active leases
+     */
+    static int activeLeases() {
+        return LEASES.size();
+    }
+
+    private static void reap() {
+        while (true) {
+            try {
+                Reference<?> ref = QUEUE.remove(SWEEP_INTERVAL);
+                while (ref != null) {
+                    ((Lease) ref).expire("the stream was not closed by the script");
+                    ref = QUEUE.poll();
+                }
+                long now = System.currentTimeMillis();
+                for (Lease lease : LEASES) {
+                    if (lease.timeout > 0 && lease.deadline < now) {
+                        lease.expire("the stream lease timed out");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                log.warn("Failed to release leased connection.", e);
+            }
+        }
+    }
+
+    /**
+     * Connection leased by a stream.
+     */
+    static final class Lease extends PhantomReference<Object> {
+        private final Closeable resource;
+        private final long timeout;
+        private volatile long deadline;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Lease(Object owner, Closeable resource, long timeout) {
+            super(owner, QUEUE);
+            this.resource = resource;
+            this.timeout = timeout;
+            touch();
+        }
+
+        /**
+         * Restart the timeout, as the stream is being read.
+         */
+        void touch() {
+            if (timeout > 0) {
+                deadline = System.currentTimeMillis() + timeout;
+            }
+        }
+
+        /**
+         * Release the lease. Does nothing if already released.
+         */
+        void release() {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            LEASES.remove(this);
+            try {
+                resource.close();
+            } catch (IOException e) {
+                log.debug("Failed to close leased resource.", e);
+            }
+        }
+
+        /**
+         * Deregister the lease without closing the resource, after the resource returned the connection itself.
+         * Does nothing if already released.
+         */
+        void complete() {
+            if (released.compareAndSet(false, true)) {
+                LEASES.remove(this);
+            }
+        }
+
+        private void expire(String reason) {
+            if (!released.get()) {
+                log.info("Release leased connection because {}.", reason);
+            }
+            release();
+        }
+    }
+}
@@ -20,6 +20,7 @@ import static com.github.tomakehurst.wiremock.client.WireMock.*;
 import static org.junit.Assert.*;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
@@ -29,9 +30,69 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
 
 import org.apache.commons.codec.binary.Base64;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.EndpointDetails;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.Message;
+import org.apache.hc.core5.http.URIScheme;
+import org.apache.hc.core5.http.impl.bootstrap.HttpAsyncServer;
+import org.apache.hc.core5.http.nio.AsyncRequestConsumer;
+import org.apache.hc.core5.http.nio.AsyncServerRequestHandler;
+import org.apache.hc.core5.http.nio.entity.StringAsyncEntityConsumer;
+import org.apache.hc.core5.http.nio.support.BasicRequestConsumer;
+import org.apache.hc.core5.http.nio.support.BasicResponseProducer;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http.protocol.HttpCoreContext;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.http2.impl.nio.bootstrap.H2ServerBootstrap;
+import org.apache.hc.core5.http2.ssl.H2ServerTlsStrategy;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.reactor.ListenerEndpoint;
 import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHttpResponse;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
@@ -40,9 +101,18 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mozilla.javascript.EcmaError;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.NativeArray;
 import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.Scriptable;
 
+import com.github.tomakehurst.wiremock.http.Fault;
+import com.sun.net.httpserver.HttpServer;
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
+import com.github.tomakehurst.wiremock.verification.LoggedRequest;
 
 import io.personium.engine.extension.wrapper.PersoniumInputStream;
 
@@ -90,10 +160,34 @@ public class Ext_HttpClientTest {
     // parameters json keys
     private static final String KEY_SKIP_HOSTNAME_VERIFICATION = "IgnoreHostnameVerification";
     private static final String KEY_DEFAULT_HEADERS            = "DefaultHeaders";
+    private static final String KEY_MAX_TOTAL_CONNECTIONS      = "MaxTotalConnections";
+    private static final String KEY_MAX_CONNECTIONS_PER_ROUTE  = "MaxConnectionsPerRoute";
+    private static final String KEY_TLS_SESSION_CACHE_SIZE     = "TlsSessionCacheSize";
+    private static final String KEY_RESPONSE_CACHE             = "ResponseCache";
+    private static final String KEY_RESPONSE_CACHE_DIRECTORY   = "ResponseCacheDirectory";
+    private static final String KEY_STREAM_LEASE_TIMEOUT       = "StreamLeaseTimeout";
+    private static final String KEY_HTTP2                      = "Http2";
+    private static final String KEY_ACCEPT_ENCODING            = "AcceptEncoding";
+    private static final String KEY_REQUEST_COMPRESSION_THRESHOLD = "RequestCompressionThreshold";
+    private static final String KEY_REQUEST_TIMEOUT            = "RequestTimeout";
+    private static final String KEY_DEADLINE_BUDGET            = "DeadlineBudget";
+    private static final String KEY_RETRY_MAX_ATTEMPTS         = "RetryMaxAttempts";
+    private static final String KEY_CIRCUIT_BREAKER            = "CircuitBreaker";
+    private static final String KEY_NATIVE_RESPONSE            = "NativeResponse";
+    private static final String KEY_JSON_MAX_DEPTH             = "JsonMaxDepth";
+    private static final String KEY_JSON_MAX_SIZE              = "JsonMaxSize";
+    private static final String KEY_MAX_RESPONSE_SIZE          = "MaxResponseSize";
+    private static final String KEY_DNS_CACHE                  = "DnsCache";
+    private static final String KEY_REQUEST_COALESCING         = "RequestCoalescing";
+    private static final String KEY_CELL                       = "Cell";
+    private static final String KEY_ADAPTIVE_CONCURRENCY       = "AdaptiveConcurrency";
 
     @Rule
     public WireMockRule wireMockRule = new WireMockRule();
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @BeforeClass
     public static void beforeClass() {
 
@@ -106,7 +200,8 @@ public class Ext_HttpClientTest {
 
     @After
     public void after() {
-
+        // Mock server is restarted for every test, so pooled connections are not reusable.
+        HttpClientRegistry.closeAll();
     }
 
     /*
@@ -228,6 +323,187 @@ public class Ext_HttpClientTest {
                 .withHeader(DEFAULT_HEADER_KEY, matching("Overridden")));
     }
 
+    /*
+     * http_get_text_reuses_pooled_connection.
+     */
+    @Test
+    public void http_get_text_reuses_pooled_connection() throws Exception {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withBody("body content")
+                    .withHeader("Content-Type", "text/plain")));
+
+        NativeObject parameters = new NativeObject();
+        parameters.put(KEY_MAX_TOTAL_CONNECTIONS, parameters, 7);
+        parameters.put(KEY_MAX_CONNECTIONS_PER_ROUTE, parameters, 3);
+
+        Ext_HttpClient first = new Ext_HttpClient(parameters);
+        Ext_HttpClient second = new Ext_HttpClient(parameters);
+        first.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false);
+        second.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false);
+
+        ClientConfig config = ClientConfig.builder().maxTotalConnections(7).maxConnectionsPerRoute(3).build();
+        PoolingHttpClientConnectionManager pool = HttpClientRegistry.getConnectionManager(config);
+        assertNotNull(pool);
+        assertEquals(7, pool.getMaxTotal());
+        assertEquals(3, pool.getDefaultMaxPerRoute());
+        // Both calls went through one kept-alive connection.
+        assertEquals(0, pool.getTotalStats().getLeased());
+        assertEquals(1, pool.getTotalStats().getAvailable());
+        assertSame(HttpClientRegistry.getClient(config), HttpClientRegistry.getClient(config));
+
+        verify(2, getRequestedFor(urlEqualTo(PATH_HTTP_GET_TEXT)));
+    }
+
+    /*
+     * https_get_resumes_tls_session.
+     */
+    @Test
+    public void https_get_resumes_tls_session() throws Exception {
+        try (TlsStubServer server = new TlsStubServer()) {
+            NativeObject parameters = new NativeObject();
+            parameters.put(KEY_SKIP_HOSTNAME_VERIFICATION, parameters, true);
+            parameters.put(KEY_TLS_SESSION_CACHE_SIZE, parameters, 10);
+
+            // The stub server closes every connection, so each call needs a new TLS handshake.
+            for (int i = 0; i < 3; i++) {
+                Ext_HttpClient ext_httpClient = new Ext_HttpClient(parameters);
+                NativeObject result = ext_httpClient.get(server.getUrl(), null, false);
+                assertEquals(Integer.toString(HttpStatus.SC_OK), result.get("status"));
+                assertEquals("ok", result.get("body"));
+            }
+
+            assertEquals(3, server.getHandshakes());
+            assertEquals(1, server.getFullHandshakes());
+        }
+    }
+
+    /*
+     * https_get_presents_client_certificate.
+     */
+    @Test
+    public void https_get_presents_client_certificate() throws Exception {
+        String keyStore = new File(Ext_HttpClientTest.class.getResource("/tls-stub.jks").toURI()).getPath();
+        System.setProperty("javax.net.ssl.keyStore", keyStore);
+        System.setProperty("javax.net.ssl.keyStorePassword", "changeit");
+        System.setProperty("javax.net.ssl.keyStoreType", "JKS");
+        try (TlsStubServer server = new TlsStubServer(true)) {
+            NativeObject parameters = new NativeObject();
+            parameters.put(KEY_SKIP_HOSTNAME_VERIFICATION, parameters, true);
+            NativeObject result = new Ext_HttpClient(parameters).get(server.getUrl(), null, false);
+
+            assertEquals(Integer.toString(HttpStatus.SC_OK), result.get("status"));
+            assertEquals("ok", result.get("body"));
+            assertTrue(server.getClientCertificates() > 0);
+        } finally {
+            System.clearProperty("javax.net.ssl.keyStore");
+            System.clearProperty("javax.net.ssl.keyStorePassword");
+            System.clearProperty("javax.net.ssl.keyStoreType");
+        }
+    }
+
+    /*
+     * http_get_text_with_response_cache.
+     */
+    @Test
+    public void http_get_text_with_response_cache() {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withBody("body content")
+                    .withHeader("Content-Type", "text/plain")
+                    .withHeader("Cache-Control", "max-age=60")));
+
+        NativeObject parameters = new NativeObject();
+        parameters.put(KEY_RESPONSE_CACHE, parameters, true);
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient(parameters);
+
+        NativeObject first = ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false);
+        NativeObject second = new Ext_HttpClient(parameters).get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false);
+
+        assertEquals("MISS", first.get("cacheStatus"));
+        assertEquals("HIT", second.get("cacheStatus"));
+        assertEquals("body content", second.get("body"));
+        verify(1, getRequestedFor(urlEqualTo(PATH_HTTP_GET_TEXT)));
+    }
+
+    /*
+     * http_get_text_with_response_cache_revalidated.
+     */
+    @Test
+    public void http_get_text_with_response_cache_revalidated() {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .withHeader("If-None-Match", absent())
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withBody("body content")
+                    .withHeader("Content-Type", "text/plain")
+                    .withHeader("Cache-Control", "max-age=0")
+                    .withHeader("ETag", "\"v1\"")));
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .withHeader("If-None-Match", equalTo("\"v1\""))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_NOT_MODIFIED)
+                    .withHeader("Cache-Control", "max-age=0")
+                    .withHeader("ETag", "\"v1\"")));
+
+        NativeObject parameters = new NativeObject();
+        parameters.put(KEY_RESPONSE_CACHE, parameters, true);
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient(parameters);
+
+        NativeObject first = ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false);
+        NativeObject second = ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false);
+
+        assertEquals("MISS", first.get("cacheStatus"));
+        assertEquals("VALIDATED", second.get("cacheStatus"));
+        assertEquals(Integer.toString(HttpStatus.SC_OK), second.get("status"));
+        assertEquals("body content", second.get("body"));
+        verify(getRequestedFor(urlEqualTo(PATH_HTTP_GET_TEXT)).withHeader("If-None-Match", equalTo("\"v1\"")));
+    }
+
+    /*
+     * http_get_text_with_response_cache_on_disk.
+     */
+    @Test
+    public void http_get_text_with_response_cache_on_disk() throws Exception {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withBody("body content")
+                    .withHeader("Content-Type", "text/plain")
+                    .withHeader("Cache-Control", "max-age=60")));
+
+        File root = temporaryFolder.newFolder("cache");
+        System.setProperty(MappedFileCacheStorage.PROPERTY_ROOT, root.getPath());
+        try {
+            NativeObject parameters = new NativeObject();
+            parameters.put(KEY_RESPONSE_CACHE_DIRECTORY, parameters, "cell1");
+
+            NativeObject first = new Ext_HttpClient(parameters).get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false);
+            NativeObject second = new Ext_HttpClient(parameters).get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, true);
+            assertEquals("MISS", first.get("cacheStatus"));
+            assertEquals("HIT", second.get("cacheStatus"));
+            assertEquals("body content", readAll((InputStream) second.get("body")));
+            assertTrue(new File(root, "cell1").isDirectory());
+
+            // Reopen the index as after restart.
+            HttpClientRegistry.closeAll();
+            NativeObject third = new Ext_HttpClient(parameters).get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false);
+            assertEquals("HIT", third.get("cacheStatus"));
+            assertEquals("body content", third.get("body"));
+
+            verify(1, getRequestedFor(urlEqualTo(PATH_HTTP_GET_TEXT)));
+        } finally {
+            System.clearProperty(MappedFileCacheStorage.PROPERTY_ROOT);
+        }
+
+        // Only a directory right under the root.
+        assertNull(MappedFileCacheStorage.resolve(".."));
+        assertNull(MappedFileCacheStorage.resolve("../cell1"));
+        assertNull(MappedFileCacheStorage.resolve(root.getPath()));
+    }
+
     /*
      * http_get_stream.
      */
@@ -263,6 +539,106 @@ public class Ext_HttpClientTest {
                 .withHeader(HEADER_KEY, matching(HEADER_VALUE)));
     }
 
+    /*
+     * http_get_stream_keeps_connection_until_closed.
+     */
+    @Test
+    public void http_get_stream_keeps_connection_until_closed() throws Exception {
+        byte[] body = new byte[1024 * 1024];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_STREAM))
+                .willReturn(aResponse()
+                    .withStatus(200)
+                    .withBody(body)
+                    .withHeader("Content-Type", "application/octet-stream")));
+
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient();
+        NativeObject result = ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_STREAM, null, true);
+        PoolingHttpClientConnectionManager pool = HttpClientRegistry.getConnectionManager(ClientConfig.DEFAULT);
+
+        // The body is not buffered; the connection is leased while the script reads it.
+        assertEquals(1, pool.getTotalStats().getLeased());
+        InputStream res_body = (InputStream) result.get("body");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int len;
+        while ((len = res_body.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+        }
+        assertArrayEquals(body, out.toByteArray());
+        assertEquals(0, pool.getTotalStats().getLeased());
+        assertEquals(1, pool.getTotalStats().getAvailable());
+        res_body.close();
+    }
+
+    /*
+     * http_get_stream_closed_after_content_length_reuses_connection.
+     */
+    @Test
+    public void http_get_stream_closed_after_content_length_reuses_connection() throws Exception {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_STREAM))
+                .willReturn(aResponse()
+                    .withStatus(200)
+                    .withBody(new byte[100 * 1024])
+                    .withHeader("Content-Length", Integer.toString(100 * 1024))
+                    .withHeader("Content-Type", "application/octet-stream")));
+
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient();
+        PoolingHttpClientConnectionManager pool;
+
+        // The script reads Content-Length bytes and closes without waiting for the end of the stream.
+        // Not encoded, so that the length of the body is known.
+        NativeObject identity = headers("Accept-Encoding", "identity");
+        NativeObject result = ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_STREAM, identity, true);
+        pool = HttpClientRegistry.getConnectionManager(ClientConfig.DEFAULT);
+        InputStream res_body = (InputStream) result.get("body");
+        byte[] buffer = new byte[100 * 1024];
+        int read = 0;
+        while (read < buffer.length) {
+            read += res_body.read(buffer, read, buffer.length - read);
+        }
+        res_body.close();
+        assertEquals(0, pool.getTotalStats().getLeased());
+        assertEquals(1, pool.getTotalStats().getAvailable());
+
+        // Closed before the end, the connection is aborted rather than drained.
+        result = ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_STREAM, identity, true);
+        res_body = (InputStream) result.get("body");
+        assertTrue(res_body.read(buffer, 0, 10) > 0);
+        res_body.close();
+        assertEquals(0, pool.getTotalStats().getLeased());
+        assertEquals(0, pool.getTotalStats().getAvailable());
+    }
+
+    /*
+     * http_get_stream_lease_timeout.
+     */
+    @Test
+    public void http_get_stream_lease_timeout() throws Exception {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_STREAM))
+                .willReturn(aResponse()
+                    .withStatus(200)
+                    .withBody(new byte[1024 * 1024])
+                    .withHeader("Content-Type", "application/octet-stream")));
+
+        NativeObject parameters = new NativeObject();
+        parameters.put(KEY_STREAM_LEASE_TIMEOUT, parameters, 100);
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient(parameters);
+        NativeObject result = ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_STREAM, null, true);
+        PoolingHttpClientConnectionManager pool = HttpClientRegistry.getConnectionManager(ClientConfig.DEFAULT);
+        assertEquals(1, pool.getTotalStats().getLeased());
+
+        // The script never closes the stream.
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getTotalStats().getLeased() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, pool.getTotalStats().getLeased());
+        assertNotNull(result.get("body"));
+    }
+
     /*
      * http_post_text.
      */
@@ -396,39 +772,1851 @@ public class Ext_HttpClientTest {
     /*
      * http_post_stream.
      */
-//    @Test
-//    public void http_post_stream() {
-//        NativeObject req_headers = new NativeObject();
-//        req_headers.put(HEADER_KEY, req_headers, HEADER_VALUE);
-//
-//        Ext_HttpClient ext_httpClient = new Ext_HttpClient();
-
-        // For Test File operation.
-//      try {
-//          is = FileToInputStream(POST_FILE_PATH + POST_READ_FILE);
-//      } catch (FileNotFoundException e) {
-//          e.printStackTrace();
-//      }
-//      InputStreamToFile(body, POST_FILE_PATH, POST_WRITE_BASE64);
-//      String base64_str = FileToBase64(POST_FILE_PATH + POST_READ_FILE);
-
-//        InputStream is = Base64ToInputStream(BASE64_DATA);
-//        PersoniumInputStream pis = new PersoniumInputStream((InputStream) is);
+    @Test
+    public void http_post_stream() throws Exception {
+        stubFor(post(urlEqualTo(PATH_HTTP_POST_STREAM))
+                .willReturn(aResponse()
+                    .withStatus(200)
+                    .withBody("body content")
+                    .withHeader("Content-Type", "text/plain")));
 
-        /**
-         * ext_httpClient.post stream
-         * String uri, String body, String contentType,
-         * NativeObject headers, boolean respondsAsStream
-         */
-//        NativeObject result = ext_httpClient.postStream(
-//              PATH_HTTP_POST_STREAM, req_headers, POST_CONTENT_TYPE, pis, "image.jpg");
-//
-//        String status = (String)result.get("status");
-//        String res_headers = (String)result.get("headers");
-//        String res_body = (String)result.get("body");
-//
-//        assertEquals(status, Integer.toString(HttpStatus.SC_OK));
-//    }
+        NativeObject req_headers = new NativeObject();
+        req_headers.put(HEADER_KEY, req_headers, HEADER_VALUE);
+
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient();
+        InputStream is = Base64ToInputStream(BASE64_DATA);
+        PersoniumInputStream pis = new PersoniumInputStream((InputStream) is);
+
+        NativeObject result = ext_httpClient.postStream(
+            MOCK_SERVER_URL + PATH_HTTP_POST_STREAM, req_headers, "image/jpeg", pis);
+
+        assertEquals(Integer.toString(HttpStatus.SC_OK), result.get("status"));
+        assertEquals("body content", result.get("body"));
+        verify(postRequestedFor(urlEqualTo(PATH_HTTP_POST_STREAM))
+                .withHeader(HEADER_KEY, matching(HEADER_VALUE))
+                .withHeader("Content-Type", equalTo("image/jpeg"))
+                .withHeader("Transfer-Encoding", equalTo("chunked"))
+                .withRequestBody(binaryEqualTo(Base64.decodeBase64(BASE64_DATA))));
+    }
+
+    /*
+     * http_put_stream_with_content_length.
+     */
+    @Test
+    public void http_put_stream_with_content_length() throws Exception {
+        stubFor(put(urlEqualTo(PATH_HTTP_POST_STREAM))
+                .willReturn(aResponse()
+                    .withStatus(204)));
+
+        byte[] body = Base64.decodeBase64(BASE64_DATA);
+        NativeObject req_headers = new NativeObject();
+        req_headers.put("Content-Length", req_headers, Integer.toString(body.length));
+
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient();
+        PersoniumInputStream pis = new PersoniumInputStream(new ByteArrayInputStream(body));
+
+        NativeObject result = ext_httpClient.putStream(
+            MOCK_SERVER_URL + PATH_HTTP_POST_STREAM, req_headers, "image/jpeg", pis);
+
+        assertEquals(Integer.toString(HttpStatus.SC_NO_CONTENT), result.get("status"));
+        verify(putRequestedFor(urlEqualTo(PATH_HTTP_POST_STREAM))
+                .withHeader("Content-Length", equalTo(Integer.toString(body.length)))
+                .withoutHeader("Transfer-Encoding")
+                .withRequestBody(binaryEqualTo(body)));
+    }
+
+    /*
+     * http_post_stream_larger_than_heap.
+     * WireMock keeps request bodies in memory, so the body is counted by a plain socket server.
+     */
+    @Test
+    public void http_post_stream_larger_than_heap() throws Exception {
+        long size = Runtime.getRuntime().maxMemory() + 64L * 1024 * 1024;
+        try (UploadSinkServer server = new UploadSinkServer()) {
+            Ext_HttpClient ext_httpClient = new Ext_HttpClient();
+            PersoniumInputStream pis = new PersoniumInputStream(new GeneratedInputStream(size));
+
+            NativeObject result = ext_httpClient.postStream(
+                server.getUrl(), new NativeObject(), "application/octet-stream", pis);
+
+            assertEquals(Integer.toString(HttpStatus.SC_OK), result.get("status"));
+            assertEquals(Long.toString(size), result.get("body"));
+        }
+    }
+
+    /*
+     * Stream of the given number of bytes, generated without holding them in memory.
+     */
+    private static final class GeneratedInputStream extends InputStream {
+        private long remaining;
+
+        GeneratedInputStream(long size) {
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() {
+            if (remaining <= 0) {
+                return -1;
+            }
+            remaining--;
+            return 'x';
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = (int) Math.min(len, remaining);
+            Arrays.fill(b, off, off + n, (byte) 'x');
+            remaining -= n;
+            return n;
+        }
+    }
+
+    /*
+     * HTTP server that reads the request body, chunked or with Content-Length,
+     * and answers the number of bytes read.
+     */
+    private static final class UploadSinkServer implements Runnable, AutoCloseable {
+        private final ServerSocket serverSocket;
+        private final Thread thread = new Thread(this, "upload-sink-server");
+
+        UploadSinkServer() throws IOException {
+            serverSocket = new ServerSocket(0);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String getUrl() {
+            return "http://localhost:" + serverSocket.getLocalPort() + "/";
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                try (Socket socket = serverSocket.accept()) {
+                    InputStream in = new BufferedInputStream(socket.getInputStream());
+                    boolean chunked = false;
+                    long contentLength = 0;
+                    String line;
+                    while (!(line = readLine(in)).isEmpty()) {
+                        String lower = line.toLowerCase();
+                        if (lower.startsWith("transfer-encoding:") && lower.contains("chunked")) {
+                            chunked = true;
+                        } else if (lower.startsWith("content-length:")) {
+                            contentLength = Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+                        }
+                    }
+                    long count = 0;
+                    if (chunked) {
+                        long chunk;
+                        while ((chunk = Long.parseLong(readLine(in).split(";")[0].trim(), 16)) > 0) {
+                            count += skipFully(in, chunk);
+                            readLine(in);
+                        }
+                        while (!readLine(in).isEmpty()) {
+                            continue;
+                        }
+                    } else {
+                        count = skipFully(in, contentLength);
+                    }
+                    String body = Long.toString(count);
+                    OutputStream out = socket.getOutputStream();
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: " + body.length()
+                            + "\r\nConnection: close\r\n\r\n" + body).getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                } catch (IOException | RuntimeException e) {
+                    continue;
+                }
+            }
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c == -1) {
+                    throw new EOFException();
+                }
+                if (c != '\r') {
+                    sb.append((char) c);
+                }
+            }
+            return sb.toString();
+        }
+
+        private static long skipFully(InputStream in, long n) throws IOException {
+            byte[] buffer = new byte[65536];
+            long done = 0;
+            while (done < n) {
+                int len = in.read(buffer, 0, (int) Math.min(buffer.length, n - done));
+                if (len == -1) {
+                    throw new EOFException();
+                }
+                done += len;
+            }
+            return done;
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+
+    /*
+     * http_all.
+     */
+    @Test
+    public void http_all() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT + i))
+                    .willReturn(aResponse()
+                        .withStatus(200)
+                        .withFixedDelay(500)
+                        .withBody("body " + i)
+                        .withHeader("Content-Type", "text/plain")));
+        }
+        stubFor(post(urlEqualTo(PATH_HTTP_POST_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(201)
+                    .withBody("created")));
+
+        Object[] requests = new Object[5];
+        for (int i = 0; i < 3; i++) {
+            NativeObject request = new NativeObject();
+            request.put("url", request, MOCK_SERVER_URL + PATH_HTTP_GET_TEXT + i);
+            requests[i] = request;
+        }
+        NativeObject postRequest = new NativeObject();
+        postRequest.put("method", postRequest, "POST");
+        postRequest.put("url", postRequest, MOCK_SERVER_URL + PATH_HTTP_POST_TEXT);
+        postRequest.put("contentType", postRequest, POST_CONTENT_TYPE);
+        postRequest.put("body", postRequest, POST_PARAMS_TEXT);
+        requests[3] = postRequest;
+        // Invalid request fails alone.
+        requests[4] = new NativeObject();
+
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient(new NativeObject());
+        long start = System.currentTimeMillis();
+        NativeArray results = ext_httpClient.all(new NativeArray(requests), null);
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertEquals(5, results.getLength());
+        for (int i = 0; i < 3; i++) {
+            NativeObject result = (NativeObject) results.get(i, results);
+            assertEquals(Integer.toString(HttpStatus.SC_OK), result.get("status"));
+            assertEquals("body " + i, result.get("body"));
+        }
+        assertEquals("created", ((NativeObject) results.get(3, results)).get("body"));
+        assertEquals("Parameter [url] is not set.", ((NativeObject) results.get(4, results)).get("error"));
+        // Run concurrently, not one after another.
+        assertTrue(elapsed < 1400);
+        verify(postRequestedFor(urlEqualTo(PATH_HTTP_POST_TEXT)).withRequestBody(equalTo(POST_PARAMS_TEXT)));
+    }
+
+    /*
+     * http_all_with_concurrency_and_deadline.
+     */
+    @Test
+    public void http_all_with_concurrency_and_deadline() throws Exception {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(200)
+                    .withFixedDelay(400)
+                    .withBody("body content")));
+
+        Object[] requests = new Object[3];
+        for (int i = 0; i < requests.length; i++) {
+            NativeObject request = new NativeObject();
+            request.put("url", request, MOCK_SERVER_URL + PATH_HTTP_GET_TEXT);
+            requests[i] = request;
+        }
+        NativeObject options = new NativeObject();
+        options.put("concurrency", options, 1);
+        options.put("timeout", options, 1000);
+
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient(new NativeObject());
+        long start = System.currentTimeMillis();
+        NativeArray results = ext_httpClient.all(new NativeArray(requests), options);
+        long elapsed = System.currentTimeMillis() - start;
+
+        // One at a time: two requests finish, the third is aborted at the deadline.
+        assertEquals("body content", ((NativeObject) results.get(0, results)).get("body"));
+        assertEquals("body content", ((NativeObject) results.get(1, results)).get("body"));
+        assertEquals("Batch deadline exceeded.", ((NativeObject) results.get(2, results)).get("error"));
+        assertTrue(elapsed < 1400);
+    }
+
+    /*
+     * http_all_caps_concurrency.
+     */
+    @Test
+    public void http_all_caps_concurrency() throws Exception {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(200)
+                    .withBody("body content")));
+
+        Object[] requests = new Object[100];
+        for (int i = 0; i < requests.length; i++) {
+            NativeObject request = new NativeObject();
+            request.put("url", request, MOCK_SERVER_URL + PATH_HTTP_GET_TEXT);
+            requests[i] = request;
+        }
+        NativeObject options = new NativeObject();
+        options.put("concurrency", options, 100000);
+
+        NativeArray results = new Ext_HttpClient(new NativeObject()).all(new NativeArray(requests), options);
+        for (int i = 0; i < requests.length; i++) {
+            assertEquals("body content", ((NativeObject) results.get(i, results)).get("body"));
+        }
+
+        // The batch did not start a thread per request.
+        int threads = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("personium-httpclient-batch-")) {
+                threads++;
+            }
+        }
+        assertTrue("threads=" + threads, threads <= BatchRunner.MAX_THREADS);
+    }
+
+    /*
+     * http_get_gzip_response.
+     */
+    @Test
+    public void http_get_gzip_response() throws Exception {
+        String text = "decoded body content";
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(gzipped)) {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(200)
+                    .withBody(gzipped.toByteArray())
+                    .withHeader("Content-Type", "text/plain")
+                    .withHeader("Content-Encoding", "gzip")));
+
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient(new NativeObject());
+        NativeObject result = ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false);
+        assertEquals(text, result.get("body"));
+        result = ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, true);
+        assertEquals(text, readAll((InputStream) result.get("body")));
+
+        verify(2, getRequestedFor(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .withHeader("Accept-Encoding", equalTo("gzip,deflate")));
+    }
+
+    /*
+     * http_get_with_accept_encoding.
+     */
+    @Test
+    public void http_get_with_accept_encoding() throws Exception {
+        String text = "decoded body content";
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        try (DeflaterOutputStream out = new DeflaterOutputStream(deflated)) {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(200)
+                    .withBody(deflated.toByteArray())
+                    .withHeader("Content-Type", "text/plain")
+                    .withHeader("Content-Encoding", "deflate")));
+
+        // br is not decoded without its decoder library on the classpath.
+        NativeObject parameters = new NativeObject();
+        parameters.put(KEY_ACCEPT_ENCODING, parameters, "br, deflate");
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient(parameters);
+        NativeObject result = ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false);
+
+        assertEquals(text, result.get("body"));
+        verify(getRequestedFor(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .withHeader("Accept-Encoding", equalTo("deflate")));
+    }
+
+    /*
+     * http_post_with_request_compression.
+     */
+    @Test
+    public void http_post_with_request_compression() throws Exception {
+        stubFor(post(urlEqualTo(PATH_HTTP_POST_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(200)
+                    .withBody("body content")));
+
+        NativeObject parameters = new NativeObject();
+        parameters.put(KEY_REQUEST_COMPRESSION_THRESHOLD, parameters, 20);
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient(parameters);
+        ext_httpClient.post(MOCK_SERVER_URL + PATH_HTTP_POST_TEXT, null, POST_CONTENT_TYPE, POST_PARAMS_TEXT);
+        ext_httpClient.post(MOCK_SERVER_URL + PATH_HTTP_POST_TEXT, null, POST_CONTENT_TYPE, "key=value");
+
+        List<LoggedRequest> requests = findAll(postRequestedFor(urlEqualTo(PATH_HTTP_POST_TEXT)));
+        assertEquals(2, requests.size());
+        // Larger than the threshold: compressed. The mock server decompresses logged bodies.
+        assertEquals("gzip", requests.get(0).getHeader("Content-Encoding"));
+        assertEquals(POST_PARAMS_TEXT, requests.get(0).getBodyAsString());
+        // Smaller than the threshold: sent as is.
+        assertFalse(requests.get(1).containsHeader("Content-Encoding"));
+        assertEquals("key=value", requests.get(1).getBodyAsString());
+    }
+
+    /*
+     * http_get_with_timeouts.
+     */
+    @Test
+    public void http_get_with_timeouts() {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(200)
+                    .withFixedDelay(1000)
+                    .withBody("body content")));
+
+        NativeObject parameters = new NativeObject();
+        parameters.put(KEY_REQUEST_TIMEOUT, parameters, 200);
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient(parameters);
+        try {
+            ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false);
+            fail("Request did not time out.");
+        } catch (EcmaError e) {
+            assertTrue(e.getErrorMessage(), e.getErrorMessage().contains("TimeoutException"));
+        }
+
+        // Per call options override the constructor parameters.
+        NativeObject options = new NativeObject();
+        options.put("timeout", options, 5000);
+        options.put("socketTimeout", options, 200);
+        try {
+            ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false, options);
+            fail("Request did not time out.");
+        } catch (EcmaError e) {
+            assertTrue(e.getErrorMessage(), e.getErrorMessage().contains("SocketTimeoutException"));
+        }
+        options.put("socketTimeout", options, 5000);
+        NativeObject result = ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false, options);
+        assertEquals("body content", result.get("body"));
+        // The timers of the finished requests do not wait for their delay.
+        assertEquals(0, RequestTimeouts.TIMER.getQueue().size());
+    }
+
+    /*
+     * http_get_with_deadline_budget.
+     */
+    @Test
+    public void http_get_with_deadline_budget() {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(200)
+                    .withFixedDelay(400)
+                    .withBody("body content")));
+
+        NativeObject parameters = new NativeObject();
+        parameters.put(KEY_DEADLINE_BUDGET, parameters, 1000);
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient(parameters);
+        // 1st and 2nd calls fit in the budget, 3rd call gets only what is left and times out.
+        ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false);
+        ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false);
+        try {
+            ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false);
+            fail("Request did not time out.");
+        } catch (EcmaError e) {
+            assertTrue(e.getErrorMessage(), e.getErrorMessage().contains("TimeoutException"));
+        }
+        // Used up: fails without sending the request.
+        try {
+            ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false);
+            fail("Budget was not exhausted.");
+        } catch (EcmaError e) {
+            assertEquals("Deadline budget is exhausted.", e.getErrorMessage());
+        }
+        verify(3, getRequestedFor(urlEqualTo(PATH_HTTP_GET_TEXT)));
+    }
+
+    /*
+     * retry_budget_bounds_concurrent_retries.
+     */
+    @Test
+    public void retry_budget_bounds_concurrent_retries() throws Exception {
+        // No retries are reserved per second, so only the deposits allow retries.
+        RetryBudget budget = new RetryBudget(0.2, 0, 50);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 100; i++) {
+                        budget.deposit();
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            // 800 deposits of a fifth of a retry make 160 retries, kept up to 50.
+            List<Future<Integer>> withdrawals = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                withdrawals.add(executor.submit(() -> {
+                    int allowed = 0;
+                    for (int i = 0; i < 100; i++) {
+                        if (budget.tryWithdraw()) {
+                            allowed++;
+                        }
+                    }
+                    return allowed;
+                }));
+            }
+            int allowed = 0;
+            for (Future<Integer> future : withdrawals) {
+                allowed += future.get();
+            }
+            assertEquals(50, allowed);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // The retries reserved per second are allowed without deposits.
+        RetryBudget reserved = new RetryBudget(0.2, 3, 50);
+        assertTrue(reserved.tryWithdraw());
+        assertTrue(reserved.tryWithdraw());
+        assertTrue(reserved.tryWithdraw());
+    }
+
+    /*
+     * http_get_with_retry.
+     */
+    @Test
+    public void http_get_with_retry() {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT)).inScenario("retry")
+                .whenScenarioStateIs(Scenario.STARTED)
+                .willReturn(aResponse().withFault(Fault.CONNECTION_RESET_BY_PEER))
+                .willSetStateTo("reset"));
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT)).inScenario("retry")
+                .whenScenarioStateIs("reset")
+                .willReturn(aResponse()
+                    .withStatus(503)
+                    .withHeader("Retry-After", "1"))
+                .willSetStateTo("unavailable"));
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT)).inScenario("retry")
+                .whenScenarioStateIs("unavailable")
+                .willReturn(aResponse()
+                    .withStatus(200)
+                    .withBody("body content")));
+
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient(new NativeObject());
+        long start = System.currentTimeMillis();
+        NativeObject result = ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false);
+
+        assertEquals("200", result.get("status"));
+        assertEquals("body content", result.get("body"));
+        assertEquals(3, result.get("attempts"));
+        // Waited for Retry-After.
+        assertTrue(System.currentTimeMillis() - start >= 1000);
+    }
+
+    /*
+     * http_get_with_retry_on_truncated_body.
+     */
+    @Test
+    public void http_get_with_retry_on_truncated_body() {
+        // With coalescing, the classic client reads the body within the retry loop.
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT)).inScenario("truncated")
+                .whenScenarioStateIs(Scenario.STARTED)
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withHeader("Content-Length", "100")
+                    .withBody("body"))
+                .willSetStateTo("closed"));
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT)).inScenario("truncated")
+                .whenScenarioStateIs("closed")
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withBody("body content")));
+        NativeObject parameters = new NativeObject();
+        parameters.put(KEY_REQUEST_COALESCING, parameters, true);
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient(parameters);
+
+        NativeObject result = ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT,
+                headers("Accept-Encoding", "identity"), false);
+
+        assertEquals("200", result.get("status"));
+        assertEquals("body content", result.get("body"));
+        assertEquals(2, result.get("attempts"));
+    }
+
+    /*
+     * http_post_is_not_retried.
+     */
+    @Test
+    public void http_post_is_not_retried() {
+        stubFor(post(urlEqualTo(PATH_HTTP_POST_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(503)));
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(503)));
+
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient(new NativeObject());
+        NativeObject result = ext_httpClient.post(MOCK_SERVER_URL + PATH_HTTP_POST_TEXT, null, POST_CONTENT_TYPE,
+                POST_PARAMS_TEXT);
+        assertEquals("503", result.get("status"));
+        assertEquals(1, result.get("attempts"));
+        verify(1, postRequestedFor(urlEqualTo(PATH_HTTP_POST_TEXT)));
+
+        // Per call options override the max attempts.
+        NativeObject options = new NativeObject();
+        options.put("maxAttempts", options, 2);
+        result = ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false, options);
+        assertEquals("503", result.get("status"));
+        assertEquals(2, result.get("attempts"));
+        verify(2, getRequestedFor(urlEqualTo(PATH_HTTP_GET_TEXT)));
+    }
+
+    /*
+     * http_get_with_circuit_breaker_open.
+     */
+    @Test
+    public void http_get_with_circuit_breaker_open() {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(503)));
+        String badRequestPath = PATH_HTTP_GET_TEXT + "/error";
+        stubFor(get(urlEqualTo(badRequestPath))
+                .willReturn(aResponse()
+                    .withStatus(500)));
+        // An origin of its own, so that the open breaker does not affect the other tests.
+        String url = "http://127.0.0.1:8080" + PATH_HTTP_GET_TEXT;
+
+        NativeObject parameters = new NativeObject();
+        parameters.put(KEY_RETRY_MAX_ATTEMPTS, parameters, 1);
+        parameters.put(KEY_CIRCUIT_BREAKER, parameters, true);
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient(parameters);
+        // 500 is an error of the request, not of the origin.
+        for (int i = 0; i < 20; i++) {
+            assertEquals("500", ext_httpClient.get("http://127.0.0.1:8080" + badRequestPath, null, false)
+                    .get("status"));
+        }
+        assertEquals("CLOSED", CircuitBreaker.stateOf("http://127.0.0.1:8080").name());
+        // Opens after 20 calls with failure rate of 50% or more.
+        for (int i = 0; i < 20; i++) {
+            assertEquals("503", ext_httpClient.get(url, null, false).get("status"));
+        }
+        try {
+            ext_httpClient.get(url, null, false);
+            fail("Circuit breaker is not open.");
+        } catch (EcmaError e) {
+            assertEquals("CircuitBreakerOpenError", e.getName());
+        }
+        verify(20, getRequestedFor(urlEqualTo(PATH_HTTP_GET_TEXT)));
+
+        // Off by default.
+        parameters.delete(KEY_CIRCUIT_BREAKER);
+        ext_httpClient = new Ext_HttpClient(parameters);
+        assertEquals("503", ext_httpClient.get(url, null, false).get("status"));
+    }
+
+    /*
+     * http_metrics_over_jmx.
+     */
+    @Test
+    public void http_metrics_over_jmx() throws Exception {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(200)
+                    .withBody("body content")));
+        stubFor(post(urlEqualTo(PATH_HTTP_POST_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(404)));
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName getName = new ObjectName("io.personium.engine.extension.httpclient:type=Requests,"
+                + "origin=\"http://localhost:8080\",method=\"GET\"");
+        ObjectName postName = new ObjectName("io.personium.engine.extension.httpclient:type=Requests,"
+                + "origin=\"http://localhost:8080\",method=\"POST\"");
+
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient(new NativeObject());
+        ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false);
+        ext_httpClient.post(MOCK_SERVER_URL + PATH_HTTP_POST_TEXT, null, POST_CONTENT_TYPE, POST_PARAMS_TEXT);
+
+        // Metrics are process-wide, so compare with the counts before the calls.
+        long gets = (Long) ((CompositeData) server.getAttribute(getName, "TotalTime")).get("count");
+        long status2xx = (Long) server.getAttribute(getName, "Status2xx");
+        long responseBytes = (Long) server.getAttribute(getName, "ResponseBytes");
+        long requestBytes = (Long) server.getAttribute(postName, "RequestBytes");
+        long status4xx = (Long) server.getAttribute(postName, "Status4xx");
+
+        ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false);
+        ext_httpClient.post(MOCK_SERVER_URL + PATH_HTTP_POST_TEXT, null, POST_CONTENT_TYPE, POST_PARAMS_TEXT);
+
+        CompositeData totalTime = (CompositeData) server.getAttribute(getName, "TotalTime");
+        assertEquals(gets + 1, totalTime.get("count"));
+        assertTrue((Double) totalTime.get("max") > 0);
+        assertEquals(status2xx + 1, server.getAttribute(getName, "Status2xx"));
+        assertEquals(responseBytes + "body content".length(), server.getAttribute(getName, "ResponseBytes"));
+        assertEquals(requestBytes + POST_PARAMS_TEXT.length(), server.getAttribute(postName, "RequestBytes"));
+        assertEquals(status4xx + 1, server.getAttribute(postName, "Status4xx"));
+        assertEquals("CLOSED", server.getAttribute(getName, "CircuitBreakerState"));
+
+        Set<ObjectName> pools = server.queryNames(
+                new ObjectName("io.personium.engine.extension.httpclient:type=ConnectionPool,*"), null);
+        assertFalse(pools.isEmpty());
+        for (ObjectName pool : pools) {
+            assertTrue((Integer) server.getAttribute(pool, "Max") > 0);
+        }
+    }
+
+    /*
+     * http_get_native_response.
+     */
+    @Test
+    public void http_get_native_response() {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withBody("body content")
+                    .withHeader("Content-Type", "text/plain")
+                    .withHeader("Set-Cookie", "a=1", "b=2")));
+
+        NativeObject parameters = new NativeObject();
+        parameters.put(KEY_NATIVE_RESPONSE, parameters, true);
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient(parameters);
+        NativeObject result = ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false);
+        assertEquals(HttpStatus.SC_OK, result.get("status"));
+        assertEquals("body content", result.get("body"));
+
+        Scriptable headers = (Scriptable) result.get("headers");
+        assertEquals("text/plain", headers.get("content-type", headers));
+        assertEquals("text/plain", headers.get("CONTENT-TYPE", headers));
+        assertEquals("a=1, b=2", headers.get("Set-Cookie", headers));
+        assertEquals(Scriptable.NOT_FOUND, headers.get("X-Missing", headers));
+        assertTrue(Arrays.asList(headers.getIds()).contains("Set-Cookie"));
+
+        Function getAll = (Function) headers.get("getAll", headers);
+        NativeArray cookies = (NativeArray) getAll.call(null, null, headers, new Object[] {"set-cookie"});
+        assertEquals(Arrays.asList("a=1", "b=2"), Arrays.asList(cookies.toArray()));
+        Function has = (Function) headers.get("has", headers);
+        assertEquals(Boolean.FALSE, has.call(null, null, headers, new Object[] {"X-Missing"}));
+
+        // The legacy shape per call.
+        NativeObject options = new NativeObject();
+        options.put("nativeResponse", options, false);
+        result = ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false, options);
+        assertEquals(Integer.toString(HttpStatus.SC_OK), result.get("status"));
+        assertTrue(result.get("headers") instanceof String);
+    }
+
+    /*
+     * http_get_json_response.
+     */
+    @Test
+    public void http_get_json_response() {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withBody("{\"name\": \"n\u00e4me\", \"count\": 3, \"items\": [true, null, {\"x\": 1.5}],"
+                            + " \"escaped\": \"a\\\"b\\u0041\\n\", \"negative\": -2.5e2}")
+                    .withHeader("Content-Type", "application/json")));
+
+        NativeObject options = new NativeObject();
+        options.put("responseType", options, "json");
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient();
+        NativeObject result = ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false, options);
+        NativeObject body = (NativeObject) result.get("body");
+        assertEquals("n\u00e4me", body.get("name"));
+        assertEquals(3.0, body.get("count"));
+        NativeArray items = (NativeArray) body.get("items");
+        assertEquals(3, items.getLength());
+        assertEquals(Boolean.TRUE, items.get(0));
+        assertNull(items.get(1));
+        assertEquals(1.5, ((NativeObject) items.get(2)).get("x"));
+        assertEquals("a\"bA\n", body.get("escaped"));
+        assertEquals(-250.0, body.get("negative"));
+
+        // Limits.
+        NativeObject parameters = new NativeObject();
+        parameters.put(KEY_JSON_MAX_DEPTH, parameters, 1);
+        ext_httpClient = new Ext_HttpClient(parameters);
+        try {
+            ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false, options);
+            fail("Nesting depth is not limited.");
+        } catch (EcmaError e) {
+            assertTrue(e.getErrorMessage().contains("nested deeper than 1"));
+        }
+        // Scripts cannot raise the depth above the operator's, so deep bodies do not overflow the stack.
+        StringBuilder deep = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            deep.append('[');
+        }
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT + "/deep"))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withBody(deep.toString())
+                    .withHeader("Content-Type", "application/json")));
+        parameters.put(KEY_JSON_MAX_DEPTH, parameters, 1e9);
+        ext_httpClient = new Ext_HttpClient(parameters);
+        try {
+            ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT + "/deep", null, false, options);
+            fail("Nesting depth is not limited by the operator.");
+        } catch (EcmaError e) {
+            assertTrue(e.getErrorMessage(), e.getErrorMessage().contains("nested deeper than 512"));
+        }
+        parameters = new NativeObject();
+        parameters.put(KEY_JSON_MAX_SIZE, parameters, 16);
+        ext_httpClient = new Ext_HttpClient(parameters);
+        try {
+            ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false, options);
+            fail("Size is not limited.");
+        } catch (EcmaError e) {
+            assertTrue(e.getErrorMessage().contains("exceeds 16 bytes"));
+        }
+    }
+
+    /*
+     * http_get_with_default_headers_keeps_caller_headers.
+     */
+    @Test
+    public void http_get_with_default_headers_keeps_caller_headers() {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)));
+
+        NativeObject default_headers = new NativeObject();
+        default_headers.put(DEFAULT_HEADER_KEY, default_headers, DEFAULT_HEADER_VALUE);
+        default_headers.put("Accept", default_headers, "text/plain");
+        NativeObject parameters = new NativeObject();
+        parameters.put(KEY_DEFAULT_HEADERS, parameters, default_headers);
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient(parameters);
+
+        // No per call headers.
+        ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false);
+        verify(getRequestedFor(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .withHeader(DEFAULT_HEADER_KEY, equalTo(DEFAULT_HEADER_VALUE))
+                .withHeader("Accept", equalTo("text/plain")));
+
+        // Overridden ignoring case, and the caller's object is left as it is.
+        NativeObject req_headers = new NativeObject();
+        req_headers.put("accept", req_headers, "application/json");
+        ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, req_headers, false);
+        ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, req_headers, false);
+        assertEquals(1, req_headers.size());
+        verify(2, getRequestedFor(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .withHeader(DEFAULT_HEADER_KEY, equalTo(DEFAULT_HEADER_VALUE))
+                .withHeader("Accept", equalTo("application/json")));
+
+        // Invalid default headers fail when the client is created.
+        default_headers.put("X-Injected", default_headers, "a\r\nHost: example.com");
+        try {
+            new Ext_HttpClient(parameters);
+            fail("Invalid default header is accepted.");
+        } catch (EcmaError e) {
+            assertTrue(e.getErrorMessage().contains("X-Injected"));
+        }
+    }
+
+    /*
+     * http_get_with_max_response_size.
+     */
+    @Test
+    public void http_get_with_max_response_size() throws Exception {
+        String body = "0123456789abcdefghij";
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withBody(body)));
+        // Without Content-Length.
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT + "/chunked"))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withBody(body)
+                    .withChunkedDribbleDelay(4, 20)));
+
+        NativeObject parameters = new NativeObject();
+        parameters.put(KEY_MAX_RESPONSE_SIZE, parameters, 10);
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient(parameters);
+        for (String path : Arrays.asList(PATH_HTTP_GET_TEXT, PATH_HTTP_GET_TEXT + "/chunked")) {
+            try {
+                ext_httpClient.get(MOCK_SERVER_URL + path, null, false);
+                fail("Response size is not limited: " + path);
+            } catch (EcmaError e) {
+                assertEquals("ResponseTooLargeError", e.getName());
+                assertEquals("Response body exceeds 10 bytes.", e.getErrorMessage());
+            }
+        }
+
+        // Per call, and streams are not limited.
+        NativeObject options = new NativeObject();
+        options.put("maxResponseSize", options, 20);
+        assertEquals(body, ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false, options).get("body"));
+        NativeObject result = ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, true);
+        assertEquals(body, readAll((InputStream) result.get("body")));
+
+        // Scripts cannot raise the max of the operator (64 MiB by default).
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT + "/large"))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withHeader("Content-Length", Long.toString(64L * 1024 * 1024 + 1))
+                    .withBody(body)));
+        parameters.put(KEY_MAX_RESPONSE_SIZE, parameters, 1e12);
+        options.put("maxResponseSize", options, 1e12);
+        try {
+            new Ext_HttpClient(parameters).get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT + "/large",
+                    headers("Accept-Encoding", "identity"), false, options);
+            fail("Response size is not limited by the operator.");
+        } catch (EcmaError e) {
+            assertEquals("ResponseTooLargeError", e.getName());
+            assertEquals("Response body exceeds 67108864 bytes.", e.getErrorMessage());
+        }
+    }
+
+    /*
+     * http_get_text_with_charset.
+     */
+    @Test
+    public void http_get_text_with_charset() {
+        String text = "\u3042\u3044\u3046";
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withBody(text.getBytes(Charset.forName("Shift_JIS")))
+                    .withHeader("Content-Type", "text/plain; charset=Shift_JIS")));
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT + "/utf8"))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withBody(text.getBytes(StandardCharsets.UTF_8))
+                    .withHeader("Content-Type", "application/json")));
+
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient();
+        assertEquals(text, ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false).get("body"));
+        assertEquals(text, ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT + "/utf8", null, false).get("body"));
+    }
+
+    /*
+     * dns_cache_refreshes_hot_hosts_in_background.
+     */
+    @Test
+    public void dns_cache_refreshes_hot_hosts_in_background() throws Exception {
+        InetAddress first = InetAddress.getByAddress("hot.example", new byte[] {10, 0, 0, 1});
+        InetAddress second = InetAddress.getByAddress("hot.example", new byte[] {10, 0, 0, 2});
+        Thread testThread = Thread.currentThread();
+        List<Thread> lookupThreads = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger missingLookups = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        CachingDnsResolver resolver = new CachingDnsResolver(host -> {
+            if (!host.equals("hot.example")) {
+                missingLookups.incrementAndGet();
+                throw new UnknownHostException(host);
+            }
+            lookupThreads.add(Thread.currentThread());
+            if (lookupThreads.size() > 1) {
+                // Hold the refresh, the request must not wait for it.
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return new InetAddress[] {first, second};
+        }, 400, Collections.<String, Long>emptyMap(), 60000, 50, 100);
+
+        // Cold host: resolved on the request path, then addresses are returned in turn.
+        assertArrayEquals(new InetAddress[] {first, second}, resolver.resolve("hot.example"));
+        assertArrayEquals(new InetAddress[] {second, first}, resolver.resolve("HOT.example"));
+        assertEquals(Arrays.asList(testThread), lookupThreads);
+
+        // Past the refresh point: cached addresses are returned while the refresh is held.
+        Thread.sleep(250);
+        long start = System.nanoTime();
+        assertEquals(2, resolver.resolve("hot.example").length);
+        assertEquals(2, resolver.resolve("hot.example").length);
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+        for (int i = 0; i < 50 && lookupThreads.size() < 2; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, lookupThreads.size());
+        assertNotEquals(testThread, lookupThreads.get(1));
+        release.countDown();
+
+        // Failures are cached too.
+        for (int i = 0; i < 3; i++) {
+            try {
+                resolver.resolve("missing.example");
+                fail("UnknownHostException is not thrown");
+            } catch (UnknownHostException e) {
+                assertEquals(1, missingLookups.get());
+            }
+        }
+
+        // Client resolving through the shared cache.
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse().withStatus(HttpStatus.SC_OK).withBody("cached")));
+        NativeObject parameters = new NativeObject();
+        parameters.put(KEY_DNS_CACHE, parameters, true);
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient(parameters);
+        assertEquals("cached", ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false).get("body"));
+        assertTrue(CachingDnsResolver.SHARED.size() > 0);
+    }
+
+    /*
+     * http_get_coalesces_identical_requests.
+     */
+    @Test
+    public void http_get_coalesces_identical_requests() throws Exception {
+        String path = PATH_HTTP_GET_TEXT + "/coalesced";
+        stubFor(get(urlEqualTo(path))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withHeader("Vary", "Accept")
+                    .withBody("shared")
+                    .withFixedDelay(500)));
+        NativeObject parameters = new NativeObject();
+        parameters.put(KEY_REQUEST_COALESCING, parameters, true);
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient(parameters);
+
+        // Identical requests share one round trip.
+        List<String> bodies = getConcurrently(ext_httpClient, MOCK_SERVER_URL + path,
+                headers(HEADER_KEY, HEADER_VALUE), headers(HEADER_KEY, HEADER_VALUE),
+                headers(HEADER_KEY, HEADER_VALUE), headers(HEADER_KEY, HEADER_VALUE));
+        assertEquals(Collections.nCopies(4, "shared"), bodies);
+        verify(1, getRequestedFor(urlEqualTo(path)));
+        assertEquals(0, RequestCoalescer.SHARED.inFlight());
+
+        // Once Vary is known, other headers do not matter, but credentials do.
+        bodies = getConcurrently(ext_httpClient, MOCK_SERVER_URL + path,
+                headers(HEADER_KEY, "a"), headers(HEADER_KEY, "b"), headers("Authorization", "Bearer token"));
+        assertEquals(Collections.nCopies(3, "shared"), bodies);
+        verify(3, getRequestedFor(urlEqualTo(path)));
+    }
+
+    /*
+     * http_get_does_not_coalesce_private_responses.
+     */
+    @Test
+    public void http_get_does_not_coalesce_private_responses() throws Exception {
+        String path = PATH_HTTP_GET_TEXT + "/private";
+        for (String key : Arrays.asList("a", "b")) {
+            stubFor(get(urlEqualTo(path)).withHeader("X-Api-Key", equalTo(key))
+                    .willReturn(aResponse()
+                        .withStatus(HttpStatus.SC_OK)
+                        .withHeader("Cache-Control", "private")
+                        .withHeader("Vary", "Accept")
+                        .withBody("for " + key)
+                        .withFixedDelay(500)));
+        }
+        NativeObject parameters = new NativeObject();
+        parameters.put(KEY_REQUEST_COALESCING, parameters, true);
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient(parameters);
+
+        // Identical requests wait for the first one, then send their own.
+        List<String> bodies = getConcurrently(ext_httpClient, MOCK_SERVER_URL + path,
+                headers("X-Api-Key", "a"), headers("X-Api-Key", "a"), headers("X-Api-Key", "a"));
+        assertEquals(Collections.nCopies(3, "for a"), bodies);
+        verify(3, getRequestedFor(urlEqualTo(path)));
+
+        // Vary of a private response does not narrow the key, so other credentials are not mixed up.
+        bodies = getConcurrently(ext_httpClient, MOCK_SERVER_URL + path,
+                headers("X-Api-Key", "a"), headers("X-Api-Key", "b"));
+        assertEquals(Arrays.asList("for a", "for b"), bodies);
+        assertEquals(0, RequestCoalescer.SHARED.inFlight());
+    }
+
+    private static NativeObject part(String name, Object body, String filename, String contentType) {
+        NativeObject part = new NativeObject();
+        part.put("name", part, name);
+        part.put("body", part, body);
+        if (filename != null) {
+            part.put("filename", part, filename);
+        }
+        if (contentType != null) {
+            part.put("contentType", part, contentType);
+        }
+        return part;
+    }
+
+    private static NativeObject headers(String name, String value) {
+        NativeObject headers = new NativeObject();
+        headers.put(name, headers, value);
+        return headers;
+    }
+
+    private static List<String> getConcurrently(Ext_HttpClient client, String url, NativeObject... headers)
+            throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(headers.length);
+        try {
+            CountDownLatch ready = new CountDownLatch(1);
+            List<Future<Object>> futures = new ArrayList<>();
+            for (NativeObject h : headers) {
+                futures.add(executor.submit(() -> {
+                    ready.await();
+                    return client.get(url, h, false).get("body");
+                }));
+            }
+            ready.countDown();
+            List<String> bodies = new ArrayList<>();
+            for (Future<Object> future : futures) {
+                bodies.add((String) future.get(10, TimeUnit.SECONDS));
+            }
+            return bodies;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /*
+     * bulkhead_limits_cells_and_serves_them_in_turn.
+     */
+    @Test
+    public void bulkhead_limits_cells_and_serves_them_in_turn() throws Exception {
+        Bulkhead bulkhead = new Bulkhead("http://bulkhead.example:80", 2, 1, 1);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            Bulkhead.Permit a1 = bulkhead.acquire("a", 1000);
+            assertNotNull(a1);
+            // Cell a is at its own limit: one call waits, the next is rejected at once.
+            Future<Bulkhead.Permit> a2 = executor.submit(() -> bulkhead.acquire("a", 10000));
+            waitQueued(bulkhead, "a", 1);
+            assertNull(bulkhead.acquire("a", 10000));
+            assertEquals(1, bulkhead.getRejected());
+
+            // Cell b is not held up by cell a.
+            Bulkhead.Permit b1 = bulkhead.acquire("b", 1000);
+            assertNotNull(b1);
+            assertEquals(2, bulkhead.getActive());
+
+            // The origin is full: cell c waits, and gets the permit freed by b as a is at its limit.
+            Future<Bulkhead.Permit> c1 = executor.submit(() -> bulkhead.acquire("c", 10000));
+            waitQueued(bulkhead, "c", 1);
+            assertEquals(2, bulkhead.getQueued());
+            b1.release();
+            assertNotNull(c1.get(1, TimeUnit.SECONDS));
+            assertFalse(a2.isDone());
+
+            a1.release();
+            assertNotNull(a2.get(1, TimeUnit.SECONDS));
+            assertEquals(0, bulkhead.getQueued());
+            assertEquals(Integer.valueOf(1), bulkhead.getActiveByCell().get("a"));
+
+            // A wait beyond the max wait is rejected too.
+            assertNull(bulkhead.acquire("a", 50));
+            assertEquals(2, bulkhead.getRejected());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Calls of a client with a cell go through the bulkhead of the origin, visible in JMX.
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse().withStatus(HttpStatus.SC_OK).withBody("bulkhead")));
+        NativeObject parameters = new NativeObject();
+        parameters.put(KEY_CELL, parameters, "cell1");
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient(parameters);
+        assertEquals("bulkhead", ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false).get("body"));
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("io.personium.engine.extension.httpclient:type=Bulkhead,origin="
+                + ObjectName.quote("http://localhost:8080"));
+        assertEquals(0, server.getAttribute(name, "Active"));
+        assertEquals(0, server.getAttribute(name, "Queued"));
+    }
+
+    /*
+     * bulkhead_bounds_clients_without_cell.
+     */
+    @Test
+    public void bulkhead_bounds_clients_without_cell() throws Exception {
+        // The default cell is bounded by the origin only.
+        Bulkhead bulkhead = new Bulkhead("http://bulkhead.example:80", 2, 1, 1);
+        Bulkhead.Permit d1 = bulkhead.acquire(Bulkhead.DEFAULT_CELL, 1000);
+        Bulkhead.Permit d2 = bulkhead.acquire(Bulkhead.DEFAULT_CELL, 1000);
+        assertNotNull(d1);
+        assertNotNull(d2);
+        assertNull(bulkhead.acquire(Bulkhead.DEFAULT_CELL, 50));
+        d1.release();
+        d2.release();
+
+        // Calls of a client without a cell go through the bulkhead of the origin.
+        String path = PATH_HTTP_GET_TEXT + "/bulkhead";
+        stubFor(get(urlEqualTo(path))
+                .willReturn(aResponse().withStatus(HttpStatus.SC_OK).withBody("bulkhead").withFixedDelay(500)));
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient(new NativeObject());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Object> call = executor.submit(() -> ext_httpClient.get(MOCK_SERVER_URL + path, null, false)
+                    .get("body"));
+            Bulkhead origin = Bulkhead.of(URI.create(MOCK_SERVER_URL));
+            for (int i = 0; i < 100 && origin.getActive() == 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(Integer.valueOf(1), origin.getActiveByCell().get(Bulkhead.DEFAULT_CELL));
+            assertEquals("bulkhead", call.get(10, TimeUnit.SECONDS));
+            assertEquals(0, origin.getActive());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void waitQueued(Bulkhead bulkhead, String cellName, int queued) throws InterruptedException {
+        for (int i = 0; i < 100 && !Objects.equals(queued, bulkhead.getQueuedByCell().get(cellName)); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(Integer.valueOf(queued), bulkhead.getQueuedByCell().get(cellName));
+    }
+
+    /*
+     * adaptive_concurrency_converges_to_upstream_capacity.
+     */
+    @Test
+    public void adaptive_concurrency_converges_to_upstream_capacity() throws Exception {
+        // Upstream serving 4 requests at a time in 20 ms each. The others queue, so latency grows with load.
+        int capacity = 4;
+        Semaphore slots = new Semaphore(capacity, true);
+        // Without Nagle, so that the body does not wait for the ACK of the headers.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 64);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", exchange -> {
+            try {
+                slots.acquire();
+                try {
+                    Thread.sleep(20);
+                } finally {
+                    slots.release();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = "ok".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(HttpStatus.SC_OK, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        String url = "http://localhost:" + server.getAddress().getPort() + "/";
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            NativeObject parameters = new NativeObject();
+            parameters.put(KEY_ADAPTIVE_CONCURRENCY, parameters, true);
+            Ext_HttpClient ext_httpClient = new Ext_HttpClient(parameters);
+            AdaptiveLimiter limiter = AdaptiveLimiter.of(URI.create(url));
+            assertEquals(20, limiter.getLimit());
+
+            // Light load first, which tells the latency without queueing.
+            for (int i = 0; i < 20; i++) {
+                ext_httpClient.get(url, null, false);
+            }
+
+            // Then 16 callers, each sending again as soon as it can.
+            long end = System.currentTimeMillis() + 3000;
+            AtomicInteger rejected = new AtomicInteger();
+            List<Future<?>> callers = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                callers.add(executor.submit(() -> {
+                    while (System.currentTimeMillis() < end) {
+                        try {
+                            ext_httpClient.get(url, null, false);
+                        } catch (EcmaError e) {
+                            assertTrue(e.getMessage(), e.getMessage().startsWith("ConcurrencyLimitError"));
+                            rejected.incrementAndGet();
+                            Thread.sleep(5);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> caller : callers) {
+                caller.get(10, TimeUnit.SECONDS);
+            }
+
+            // The limit settles a little above the capacity, where queueing starts, instead of the 16 callers.
+            int limit = limiter.getLimit();
+            assertTrue("limit=" + limit, limit >= capacity && limit <= 12);
+            assertTrue(rejected.get() > 0);
+            assertEquals(0, limiter.getInFlight());
+        } finally {
+            executor.shutdownNow();
+            server.stop(0);
+        }
+    }
+
+    /*
+     * http_get_with_circuit_breaker_open_keeps_concurrency_limit.
+     */
+    @Test
+    public void http_get_with_circuit_breaker_open_keeps_concurrency_limit() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 64);
+        server.createContext("/", exchange -> {
+            exchange.getResponseHeaders().add("Connection", "close");
+            exchange.sendResponseHeaders(HttpStatus.SC_SERVICE_UNAVAILABLE, -1);
+            exchange.close();
+        });
+        server.start();
+        String url = "http://localhost:" + server.getAddress().getPort() + "/";
+        try {
+            NativeObject parameters = new NativeObject();
+            parameters.put(KEY_RETRY_MAX_ATTEMPTS, parameters, 1);
+            parameters.put(KEY_CIRCUIT_BREAKER, parameters, true);
+            Ext_HttpClient ext_httpClient = new Ext_HttpClient(parameters);
+            for (int i = 0; i < 20; i++) {
+                ext_httpClient.get(url, null, false);
+            }
+
+            parameters.put(KEY_ADAPTIVE_CONCURRENCY, parameters, true);
+            ext_httpClient = new Ext_HttpClient(parameters);
+            AdaptiveLimiter limiter = AdaptiveLimiter.of(URI.create(url));
+            assertEquals(20, limiter.getLimit());
+            try {
+                ext_httpClient.get(url, null, false);
+                fail("Circuit breaker is not open.");
+            } catch (EcmaError e) {
+                assertEquals("CircuitBreakerOpenError", e.getName());
+            }
+
+            // The origin was not called, so the limit is not cut.
+            assertEquals(20, limiter.getLimit());
+            assertEquals(0, limiter.getInFlight());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /*
+     * http_post_multipart.
+     */
+    @Test
+    public void http_post_multipart() throws Exception {
+        stubFor(post(urlEqualTo(PATH_HTTP_POST_STREAM))
+                .willReturn(aResponse()
+                    .withStatus(201)));
+
+        byte[] image = Base64.decodeBase64(BASE64_DATA);
+        NativeArray parts = new NativeArray(new Object[] {
+            part("comment", "\u3053\u3093\u306b\u3061\u306f", null, null),
+            part("thumbnail", image, "thumb.jpg", "image/jpeg"),
+            part("original", new PersoniumInputStream(new ByteArrayInputStream(image)), "\u5199\u771f.jpg", null)
+        });
+
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient();
+        NativeObject result = ext_httpClient.postMultipart(MOCK_SERVER_URL + PATH_HTTP_POST_STREAM,
+                headers("Content-Type", "text/plain"), parts);
+
+        assertEquals(Integer.toString(HttpStatus.SC_CREATED), result.get("status"));
+        verify(postRequestedFor(urlEqualTo(PATH_HTTP_POST_STREAM))
+                .withHeader("Content-Type", matching("multipart/form-data; boundary=.+"))
+                .withHeader("Transfer-Encoding", equalTo("chunked")));
+        byte[] sent = findAll(postRequestedFor(urlEqualTo(PATH_HTTP_POST_STREAM))).get(0).getBody();
+        String text = new String(sent, StandardCharsets.UTF_8);
+        assertTrue(text.contains("name=\"comment\"\r\nContent-Type: text/plain; charset=UTF-8"));
+        assertTrue(text.contains("\r\n\r\n\u3053\u3093\u306b\u3061\u306f\r\n"));
+        assertTrue(text.contains("name=\"thumbnail\"; filename=\"thumb.jpg\"\r\nContent-Type: image/jpeg"));
+        assertTrue(text.contains("name=\"original\"; filename=\"\u5199\u771f.jpg\"\r\n"
+                + "Content-Type: application/octet-stream"));
+        // Both file parts carry the image bytes unchanged.
+        String raw = new String(sent, StandardCharsets.ISO_8859_1);
+        String imageBytes = new String(image, StandardCharsets.ISO_8859_1);
+        int first = raw.indexOf(imageBytes);
+        assertTrue(first > 0);
+        assertTrue(raw.indexOf(imageBytes, first + image.length) > 0);
+
+        stubFor(put(urlEqualTo(PATH_HTTP_POST_STREAM))
+                .willReturn(aResponse()
+                    .withStatus(204)));
+        result = ext_httpClient.putMultipart(MOCK_SERVER_URL + PATH_HTTP_POST_STREAM, null,
+                new NativeArray(new Object[] {part("note", "text file", "note.txt", null)}));
+        assertEquals(Integer.toString(HttpStatus.SC_NO_CONTENT), result.get("status"));
+        text = new String(findAll(putRequestedFor(urlEqualTo(PATH_HTTP_POST_STREAM))).get(0).getBody(),
+                StandardCharsets.UTF_8);
+        assertTrue(text.contains("name=\"note\"; filename=\"note.txt\"\r\nContent-Type: text/plain; charset=UTF-8"));
+    }
+
+    /*
+     * http_get_ranged_reassembles_parallel_ranges.
+     */
+    @Test
+    public void http_get_ranged_reassembles_parallel_ranges() throws Exception {
+        byte[] resource = new byte[1000 * 1000];
+        new Random(1).nextBytes(resource);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        List<String> ranges = Collections.synchronizedList(new ArrayList<>());
+        List<String> validators = Collections.synchronizedList(new ArrayList<>());
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 64);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", exchange -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            ranges.add(range);
+            validators.add(exchange.getRequestHeaders().getFirst("If-Range"));
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            int first = Integer.parseInt(bounds[0]);
+            int last = Math.min(Integer.parseInt(bounds[1]), resource.length - 1);
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.getResponseHeaders().set("ETag", "\"v1\"");
+            exchange.getResponseHeaders().set("Content-Range",
+                    String.format("bytes %d-%d/%d", first, last, resource.length));
+            running.decrementAndGet();
+            exchange.sendResponseHeaders(HttpStatus.SC_PARTIAL_CONTENT, last - first + 1);
+            exchange.getResponseBody().write(resource, first, last - first + 1);
+            exchange.close();
+        });
+        server.start();
+        try {
+            NativeObject options = new NativeObject();
+            options.put("rangeSize", options, 64 * 1024);
+            options.put("concurrency", options, 3);
+            options.put("window", options, 5 * 64 * 1024);
+            Ext_HttpClient ext_httpClient = new Ext_HttpClient();
+            NativeObject result = ext_httpClient.getRanged(
+                    "http://localhost:" + server.getAddress().getPort() + "/large", null, options);
+
+            assertEquals(Integer.toString(HttpStatus.SC_OK), result.get("status"));
+            JSONObject headers = (JSONObject) new JSONParser().parse((String) result.get("headers"));
+            assertEquals(Integer.toString(resource.length), headers.get("Content-Length"));
+            assertFalse(headers.containsKey("Content-Range"));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (InputStream body = (InputStream) result.get("body")) {
+                byte[] buffer = new byte[10000];
+                int n;
+                while ((n = body.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                }
+            }
+            assertArrayEquals(resource, out.toByteArray());
+
+            // 16 ranges of 64 KiB, the later ones sent with the entity tag of the first.
+            assertEquals(16, ranges.size());
+            assertEquals("bytes=0-65535", ranges.get(0));
+            assertNull(validators.get(0));
+            assertEquals(Collections.nCopies(15, "\"v1\""), validators.subList(1, 16));
+            assertTrue("maxRunning=" + maxRunning.get(), maxRunning.get() > 1 && maxRunning.get() <= 4);
+
+            // The ranges reuse the pooled connections: at most one per worker and one for the probe.
+            EvictingConnectionManager pool = HttpClientRegistry.getConnectionManager(ClientConfig.DEFAULT);
+            assertTrue("created=" + pool.getCreated(), pool.getCreated() <= 4);
+            assertEquals(0, pool.getTotalStats().getLeased());
+            assertEquals(pool.getCreated(), pool.getTotalStats().getAvailable());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /*
+     * http_get_ranged_rejects_too_many_ranges.
+     */
+    @Test
+    public void http_get_ranged_rejects_too_many_ranges() throws Exception {
+        // 4 GiB by ranges of a byte cannot be counted by the stream.
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_STREAM))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_PARTIAL_CONTENT)
+                    .withHeader("Content-Range", "bytes 0-0/4294967296")
+                    .withBody("a")));
+        NativeObject options = new NativeObject();
+        options.put("rangeSize", options, 1);
+
+        try {
+            new Ext_HttpClient(new NativeObject()).getRanged(MOCK_SERVER_URL + PATH_HTTP_GET_STREAM, null, options);
+            fail("The ranges are truncated.");
+        } catch (EcmaError e) {
+            assertTrue(e.getErrorMessage(), e.getErrorMessage().contains("4294967296 bytes are too many ranges"));
+        }
+        verify(1, getRequestedFor(urlEqualTo(PATH_HTTP_GET_STREAM)));
+    }
+
+    /*
+     * http_get_ranged_falls_back_to_plain_get.
+     */
+    @Test
+    public void http_get_ranged_falls_back_to_plain_get() throws Exception {
+        // A server that ignores Range sends the whole resource to the probe.
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_STREAM))
+                .willReturn(aResponse()
+                    .withStatus(200)
+                    .withBody("whole resource")));
+
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient();
+        NativeObject result = ext_httpClient.getRanged(MOCK_SERVER_URL + PATH_HTTP_GET_STREAM, null);
+
+        assertEquals(Integer.toString(HttpStatus.SC_OK), result.get("status"));
+        assertEquals("whole resource", readAll((InputStream) result.get("body")));
+        verify(1, getRequestedFor(urlEqualTo(PATH_HTTP_GET_STREAM))
+                .withHeader("Range", equalTo("bytes=0-4194303"))
+                .withHeader("Accept-Encoding", equalTo("identity")));
+    }
+
+    /*
+     * http_pool_bounds_clients.
+     */
+    @Test
+    public void http_pool_bounds_clients() throws Exception {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withBody("body content")));
+
+        // Each pool size is a configuration of its own.
+        Ext_HttpClient[] clients = new Ext_HttpClient[HttpClientRegistry.MAX_CLIENTS + 1];
+        for (int i = 0; i < clients.length; i++) {
+            NativeObject parameters = new NativeObject();
+            parameters.put(KEY_MAX_CONNECTIONS_PER_ROUTE, parameters, i + 1);
+            clients[i] = new Ext_HttpClient(parameters);
+        }
+        for (int i = 0; i < HttpClientRegistry.MAX_CLIENTS; i++) {
+            assertEquals("body content", clients[i].get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false).get("body"));
+        }
+        Ext_HttpClient last = clients[HttpClientRegistry.MAX_CLIENTS];
+        try {
+            last.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false);
+            fail("The number of clients is not bounded.");
+        } catch (EcmaError e) {
+            assertTrue(e.getErrorMessage(), e.getErrorMessage().contains("Too many HttpClient configurations"));
+        }
+
+        // The clients unused for the idle timeout are retired, and closed by the next eviction.
+        ClientConfig first = ClientConfig.builder().maxConnectionsPerRoute(1).build();
+        assertNotNull(HttpClientRegistry.getConnectionManager(first));
+        HttpClientRegistry.retireIdleClients(System.currentTimeMillis() + HttpClientRegistry.CLIENT_IDLE_TIMEOUT);
+        assertNull(HttpClientRegistry.getConnectionManager(first));
+        HttpClientRegistry.evictAll();
+        assertEquals("body content", last.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false).get("body"));
+    }
+
+    /*
+     * http_pool_evicts_idle_and_expired_connections.
+     */
+    @Test
+    public void http_pool_evicts_idle_and_expired_connections() throws Exception {
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_TEXT))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withBody("body content")));
+        stubFor(get(urlEqualTo(PATH_HTTP_GET_STREAM))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withHeader("Keep-Alive", "timeout=1")
+                    .withBody("body content")));
+
+        NativeObject parameters = new NativeObject();
+        parameters.put("IdleConnectionTimeout", parameters, 600);
+        parameters.put("ValidateAfterInactivity", parameters, 100);
+        Ext_HttpClient ext_httpClient = new Ext_HttpClient(parameters);
+        ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_STREAM, null, false);
+        ClientConfig config = ClientConfig.builder().idleConnectionTimeout(600).validateAfterInactivity(100).build();
+        EvictingConnectionManager pool = HttpClientRegistry.getConnectionManager(config);
+        assertEquals(100, pool.getValidateAfterInactivity());
+        assertEquals(1, pool.getCreated());
+
+        // The server keeps the connection 1 second, so it is not reused after the margin.
+        Thread.sleep(50);
+        pool.evict();
+        assertEquals(0, pool.getTotalStats().getAvailable());
+        assertEquals(1, pool.getEvicted());
+
+        // Without Keep-Alive, the connection is evicted after the idle timeout.
+        ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false);
+        ext_httpClient.get(MOCK_SERVER_URL + PATH_HTTP_GET_TEXT, null, false);
+        assertEquals(2, pool.getCreated());
+        pool.evict();
+        assertEquals(1, pool.getTotalStats().getAvailable());
+        Thread.sleep(700);
+        pool.evict();
+        assertEquals(0, pool.getTotalStats().getAvailable());
+        assertEquals(2, pool.getEvicted());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        long evicted = 0;
+        for (ObjectName name : server.queryNames(
+                new ObjectName("io.personium.engine.extension.httpclient:type=ConnectionPool,*"), null)) {
+            evicted += (Long) server.getAttribute(name, "Evicted");
+        }
+        assertTrue(evicted >= 2);
+
+        // The server's timeout is honored within the cap.
+        KeepAliveStrategy strategy = new KeepAliveStrategy(30000);
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        assertEquals(30000, strategy.getKeepAliveDuration(response, null));
+        response.setHeader("Keep-Alive", "timeout=5, max=100");
+        assertEquals(4000, strategy.getKeepAliveDuration(response, null));
+        response.setHeader("Keep-Alive", "timeout=300");
+        assertEquals(30000, strategy.getKeepAliveDuration(response, null));
+    }
+
+    /*
+     * http2_cleartext_multiplexed.
+     */
+    @Test
+    public void http2_cleartext_multiplexed() throws Exception {
+        try (H2StubServer server = new H2StubServer(false)) {
+            NativeObject parameters = new NativeObject();
+            parameters.put(KEY_HTTP2, parameters, true);
+            Ext_HttpClient ext_httpClient = new Ext_HttpClient(parameters);
+
+            Object[] requests = new Object[6];
+            for (int i = 0; i < requests.length; i++) {
+                NativeObject request = new NativeObject();
+                request.put("url", request, server.getUrl() + i);
+                requests[i] = request;
+            }
+            long start = System.currentTimeMillis();
+            NativeArray results = ext_httpClient.all(new NativeArray(requests), null);
+            long elapsed = System.currentTimeMillis() - start;
+
+            for (int i = 0; i < requests.length; i++) {
+                NativeObject result = (NativeObject) results.get(i, results);
+                assertEquals(Integer.toString(HttpStatus.SC_OK), result.get("status"));
+                assertEquals("HTTP/2.0 GET /" + i + " ", result.get("body"));
+            }
+            // All the requests share one connection and run at the same time.
+            assertEquals(1, server.getConnections());
+            assertTrue(elapsed < H2StubServer.DELAY * requests.length);
+
+            NativeObject result = ext_httpClient.post(server.getUrl(), null, "text/plain", "body content");
+            assertEquals("HTTP/2.0 POST / body content", result.get("body"));
+            result = ext_httpClient.postStream(server.getUrl(), null, "text/plain",
+                    new PersoniumInputStream(new ByteArrayInputStream("stream content".getBytes(StandardCharsets.UTF_8))));
+            assertEquals("HTTP/2.0 POST / stream content", result.get("body"));
+
+            // The body read in memory is limited.
+            NativeObject options = new NativeObject();
+            options.put("maxResponseSize", options, 4);
+            try {
+                ext_httpClient.get(server.getUrl(), null, true, options);
+                fail("HTTP/2 response size is not limited.");
+            } catch (EcmaError e) {
+                assertEquals("ResponseTooLargeError", e.getName());
+            }
+        }
+    }
+
+    /*
+     * http2_multipart.
+     */
+    @Test
+    public void http2_multipart() throws Exception {
+        try (H2StubServer server = new H2StubServer(false)) {
+            NativeObject parameters = new NativeObject();
+            parameters.put(KEY_HTTP2, parameters, true);
+            Ext_HttpClient ext_httpClient = new Ext_HttpClient(parameters);
+
+            NativeObject result = ext_httpClient.postMultipart(server.getUrl(), null, new NativeArray(new Object[] {
+                part("note", "text file", "note.txt", null),
+                part("original", new PersoniumInputStream(new ByteArrayInputStream(new byte[] {1, 2, 3})),
+                        "data.bin", null)
+            }));
+
+            // The server can split the body, as the boundary is sent.
+            assertEquals(1, server.getContentTypes().size());
+            String contentType = server.getContentTypes().get(0);
+            assertTrue(contentType, contentType.startsWith("multipart/form-data; boundary="));
+            String boundary = contentType.substring("multipart/form-data; boundary=".length()).split(";")[0];
+            String body = (String) result.get("body");
+            assertTrue(contentType, body.startsWith("HTTP/2.0 POST / --" + boundary + "\r\n"));
+            assertTrue(body.contains("name=\"note\"; filename=\"note.txt\"\r\nContent-Type: text/plain; charset=UTF-8"));
+            assertTrue(body.contains("name=\"original\"; filename=\"data.bin\"\r\n"));
+            assertTrue(body.endsWith("--" + boundary + "--\r\n"));
+        }
+    }
+
+    /*
+     * http2_tls_alpn.
+     */
+    @Test
+    public void http2_tls_alpn() throws Exception {
+        try (H2StubServer server = new H2StubServer(true)) {
+            NativeObject parameters = new NativeObject();
+            parameters.put(KEY_HTTP2, parameters, true);
+            parameters.put(KEY_SKIP_HOSTNAME_VERIFICATION, parameters, true);
+            Ext_HttpClient ext_httpClient = new Ext_HttpClient(parameters);
+
+            NativeObject result = ext_httpClient.get(server.getUrl(), null, false);
+            assertEquals(Integer.toString(HttpStatus.SC_OK), result.get("status"));
+            assertEquals("HTTP/2.0 GET / ", result.get("body"));
+        }
+    }
+
+    /*
+     * HTTP/2 server that answers "<version> <method> <path> <body>" after a delay and counts connections.
+     */
+    private static final class H2StubServer implements AutoCloseable {
+        static final long DELAY = 300;
+        private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        private final Set<String> peers = Collections.synchronizedSet(new HashSet<String>());
+        private final List<String> contentTypes = Collections.synchronizedList(new ArrayList<String>());
+        private final HttpAsyncServer server;
+        private final String url;
+
+        H2StubServer(boolean tls) throws Exception {
+            H2ServerBootstrap bootstrap = H2ServerBootstrap.bootstrap()
+                    .register("*", new AsyncServerRequestHandler<Message<HttpRequest, String>>() {
+                        @Override
+                        public AsyncRequestConsumer<Message<HttpRequest, String>> prepare(HttpRequest request,
+                                EntityDetails entityDetails, HttpContext context) {
+                            return new BasicRequestConsumer<>(new StringAsyncEntityConsumer());
+                        }
+
+                        @Override
+                        public void handle(Message<HttpRequest, String> message, ResponseTrigger trigger,
+                                HttpContext context) {
+                            EndpointDetails endpoint =
+                                    (EndpointDetails) context.getAttribute(HttpCoreContext.CONNECTION_ENDPOINT);
+                            peers.add(String.valueOf(endpoint.getRemoteAddress()));
+                            HttpRequest request = message.getHead();
+                            org.apache.hc.core5.http.Header contentType = request.getFirstHeader("Content-Type");
+                            if (contentType != null) {
+                                contentTypes.add(contentType.getValue());
+                            }
+                            String body = request.getVersion() + " " + request.getMethod() + " " + request.getPath()
+                                    + " " + Objects.toString(message.getBody(), "");
+                            scheduler.schedule(() -> {
+                                try {
+                                    trigger.submitResponse(new BasicResponseProducer(200, body), context);
+                                } catch (Exception e) {
+                                    e.printStackTrace();
+                                }
+                            }, DELAY, TimeUnit.MILLISECONDS);
+                        }
+                    });
+            if (tls) {
+                KeyStore keyStore = KeyStore.getInstance("JKS");
+                try (InputStream is = Ext_HttpClientTest.class.getResourceAsStream("/tls-stub.jks")) {
+                    keyStore.load(is, "changeit".toCharArray());
+                }
+                KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                kmf.init(keyStore, "changeit".toCharArray());
+                SSLContext sslContext = SSLContext.getInstance("TLS");
+                sslContext.init(kmf.getKeyManagers(), null, null);
+                bootstrap.setTlsStrategy(new H2ServerTlsStrategy(sslContext));
+            } else {
+                bootstrap.setVersionPolicy(HttpVersionPolicy.FORCE_HTTP_2);
+            }
+            server = bootstrap.create();
+            server.start();
+            URIScheme scheme = URIScheme.HTTP;
+            if (tls) {
+                scheme = URIScheme.HTTPS;
+            }
+            ListenerEndpoint endpoint = server.listen(new InetSocketAddress(0), scheme).get();
+            int port = ((InetSocketAddress) endpoint.getAddress()).getPort();
+            url = scheme.getId() + "://localhost:" + port + "/";
+        }
+
+        String getUrl() {
+            return url;
+        }
+
+        int getConnections() {
+            return peers.size();
+        }
+
+        List<String> getContentTypes() {
+            return contentTypes;
+        }
+
+        @Override
+        public void close() {
+            server.close(CloseMode.IMMEDIATE);
+            scheduler.shutdownNow();
+        }
+    }
+
+    /*
+     * TLS server that answers "ok" to any request and counts handshakes.
+     * A resumed session keeps the id of the session created by the full handshake.
+     * With client auth, it requires the client certificate of its own key store.
+     */
+    private static final class TlsStubServer implements Runnable, AutoCloseable {
+        private final SSLServerSocket serverSocket;
+        private final Set<String> sessionIds = Collections.synchronizedSet(new HashSet<String>());
+        private final AtomicInteger handshakes = new AtomicInteger();
+        private final AtomicInteger clientCertificates = new AtomicInteger();
+        private final Thread thread = new Thread(this, "tls-stub-server");
+
+        TlsStubServer() throws Exception {
+            this(false);
+        }
+
+        TlsStubServer(boolean needClientAuth) throws Exception {
+            KeyStore keyStore = KeyStore.getInstance("JKS");
+            try (InputStream is = Ext_HttpClientTest.class.getResourceAsStream("/tls-stub.jks")) {
+                keyStore.load(is, "changeit".toCharArray());
+            }
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(keyStore, "changeit".toCharArray());
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init(keyStore);
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+            serverSocket = (SSLServerSocket) sslContext.getServerSocketFactory().createServerSocket(0);
+            serverSocket.setNeedClientAuth(needClientAuth);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String getUrl() {
+            return "https://localhost:" + serverSocket.getLocalPort() + "/";
+        }
+
+        int getHandshakes() {
+            return handshakes.get();
+        }
+
+        int getFullHandshakes() {
+            return sessionIds.size();
+        }
+
+        int getClientCertificates() {
+            return clientCertificates.get();
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                try (SSLSocket socket = (SSLSocket) serverSocket.accept()) {
+                    socket.startHandshake();
+                    handshakes.incrementAndGet();
+                    sessionIds.add(Arrays.toString(socket.getSession().getId()));
+                    if (socket.getNeedClientAuth()) {
+                        clientCertificates.addAndGet(socket.getSession().getPeerCertificates().length);
+                    }
+                    BufferedReader reader = new BufferedReader(
+                            new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                    String line;
+                    while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                        continue;
+                    }
+                    OutputStream out = socket.getOutputStream();
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: 2\r\n"
+                            + "Connection: close\r\n\r\nok").getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                } catch (IOException e) {
+                    continue;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+
+    /*
+     * read InputStream as UTF-8 string.
+     */
+    private static String readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int len;
+        while ((len = is.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+        }
+        is.close();
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
 
     /*
      * conversion InputStream to File.